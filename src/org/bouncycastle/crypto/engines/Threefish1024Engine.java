@@ -0,0 +1,1048 @@
+package org.bouncycastle.crypto.engines;
+
+/**
+ * Threefish with 1024 bits block and key.
+ * 
+ * Rounds are unrolled eight at a time (one pair of subkey injections),
+ * rotation constants are hardcoded and word permutation is done by renaming
+ * variables, so whole state is kept in local variables.
+ * 
+ */
+public class Threefish1024Engine extends ThreefishEngine {
+
+	public Threefish1024Engine() {
+		super(1024);
+	}
+
+	private Threefish1024Engine(Threefish1024Engine engine) {
+		super(engine);
+	}
+
+	@Override
+	public Threefish1024Engine copy() {
+		return new Threefish1024Engine(this);
+	}
+
+	/**
+	 * Encrypts one block of words. Input and output may be the same array.
+	 * 
+	 * @param subKeys
+	 *            expanded key, subkeys stored one after another
+	 */
+	static void encryptBlock(long[] subKeys, long[] in, int inOff, long[] out, int outOff) {
+		long b0 = in[inOff];
+		long b1 = in[inOff + 1];
+		long b2 = in[inOff + 2];
+		long b3 = in[inOff + 3];
+		long b4 = in[inOff + 4];
+		long b5 = in[inOff + 5];
+		long b6 = in[inOff + 6];
+		long b7 = in[inOff + 7];
+		long b8 = in[inOff + 8];
+		long b9 = in[inOff + 9];
+		long b10 = in[inOff + 10];
+		long b11 = in[inOff + 11];
+		long b12 = in[inOff + 12];
+		long b13 = in[inOff + 13];
+		long b14 = in[inOff + 14];
+		long b15 = in[inOff + 15];
+
+		for (int k = 0; k < 320; k += 32) {
+			b0 += subKeys[k];
+			b1 += subKeys[k + 1];
+			b2 += subKeys[k + 2];
+			b3 += subKeys[k + 3];
+			b4 += subKeys[k + 4];
+			b5 += subKeys[k + 5];
+			b6 += subKeys[k + 6];
+			b7 += subKeys[k + 7];
+			b8 += subKeys[k + 8];
+			b9 += subKeys[k + 9];
+			b10 += subKeys[k + 10];
+			b11 += subKeys[k + 11];
+			b12 += subKeys[k + 12];
+			b13 += subKeys[k + 13];
+			b14 += subKeys[k + 14];
+			b15 += subKeys[k + 15];
+
+			b0 += b1;
+			b1 = ((b1 << 24) | (b1 >>> 40)) ^ b0;
+			b2 += b3;
+			b3 = ((b3 << 13) | (b3 >>> 51)) ^ b2;
+			b4 += b5;
+			b5 = ((b5 << 8) | (b5 >>> 56)) ^ b4;
+			b6 += b7;
+			b7 = ((b7 << 47) | (b7 >>> 17)) ^ b6;
+			b8 += b9;
+			b9 = ((b9 << 8) | (b9 >>> 56)) ^ b8;
+			b10 += b11;
+			b11 = ((b11 << 17) | (b11 >>> 47)) ^ b10;
+			b12 += b13;
+			b13 = ((b13 << 22) | (b13 >>> 42)) ^ b12;
+			b14 += b15;
+			b15 = ((b15 << 37) | (b15 >>> 27)) ^ b14;
+
+			b0 += b9;
+			b9 = ((b9 << 38) | (b9 >>> 26)) ^ b0;
+			b2 += b13;
+			b13 = ((b13 << 19) | (b13 >>> 45)) ^ b2;
+			b6 += b11;
+			b11 = ((b11 << 10) | (b11 >>> 54)) ^ b6;
+			b4 += b15;
+			b15 = ((b15 << 55) | (b15 >>> 9)) ^ b4;
+			b10 += b7;
+			b7 = ((b7 << 49) | (b7 >>> 15)) ^ b10;
+			b12 += b3;
+			b3 = ((b3 << 18) | (b3 >>> 46)) ^ b12;
+			b14 += b5;
+			b5 = ((b5 << 23) | (b5 >>> 41)) ^ b14;
+			b8 += b1;
+			b1 = ((b1 << 52) | (b1 >>> 12)) ^ b8;
+
+			b0 += b7;
+			b7 = ((b7 << 33) | (b7 >>> 31)) ^ b0;
+			b2 += b5;
+			b5 = ((b5 << 4) | (b5 >>> 60)) ^ b2;
+			b4 += b3;
+			b3 = ((b3 << 51) | (b3 >>> 13)) ^ b4;
+			b6 += b1;
+			b1 = ((b1 << 13) | (b1 >>> 51)) ^ b6;
+			b12 += b15;
+			b15 = ((b15 << 34) | (b15 >>> 30)) ^ b12;
+			b14 += b13;
+			b13 = ((b13 << 41) | (b13 >>> 23)) ^ b14;
+			b8 += b11;
+			b11 = ((b11 << 59) | (b11 >>> 5)) ^ b8;
+			b10 += b9;
+			b9 = ((b9 << 17) | (b9 >>> 47)) ^ b10;
+
+			b0 += b15;
+			b15 = ((b15 << 5) | (b15 >>> 59)) ^ b0;
+			b2 += b11;
+			b11 = ((b11 << 20) | (b11 >>> 44)) ^ b2;
+			b6 += b13;
+			b13 = ((b13 << 48) | (b13 >>> 16)) ^ b6;
+			b4 += b9;
+			b9 = ((b9 << 41) | (b9 >>> 23)) ^ b4;
+			b14 += b1;
+			b1 = ((b1 << 47) | (b1 >>> 17)) ^ b14;
+			b8 += b5;
+			b5 = ((b5 << 28) | (b5 >>> 36)) ^ b8;
+			b10 += b3;
+			b3 = ((b3 << 16) | (b3 >>> 48)) ^ b10;
+			b12 += b7;
+			b7 = ((b7 << 25) | (b7 >>> 39)) ^ b12;
+
+			b0 += subKeys[k + 16];
+			b1 += subKeys[k + 17];
+			b2 += subKeys[k + 18];
+			b3 += subKeys[k + 19];
+			b4 += subKeys[k + 20];
+			b5 += subKeys[k + 21];
+			b6 += subKeys[k + 22];
+			b7 += subKeys[k + 23];
+			b8 += subKeys[k + 24];
+			b9 += subKeys[k + 25];
+			b10 += subKeys[k + 26];
+			b11 += subKeys[k + 27];
+			b12 += subKeys[k + 28];
+			b13 += subKeys[k + 29];
+			b14 += subKeys[k + 30];
+			b15 += subKeys[k + 31];
+
+			b0 += b1;
+			b1 = ((b1 << 41) | (b1 >>> 23)) ^ b0;
+			b2 += b3;
+			b3 = ((b3 << 9) | (b3 >>> 55)) ^ b2;
+			b4 += b5;
+			b5 = ((b5 << 37) | (b5 >>> 27)) ^ b4;
+			b6 += b7;
+			b7 = ((b7 << 31) | (b7 >>> 33)) ^ b6;
+			b8 += b9;
+			b9 = ((b9 << 12) | (b9 >>> 52)) ^ b8;
+			b10 += b11;
+			b11 = ((b11 << 47) | (b11 >>> 17)) ^ b10;
+			b12 += b13;
+			b13 = ((b13 << 44) | (b13 >>> 20)) ^ b12;
+			b14 += b15;
+			b15 = ((b15 << 30) | (b15 >>> 34)) ^ b14;
+
+			b0 += b9;
+			b9 = ((b9 << 16) | (b9 >>> 48)) ^ b0;
+			b2 += b13;
+			b13 = ((b13 << 34) | (b13 >>> 30)) ^ b2;
+			b6 += b11;
+			b11 = ((b11 << 56) | (b11 >>> 8)) ^ b6;
+			b4 += b15;
+			b15 = ((b15 << 51) | (b15 >>> 13)) ^ b4;
+			b10 += b7;
+			b7 = ((b7 << 4) | (b7 >>> 60)) ^ b10;
+			b12 += b3;
+			b3 = ((b3 << 53) | (b3 >>> 11)) ^ b12;
+			b14 += b5;
+			b5 = ((b5 << 42) | (b5 >>> 22)) ^ b14;
+			b8 += b1;
+			b1 = ((b1 << 41) | (b1 >>> 23)) ^ b8;
+
+			b0 += b7;
+			b7 = ((b7 << 31) | (b7 >>> 33)) ^ b0;
+			b2 += b5;
+			b5 = ((b5 << 44) | (b5 >>> 20)) ^ b2;
+			b4 += b3;
+			b3 = ((b3 << 47) | (b3 >>> 17)) ^ b4;
+			b6 += b1;
+			b1 = ((b1 << 46) | (b1 >>> 18)) ^ b6;
+			b12 += b15;
+			b15 = ((b15 << 19) | (b15 >>> 45)) ^ b12;
+			b14 += b13;
+			b13 = ((b13 << 42) | (b13 >>> 22)) ^ b14;
+			b8 += b11;
+			b11 = ((b11 << 44) | (b11 >>> 20)) ^ b8;
+			b10 += b9;
+			b9 = ((b9 << 25) | (b9 >>> 39)) ^ b10;
+
+			b0 += b15;
+			b15 = ((b15 << 9) | (b15 >>> 55)) ^ b0;
+			b2 += b11;
+			b11 = ((b11 << 48) | (b11 >>> 16)) ^ b2;
+			b6 += b13;
+			b13 = ((b13 << 35) | (b13 >>> 29)) ^ b6;
+			b4 += b9;
+			b9 = ((b9 << 52) | (b9 >>> 12)) ^ b4;
+			b14 += b1;
+			b1 = ((b1 << 23) | (b1 >>> 41)) ^ b14;
+			b8 += b5;
+			b5 = ((b5 << 31) | (b5 >>> 33)) ^ b8;
+			b10 += b3;
+			b3 = ((b3 << 37) | (b3 >>> 27)) ^ b10;
+			b12 += b7;
+			b7 = ((b7 << 20) | (b7 >>> 44)) ^ b12;
+		}
+
+		out[outOff] = b0 + subKeys[320];
+		out[outOff + 1] = b1 + subKeys[321];
+		out[outOff + 2] = b2 + subKeys[322];
+		out[outOff + 3] = b3 + subKeys[323];
+		out[outOff + 4] = b4 + subKeys[324];
+		out[outOff + 5] = b5 + subKeys[325];
+		out[outOff + 6] = b6 + subKeys[326];
+		out[outOff + 7] = b7 + subKeys[327];
+		out[outOff + 8] = b8 + subKeys[328];
+		out[outOff + 9] = b9 + subKeys[329];
+		out[outOff + 10] = b10 + subKeys[330];
+		out[outOff + 11] = b11 + subKeys[331];
+		out[outOff + 12] = b12 + subKeys[332];
+		out[outOff + 13] = b13 + subKeys[333];
+		out[outOff + 14] = b14 + subKeys[334];
+		out[outOff + 15] = b15 + subKeys[335];
+	}
+
+	/**
+	 * Decrypts one block of words. Input and output may be the same array.
+	 * 
+	 * @param subKeys
+	 *            expanded key, subkeys stored one after another
+	 */
+	static void decryptBlock(long[] subKeys, long[] in, int inOff, long[] out, int outOff) {
+		long b0 = in[inOff] - subKeys[320];
+		long b1 = in[inOff + 1] - subKeys[321];
+		long b2 = in[inOff + 2] - subKeys[322];
+		long b3 = in[inOff + 3] - subKeys[323];
+		long b4 = in[inOff + 4] - subKeys[324];
+		long b5 = in[inOff + 5] - subKeys[325];
+		long b6 = in[inOff + 6] - subKeys[326];
+		long b7 = in[inOff + 7] - subKeys[327];
+		long b8 = in[inOff + 8] - subKeys[328];
+		long b9 = in[inOff + 9] - subKeys[329];
+		long b10 = in[inOff + 10] - subKeys[330];
+		long b11 = in[inOff + 11] - subKeys[331];
+		long b12 = in[inOff + 12] - subKeys[332];
+		long b13 = in[inOff + 13] - subKeys[333];
+		long b14 = in[inOff + 14] - subKeys[334];
+		long b15 = in[inOff + 15] - subKeys[335];
+
+		for (int k = 304; k > 0; k -= 32) {
+			b15 ^= b0;
+			b15 = (b15 >>> 9) | (b15 << 55);
+			b0 -= b15;
+			b11 ^= b2;
+			b11 = (b11 >>> 48) | (b11 << 16);
+			b2 -= b11;
+			b13 ^= b6;
+			b13 = (b13 >>> 35) | (b13 << 29);
+			b6 -= b13;
+			b9 ^= b4;
+			b9 = (b9 >>> 52) | (b9 << 12);
+			b4 -= b9;
+			b1 ^= b14;
+			b1 = (b1 >>> 23) | (b1 << 41);
+			b14 -= b1;
+			b5 ^= b8;
+			b5 = (b5 >>> 31) | (b5 << 33);
+			b8 -= b5;
+			b3 ^= b10;
+			b3 = (b3 >>> 37) | (b3 << 27);
+			b10 -= b3;
+			b7 ^= b12;
+			b7 = (b7 >>> 20) | (b7 << 44);
+			b12 -= b7;
+
+			b7 ^= b0;
+			b7 = (b7 >>> 31) | (b7 << 33);
+			b0 -= b7;
+			b5 ^= b2;
+			b5 = (b5 >>> 44) | (b5 << 20);
+			b2 -= b5;
+			b3 ^= b4;
+			b3 = (b3 >>> 47) | (b3 << 17);
+			b4 -= b3;
+			b1 ^= b6;
+			b1 = (b1 >>> 46) | (b1 << 18);
+			b6 -= b1;
+			b15 ^= b12;
+			b15 = (b15 >>> 19) | (b15 << 45);
+			b12 -= b15;
+			b13 ^= b14;
+			b13 = (b13 >>> 42) | (b13 << 22);
+			b14 -= b13;
+			b11 ^= b8;
+			b11 = (b11 >>> 44) | (b11 << 20);
+			b8 -= b11;
+			b9 ^= b10;
+			b9 = (b9 >>> 25) | (b9 << 39);
+			b10 -= b9;
+
+			b9 ^= b0;
+			b9 = (b9 >>> 16) | (b9 << 48);
+			b0 -= b9;
+			b13 ^= b2;
+			b13 = (b13 >>> 34) | (b13 << 30);
+			b2 -= b13;
+			b11 ^= b6;
+			b11 = (b11 >>> 56) | (b11 << 8);
+			b6 -= b11;
+			b15 ^= b4;
+			b15 = (b15 >>> 51) | (b15 << 13);
+			b4 -= b15;
+			b7 ^= b10;
+			b7 = (b7 >>> 4) | (b7 << 60);
+			b10 -= b7;
+			b3 ^= b12;
+			b3 = (b3 >>> 53) | (b3 << 11);
+			b12 -= b3;
+			b5 ^= b14;
+			b5 = (b5 >>> 42) | (b5 << 22);
+			b14 -= b5;
+			b1 ^= b8;
+			b1 = (b1 >>> 41) | (b1 << 23);
+			b8 -= b1;
+
+			b1 ^= b0;
+			b1 = (b1 >>> 41) | (b1 << 23);
+			b0 -= b1;
+			b3 ^= b2;
+			b3 = (b3 >>> 9) | (b3 << 55);
+			b2 -= b3;
+			b5 ^= b4;
+			b5 = (b5 >>> 37) | (b5 << 27);
+			b4 -= b5;
+			b7 ^= b6;
+			b7 = (b7 >>> 31) | (b7 << 33);
+			b6 -= b7;
+			b9 ^= b8;
+			b9 = (b9 >>> 12) | (b9 << 52);
+			b8 -= b9;
+			b11 ^= b10;
+			b11 = (b11 >>> 47) | (b11 << 17);
+			b10 -= b11;
+			b13 ^= b12;
+			b13 = (b13 >>> 44) | (b13 << 20);
+			b12 -= b13;
+			b15 ^= b14;
+			b15 = (b15 >>> 30) | (b15 << 34);
+			b14 -= b15;
+
+			b0 -= subKeys[k];
+			b1 -= subKeys[k + 1];
+			b2 -= subKeys[k + 2];
+			b3 -= subKeys[k + 3];
+			b4 -= subKeys[k + 4];
+			b5 -= subKeys[k + 5];
+			b6 -= subKeys[k + 6];
+			b7 -= subKeys[k + 7];
+			b8 -= subKeys[k + 8];
+			b9 -= subKeys[k + 9];
+			b10 -= subKeys[k + 10];
+			b11 -= subKeys[k + 11];
+			b12 -= subKeys[k + 12];
+			b13 -= subKeys[k + 13];
+			b14 -= subKeys[k + 14];
+			b15 -= subKeys[k + 15];
+
+			b15 ^= b0;
+			b15 = (b15 >>> 5) | (b15 << 59);
+			b0 -= b15;
+			b11 ^= b2;
+			b11 = (b11 >>> 20) | (b11 << 44);
+			b2 -= b11;
+			b13 ^= b6;
+			b13 = (b13 >>> 48) | (b13 << 16);
+			b6 -= b13;
+			b9 ^= b4;
+			b9 = (b9 >>> 41) | (b9 << 23);
+			b4 -= b9;
+			b1 ^= b14;
+			b1 = (b1 >>> 47) | (b1 << 17);
+			b14 -= b1;
+			b5 ^= b8;
+			b5 = (b5 >>> 28) | (b5 << 36);
+			b8 -= b5;
+			b3 ^= b10;
+			b3 = (b3 >>> 16) | (b3 << 48);
+			b10 -= b3;
+			b7 ^= b12;
+			b7 = (b7 >>> 25) | (b7 << 39);
+			b12 -= b7;
+
+			b7 ^= b0;
+			b7 = (b7 >>> 33) | (b7 << 31);
+			b0 -= b7;
+			b5 ^= b2;
+			b5 = (b5 >>> 4) | (b5 << 60);
+			b2 -= b5;
+			b3 ^= b4;
+			b3 = (b3 >>> 51) | (b3 << 13);
+			b4 -= b3;
+			b1 ^= b6;
+			b1 = (b1 >>> 13) | (b1 << 51);
+			b6 -= b1;
+			b15 ^= b12;
+			b15 = (b15 >>> 34) | (b15 << 30);
+			b12 -= b15;
+			b13 ^= b14;
+			b13 = (b13 >>> 41) | (b13 << 23);
+			b14 -= b13;
+			b11 ^= b8;
+			b11 = (b11 >>> 59) | (b11 << 5);
+			b8 -= b11;
+			b9 ^= b10;
+			b9 = (b9 >>> 17) | (b9 << 47);
+			b10 -= b9;
+
+			b9 ^= b0;
+			b9 = (b9 >>> 38) | (b9 << 26);
+			b0 -= b9;
+			b13 ^= b2;
+			b13 = (b13 >>> 19) | (b13 << 45);
+			b2 -= b13;
+			b11 ^= b6;
+			b11 = (b11 >>> 10) | (b11 << 54);
+			b6 -= b11;
+			b15 ^= b4;
+			b15 = (b15 >>> 55) | (b15 << 9);
+			b4 -= b15;
+			b7 ^= b10;
+			b7 = (b7 >>> 49) | (b7 << 15);
+			b10 -= b7;
+			b3 ^= b12;
+			b3 = (b3 >>> 18) | (b3 << 46);
+			b12 -= b3;
+			b5 ^= b14;
+			b5 = (b5 >>> 23) | (b5 << 41);
+			b14 -= b5;
+			b1 ^= b8;
+			b1 = (b1 >>> 52) | (b1 << 12);
+			b8 -= b1;
+
+			b1 ^= b0;
+			b1 = (b1 >>> 24) | (b1 << 40);
+			b0 -= b1;
+			b3 ^= b2;
+			b3 = (b3 >>> 13) | (b3 << 51);
+			b2 -= b3;
+			b5 ^= b4;
+			b5 = (b5 >>> 8) | (b5 << 56);
+			b4 -= b5;
+			b7 ^= b6;
+			b7 = (b7 >>> 47) | (b7 << 17);
+			b6 -= b7;
+			b9 ^= b8;
+			b9 = (b9 >>> 8) | (b9 << 56);
+			b8 -= b9;
+			b11 ^= b10;
+			b11 = (b11 >>> 17) | (b11 << 47);
+			b10 -= b11;
+			b13 ^= b12;
+			b13 = (b13 >>> 22) | (b13 << 42);
+			b12 -= b13;
+			b15 ^= b14;
+			b15 = (b15 >>> 37) | (b15 << 27);
+			b14 -= b15;
+
+			b0 -= subKeys[k - 16];
+			b1 -= subKeys[k - 15];
+			b2 -= subKeys[k - 14];
+			b3 -= subKeys[k - 13];
+			b4 -= subKeys[k - 12];
+			b5 -= subKeys[k - 11];
+			b6 -= subKeys[k - 10];
+			b7 -= subKeys[k - 9];
+			b8 -= subKeys[k - 8];
+			b9 -= subKeys[k - 7];
+			b10 -= subKeys[k - 6];
+			b11 -= subKeys[k - 5];
+			b12 -= subKeys[k - 4];
+			b13 -= subKeys[k - 3];
+			b14 -= subKeys[k - 2];
+			b15 -= subKeys[k - 1];
+		}
+
+		out[outOff] = b0;
+		out[outOff + 1] = b1;
+		out[outOff + 2] = b2;
+		out[outOff + 3] = b3;
+		out[outOff + 4] = b4;
+		out[outOff + 5] = b5;
+		out[outOff + 6] = b6;
+		out[outOff + 7] = b7;
+		out[outOff + 8] = b8;
+		out[outOff + 9] = b9;
+		out[outOff + 10] = b10;
+		out[outOff + 11] = b11;
+		out[outOff + 12] = b12;
+		out[outOff + 13] = b13;
+		out[outOff + 14] = b14;
+		out[outOff + 15] = b15;
+	}
+
+	/**
+	 * Decrypts consecutive blocks of words. Single block already has eight
+	 * independent mixes per round, so blocks are not interleaved.
+	 */
+	static void decryptBlocks(long[] subKeys, long[] in, int inOff, long[] out, int outOff, int blockCount) {
+		for (int i = 0; i < blockCount; i++) {
+			decryptBlock(subKeys, in, inOff + i * 16, out, outOff + i * 16);
+		}
+	}
+
+	/**
+	 * Encrypts consecutive blocks of words. Single block already has eight
+	 * independent mixes per round, so blocks are not interleaved.
+	 */
+	static void encryptBlocks(long[] subKeys, long[] in, int inOff, long[] out, int outOff, int blockCount) {
+		for (int i = 0; i < blockCount; i++) {
+			encryptBlock(subKeys, in, inOff + i * 16, out, outOff + i * 16);
+		}
+	}
+
+	/**
+	 * Encrypts one block of words, computing subkeys during injection.
+	 * Input and output may be the same array.
+	 * 
+	 * @param kw
+	 *            extended key words, stored twice
+	 * @param t
+	 *            tweak words, first two repeated at the end
+	 */
+	static void encryptBlock(long[] kw, long[] t, long[] in, int inOff, long[] out, int outOff) {
+		long b0 = in[inOff];
+		long b1 = in[inOff + 1];
+		long b2 = in[inOff + 2];
+		long b3 = in[inOff + 3];
+		long b4 = in[inOff + 4];
+		long b5 = in[inOff + 5];
+		long b6 = in[inOff + 6];
+		long b7 = in[inOff + 7];
+		long b8 = in[inOff + 8];
+		long b9 = in[inOff + 9];
+		long b10 = in[inOff + 10];
+		long b11 = in[inOff + 11];
+		long b12 = in[inOff + 12];
+		long b13 = in[inOff + 13];
+		long b14 = in[inOff + 14];
+		long b15 = in[inOff + 15];
+
+		for (int s = 0; s < 20; s += 2) {
+			final int m0 = s % 17;
+			final int n0 = s % 3;
+			b0 += kw[m0];
+			b1 += kw[m0 + 1];
+			b2 += kw[m0 + 2];
+			b3 += kw[m0 + 3];
+			b4 += kw[m0 + 4];
+			b5 += kw[m0 + 5];
+			b6 += kw[m0 + 6];
+			b7 += kw[m0 + 7];
+			b8 += kw[m0 + 8];
+			b9 += kw[m0 + 9];
+			b10 += kw[m0 + 10];
+			b11 += kw[m0 + 11];
+			b12 += kw[m0 + 12];
+			b13 += kw[m0 + 13] + t[n0];
+			b14 += kw[m0 + 14] + t[n0 + 1];
+			b15 += kw[m0 + 15] + s;
+
+			b0 += b1;
+			b1 = ((b1 << 24) | (b1 >>> 40)) ^ b0;
+			b2 += b3;
+			b3 = ((b3 << 13) | (b3 >>> 51)) ^ b2;
+			b4 += b5;
+			b5 = ((b5 << 8) | (b5 >>> 56)) ^ b4;
+			b6 += b7;
+			b7 = ((b7 << 47) | (b7 >>> 17)) ^ b6;
+			b8 += b9;
+			b9 = ((b9 << 8) | (b9 >>> 56)) ^ b8;
+			b10 += b11;
+			b11 = ((b11 << 17) | (b11 >>> 47)) ^ b10;
+			b12 += b13;
+			b13 = ((b13 << 22) | (b13 >>> 42)) ^ b12;
+			b14 += b15;
+			b15 = ((b15 << 37) | (b15 >>> 27)) ^ b14;
+
+			b0 += b9;
+			b9 = ((b9 << 38) | (b9 >>> 26)) ^ b0;
+			b2 += b13;
+			b13 = ((b13 << 19) | (b13 >>> 45)) ^ b2;
+			b6 += b11;
+			b11 = ((b11 << 10) | (b11 >>> 54)) ^ b6;
+			b4 += b15;
+			b15 = ((b15 << 55) | (b15 >>> 9)) ^ b4;
+			b10 += b7;
+			b7 = ((b7 << 49) | (b7 >>> 15)) ^ b10;
+			b12 += b3;
+			b3 = ((b3 << 18) | (b3 >>> 46)) ^ b12;
+			b14 += b5;
+			b5 = ((b5 << 23) | (b5 >>> 41)) ^ b14;
+			b8 += b1;
+			b1 = ((b1 << 52) | (b1 >>> 12)) ^ b8;
+
+			b0 += b7;
+			b7 = ((b7 << 33) | (b7 >>> 31)) ^ b0;
+			b2 += b5;
+			b5 = ((b5 << 4) | (b5 >>> 60)) ^ b2;
+			b4 += b3;
+			b3 = ((b3 << 51) | (b3 >>> 13)) ^ b4;
+			b6 += b1;
+			b1 = ((b1 << 13) | (b1 >>> 51)) ^ b6;
+			b12 += b15;
+			b15 = ((b15 << 34) | (b15 >>> 30)) ^ b12;
+			b14 += b13;
+			b13 = ((b13 << 41) | (b13 >>> 23)) ^ b14;
+			b8 += b11;
+			b11 = ((b11 << 59) | (b11 >>> 5)) ^ b8;
+			b10 += b9;
+			b9 = ((b9 << 17) | (b9 >>> 47)) ^ b10;
+
+			b0 += b15;
+			b15 = ((b15 << 5) | (b15 >>> 59)) ^ b0;
+			b2 += b11;
+			b11 = ((b11 << 20) | (b11 >>> 44)) ^ b2;
+			b6 += b13;
+			b13 = ((b13 << 48) | (b13 >>> 16)) ^ b6;
+			b4 += b9;
+			b9 = ((b9 << 41) | (b9 >>> 23)) ^ b4;
+			b14 += b1;
+			b1 = ((b1 << 47) | (b1 >>> 17)) ^ b14;
+			b8 += b5;
+			b5 = ((b5 << 28) | (b5 >>> 36)) ^ b8;
+			b10 += b3;
+			b3 = ((b3 << 16) | (b3 >>> 48)) ^ b10;
+			b12 += b7;
+			b7 = ((b7 << 25) | (b7 >>> 39)) ^ b12;
+
+			final int m1 = (s + 1) % 17;
+			final int n1 = (s + 1) % 3;
+			b0 += kw[m1];
+			b1 += kw[m1 + 1];
+			b2 += kw[m1 + 2];
+			b3 += kw[m1 + 3];
+			b4 += kw[m1 + 4];
+			b5 += kw[m1 + 5];
+			b6 += kw[m1 + 6];
+			b7 += kw[m1 + 7];
+			b8 += kw[m1 + 8];
+			b9 += kw[m1 + 9];
+			b10 += kw[m1 + 10];
+			b11 += kw[m1 + 11];
+			b12 += kw[m1 + 12];
+			b13 += kw[m1 + 13] + t[n1];
+			b14 += kw[m1 + 14] + t[n1 + 1];
+			b15 += kw[m1 + 15] + s + 1;
+
+			b0 += b1;
+			b1 = ((b1 << 41) | (b1 >>> 23)) ^ b0;
+			b2 += b3;
+			b3 = ((b3 << 9) | (b3 >>> 55)) ^ b2;
+			b4 += b5;
+			b5 = ((b5 << 37) | (b5 >>> 27)) ^ b4;
+			b6 += b7;
+			b7 = ((b7 << 31) | (b7 >>> 33)) ^ b6;
+			b8 += b9;
+			b9 = ((b9 << 12) | (b9 >>> 52)) ^ b8;
+			b10 += b11;
+			b11 = ((b11 << 47) | (b11 >>> 17)) ^ b10;
+			b12 += b13;
+			b13 = ((b13 << 44) | (b13 >>> 20)) ^ b12;
+			b14 += b15;
+			b15 = ((b15 << 30) | (b15 >>> 34)) ^ b14;
+
+			b0 += b9;
+			b9 = ((b9 << 16) | (b9 >>> 48)) ^ b0;
+			b2 += b13;
+			b13 = ((b13 << 34) | (b13 >>> 30)) ^ b2;
+			b6 += b11;
+			b11 = ((b11 << 56) | (b11 >>> 8)) ^ b6;
+			b4 += b15;
+			b15 = ((b15 << 51) | (b15 >>> 13)) ^ b4;
+			b10 += b7;
+			b7 = ((b7 << 4) | (b7 >>> 60)) ^ b10;
+			b12 += b3;
+			b3 = ((b3 << 53) | (b3 >>> 11)) ^ b12;
+			b14 += b5;
+			b5 = ((b5 << 42) | (b5 >>> 22)) ^ b14;
+			b8 += b1;
+			b1 = ((b1 << 41) | (b1 >>> 23)) ^ b8;
+
+			b0 += b7;
+			b7 = ((b7 << 31) | (b7 >>> 33)) ^ b0;
+			b2 += b5;
+			b5 = ((b5 << 44) | (b5 >>> 20)) ^ b2;
+			b4 += b3;
+			b3 = ((b3 << 47) | (b3 >>> 17)) ^ b4;
+			b6 += b1;
+			b1 = ((b1 << 46) | (b1 >>> 18)) ^ b6;
+			b12 += b15;
+			b15 = ((b15 << 19) | (b15 >>> 45)) ^ b12;
+			b14 += b13;
+			b13 = ((b13 << 42) | (b13 >>> 22)) ^ b14;
+			b8 += b11;
+			b11 = ((b11 << 44) | (b11 >>> 20)) ^ b8;
+			b10 += b9;
+			b9 = ((b9 << 25) | (b9 >>> 39)) ^ b10;
+
+			b0 += b15;
+			b15 = ((b15 << 9) | (b15 >>> 55)) ^ b0;
+			b2 += b11;
+			b11 = ((b11 << 48) | (b11 >>> 16)) ^ b2;
+			b6 += b13;
+			b13 = ((b13 << 35) | (b13 >>> 29)) ^ b6;
+			b4 += b9;
+			b9 = ((b9 << 52) | (b9 >>> 12)) ^ b4;
+			b14 += b1;
+			b1 = ((b1 << 23) | (b1 >>> 41)) ^ b14;
+			b8 += b5;
+			b5 = ((b5 << 31) | (b5 >>> 33)) ^ b8;
+			b10 += b3;
+			b3 = ((b3 << 37) | (b3 >>> 27)) ^ b10;
+			b12 += b7;
+			b7 = ((b7 << 20) | (b7 >>> 44)) ^ b12;
+		}
+
+		final int m = 3;
+		final int n = 2;
+		out[outOff] = b0 + kw[m];
+		out[outOff + 1] = b1 + kw[m + 1];
+		out[outOff + 2] = b2 + kw[m + 2];
+		out[outOff + 3] = b3 + kw[m + 3];
+		out[outOff + 4] = b4 + kw[m + 4];
+		out[outOff + 5] = b5 + kw[m + 5];
+		out[outOff + 6] = b6 + kw[m + 6];
+		out[outOff + 7] = b7 + kw[m + 7];
+		out[outOff + 8] = b8 + kw[m + 8];
+		out[outOff + 9] = b9 + kw[m + 9];
+		out[outOff + 10] = b10 + kw[m + 10];
+		out[outOff + 11] = b11 + kw[m + 11];
+		out[outOff + 12] = b12 + kw[m + 12];
+		out[outOff + 13] = b13 + kw[m + 13] + t[n];
+		out[outOff + 14] = b14 + kw[m + 14] + t[n + 1];
+		out[outOff + 15] = b15 + kw[m + 15] + 20;
+	}
+
+	/**
+	 * Decrypts one block of words, computing subkeys during injection.
+	 * Input and output may be the same array.
+	 * 
+	 * @param kw
+	 *            extended key words, stored twice
+	 * @param t
+	 *            tweak words, first two repeated at the end
+	 */
+	static void decryptBlock(long[] kw, long[] t, long[] in, int inOff, long[] out, int outOff) {
+		final int m = 3;
+		final int n = 2;
+		long b0 = in[inOff] - kw[m];
+		long b1 = in[inOff + 1] - (kw[m + 1]);
+		long b2 = in[inOff + 2] - (kw[m + 2]);
+		long b3 = in[inOff + 3] - (kw[m + 3]);
+		long b4 = in[inOff + 4] - (kw[m + 4]);
+		long b5 = in[inOff + 5] - (kw[m + 5]);
+		long b6 = in[inOff + 6] - (kw[m + 6]);
+		long b7 = in[inOff + 7] - (kw[m + 7]);
+		long b8 = in[inOff + 8] - (kw[m + 8]);
+		long b9 = in[inOff + 9] - (kw[m + 9]);
+		long b10 = in[inOff + 10] - (kw[m + 10]);
+		long b11 = in[inOff + 11] - (kw[m + 11]);
+		long b12 = in[inOff + 12] - (kw[m + 12]);
+		long b13 = in[inOff + 13] - (kw[m + 13] + t[n]);
+		long b14 = in[inOff + 14] - (kw[m + 14] + t[n + 1]);
+		long b15 = in[inOff + 15] - (kw[m + 15] + 20);
+
+		for (int s = 19; s > 0; s -= 2) {
+			b15 ^= b0;
+			b15 = (b15 >>> 9) | (b15 << 55);
+			b0 -= b15;
+			b11 ^= b2;
+			b11 = (b11 >>> 48) | (b11 << 16);
+			b2 -= b11;
+			b13 ^= b6;
+			b13 = (b13 >>> 35) | (b13 << 29);
+			b6 -= b13;
+			b9 ^= b4;
+			b9 = (b9 >>> 52) | (b9 << 12);
+			b4 -= b9;
+			b1 ^= b14;
+			b1 = (b1 >>> 23) | (b1 << 41);
+			b14 -= b1;
+			b5 ^= b8;
+			b5 = (b5 >>> 31) | (b5 << 33);
+			b8 -= b5;
+			b3 ^= b10;
+			b3 = (b3 >>> 37) | (b3 << 27);
+			b10 -= b3;
+			b7 ^= b12;
+			b7 = (b7 >>> 20) | (b7 << 44);
+			b12 -= b7;
+
+			b7 ^= b0;
+			b7 = (b7 >>> 31) | (b7 << 33);
+			b0 -= b7;
+			b5 ^= b2;
+			b5 = (b5 >>> 44) | (b5 << 20);
+			b2 -= b5;
+			b3 ^= b4;
+			b3 = (b3 >>> 47) | (b3 << 17);
+			b4 -= b3;
+			b1 ^= b6;
+			b1 = (b1 >>> 46) | (b1 << 18);
+			b6 -= b1;
+			b15 ^= b12;
+			b15 = (b15 >>> 19) | (b15 << 45);
+			b12 -= b15;
+			b13 ^= b14;
+			b13 = (b13 >>> 42) | (b13 << 22);
+			b14 -= b13;
+			b11 ^= b8;
+			b11 = (b11 >>> 44) | (b11 << 20);
+			b8 -= b11;
+			b9 ^= b10;
+			b9 = (b9 >>> 25) | (b9 << 39);
+			b10 -= b9;
+
+			b9 ^= b0;
+			b9 = (b9 >>> 16) | (b9 << 48);
+			b0 -= b9;
+			b13 ^= b2;
+			b13 = (b13 >>> 34) | (b13 << 30);
+			b2 -= b13;
+			b11 ^= b6;
+			b11 = (b11 >>> 56) | (b11 << 8);
+			b6 -= b11;
+			b15 ^= b4;
+			b15 = (b15 >>> 51) | (b15 << 13);
+			b4 -= b15;
+			b7 ^= b10;
+			b7 = (b7 >>> 4) | (b7 << 60);
+			b10 -= b7;
+			b3 ^= b12;
+			b3 = (b3 >>> 53) | (b3 << 11);
+			b12 -= b3;
+			b5 ^= b14;
+			b5 = (b5 >>> 42) | (b5 << 22);
+			b14 -= b5;
+			b1 ^= b8;
+			b1 = (b1 >>> 41) | (b1 << 23);
+			b8 -= b1;
+
+			b1 ^= b0;
+			b1 = (b1 >>> 41) | (b1 << 23);
+			b0 -= b1;
+			b3 ^= b2;
+			b3 = (b3 >>> 9) | (b3 << 55);
+			b2 -= b3;
+			b5 ^= b4;
+			b5 = (b5 >>> 37) | (b5 << 27);
+			b4 -= b5;
+			b7 ^= b6;
+			b7 = (b7 >>> 31) | (b7 << 33);
+			b6 -= b7;
+			b9 ^= b8;
+			b9 = (b9 >>> 12) | (b9 << 52);
+			b8 -= b9;
+			b11 ^= b10;
+			b11 = (b11 >>> 47) | (b11 << 17);
+			b10 -= b11;
+			b13 ^= b12;
+			b13 = (b13 >>> 44) | (b13 << 20);
+			b12 -= b13;
+			b15 ^= b14;
+			b15 = (b15 >>> 30) | (b15 << 34);
+			b14 -= b15;
+
+			final int m1 = s % 17;
+			final int n1 = s % 3;
+			b0 -= kw[m1];
+			b1 -= (kw[m1 + 1]);
+			b2 -= (kw[m1 + 2]);
+			b3 -= (kw[m1 + 3]);
+			b4 -= (kw[m1 + 4]);
+			b5 -= (kw[m1 + 5]);
+			b6 -= (kw[m1 + 6]);
+			b7 -= (kw[m1 + 7]);
+			b8 -= (kw[m1 + 8]);
+			b9 -= (kw[m1 + 9]);
+			b10 -= (kw[m1 + 10]);
+			b11 -= (kw[m1 + 11]);
+			b12 -= (kw[m1 + 12]);
+			b13 -= (kw[m1 + 13] + t[n1]);
+			b14 -= (kw[m1 + 14] + t[n1 + 1]);
+			b15 -= (kw[m1 + 15] + s);
+
+			b15 ^= b0;
+			b15 = (b15 >>> 5) | (b15 << 59);
+			b0 -= b15;
+			b11 ^= b2;
+			b11 = (b11 >>> 20) | (b11 << 44);
+			b2 -= b11;
+			b13 ^= b6;
+			b13 = (b13 >>> 48) | (b13 << 16);
+			b6 -= b13;
+			b9 ^= b4;
+			b9 = (b9 >>> 41) | (b9 << 23);
+			b4 -= b9;
+			b1 ^= b14;
+			b1 = (b1 >>> 47) | (b1 << 17);
+			b14 -= b1;
+			b5 ^= b8;
+			b5 = (b5 >>> 28) | (b5 << 36);
+			b8 -= b5;
+			b3 ^= b10;
+			b3 = (b3 >>> 16) | (b3 << 48);
+			b10 -= b3;
+			b7 ^= b12;
+			b7 = (b7 >>> 25) | (b7 << 39);
+			b12 -= b7;
+
+			b7 ^= b0;
+			b7 = (b7 >>> 33) | (b7 << 31);
+			b0 -= b7;
+			b5 ^= b2;
+			b5 = (b5 >>> 4) | (b5 << 60);
+			b2 -= b5;
+			b3 ^= b4;
+			b3 = (b3 >>> 51) | (b3 << 13);
+			b4 -= b3;
+			b1 ^= b6;
+			b1 = (b1 >>> 13) | (b1 << 51);
+			b6 -= b1;
+			b15 ^= b12;
+			b15 = (b15 >>> 34) | (b15 << 30);
+			b12 -= b15;
+			b13 ^= b14;
+			b13 = (b13 >>> 41) | (b13 << 23);
+			b14 -= b13;
+			b11 ^= b8;
+			b11 = (b11 >>> 59) | (b11 << 5);
+			b8 -= b11;
+			b9 ^= b10;
+			b9 = (b9 >>> 17) | (b9 << 47);
+			b10 -= b9;
+
+			b9 ^= b0;
+			b9 = (b9 >>> 38) | (b9 << 26);
+			b0 -= b9;
+			b13 ^= b2;
+			b13 = (b13 >>> 19) | (b13 << 45);
+			b2 -= b13;
+			b11 ^= b6;
+			b11 = (b11 >>> 10) | (b11 << 54);
+			b6 -= b11;
+			b15 ^= b4;
+			b15 = (b15 >>> 55) | (b15 << 9);
+			b4 -= b15;
+			b7 ^= b10;
+			b7 = (b7 >>> 49) | (b7 << 15);
+			b10 -= b7;
+			b3 ^= b12;
+			b3 = (b3 >>> 18) | (b3 << 46);
+			b12 -= b3;
+			b5 ^= b14;
+			b5 = (b5 >>> 23) | (b5 << 41);
+			b14 -= b5;
+			b1 ^= b8;
+			b1 = (b1 >>> 52) | (b1 << 12);
+			b8 -= b1;
+
+			b1 ^= b0;
+			b1 = (b1 >>> 24) | (b1 << 40);
+			b0 -= b1;
+			b3 ^= b2;
+			b3 = (b3 >>> 13) | (b3 << 51);
+			b2 -= b3;
+			b5 ^= b4;
+			b5 = (b5 >>> 8) | (b5 << 56);
+			b4 -= b5;
+			b7 ^= b6;
+			b7 = (b7 >>> 47) | (b7 << 17);
+			b6 -= b7;
+			b9 ^= b8;
+			b9 = (b9 >>> 8) | (b9 << 56);
+			b8 -= b9;
+			b11 ^= b10;
+			b11 = (b11 >>> 17) | (b11 << 47);
+			b10 -= b11;
+			b13 ^= b12;
+			b13 = (b13 >>> 22) | (b13 << 42);
+			b12 -= b13;
+			b15 ^= b14;
+			b15 = (b15 >>> 37) | (b15 << 27);
+			b14 -= b15;
+
+			final int m0 = (s - 1) % 17;
+			final int n0 = (s - 1) % 3;
+			b0 -= kw[m0];
+			b1 -= (kw[m0 + 1]);
+			b2 -= (kw[m0 + 2]);
+			b3 -= (kw[m0 + 3]);
+			b4 -= (kw[m0 + 4]);
+			b5 -= (kw[m0 + 5]);
+			b6 -= (kw[m0 + 6]);
+			b7 -= (kw[m0 + 7]);
+			b8 -= (kw[m0 + 8]);
+			b9 -= (kw[m0 + 9]);
+			b10 -= (kw[m0 + 10]);
+			b11 -= (kw[m0 + 11]);
+			b12 -= (kw[m0 + 12]);
+			b13 -= (kw[m0 + 13] + t[n0]);
+			b14 -= (kw[m0 + 14] + t[n0 + 1]);
+			b15 -= (kw[m0 + 15] + s - 1);
+		}
+
+		out[outOff] = b0;
+		out[outOff + 1] = b1;
+		out[outOff + 2] = b2;
+		out[outOff + 3] = b3;
+		out[outOff + 4] = b4;
+		out[outOff + 5] = b5;
+		out[outOff + 6] = b6;
+		out[outOff + 7] = b7;
+		out[outOff + 8] = b8;
+		out[outOff + 9] = b9;
+		out[outOff + 10] = b10;
+		out[outOff + 11] = b11;
+		out[outOff + 12] = b12;
+		out[outOff + 13] = b13;
+		out[outOff + 14] = b14;
+		out[outOff + 15] = b15;
+	}
+
+}
@@ -0,0 +1,654 @@
+package org.bouncycastle.crypto.engines;
+
+/**
+ * Threefish with 256 bits block and key.
+ * 
+ * Rounds are unrolled eight at a time (one pair of subkey injections),
+ * rotation constants are hardcoded and word permutation is done by renaming
+ * variables, so whole state is kept in local variables.
+ * 
+ */
+public class Threefish256Engine extends ThreefishEngine {
+
+	public Threefish256Engine() {
+		super(256);
+	}
+
+	private Threefish256Engine(Threefish256Engine engine) {
+		super(engine);
+	}
+
+	@Override
+	public Threefish256Engine copy() {
+		return new Threefish256Engine(this);
+	}
+
+	/**
+	 * Encrypts one block of words. Input and output may be the same array.
+	 * 
+	 * @param subKeys
+	 *            expanded key, subkeys stored one after another
+	 */
+	static void encryptBlock(long[] subKeys, long[] in, int inOff, long[] out, int outOff) {
+		long b0 = in[inOff];
+		long b1 = in[inOff + 1];
+		long b2 = in[inOff + 2];
+		long b3 = in[inOff + 3];
+
+		for (int k = 0; k < 72; k += 8) {
+			b0 += subKeys[k];
+			b1 += subKeys[k + 1];
+			b2 += subKeys[k + 2];
+			b3 += subKeys[k + 3];
+
+			b0 += b1;
+			b1 = ((b1 << 14) | (b1 >>> 50)) ^ b0;
+			b2 += b3;
+			b3 = ((b3 << 16) | (b3 >>> 48)) ^ b2;
+
+			b0 += b3;
+			b3 = ((b3 << 52) | (b3 >>> 12)) ^ b0;
+			b2 += b1;
+			b1 = ((b1 << 57) | (b1 >>> 7)) ^ b2;
+
+			b0 += b1;
+			b1 = ((b1 << 23) | (b1 >>> 41)) ^ b0;
+			b2 += b3;
+			b3 = ((b3 << 40) | (b3 >>> 24)) ^ b2;
+
+			b0 += b3;
+			b3 = ((b3 << 5) | (b3 >>> 59)) ^ b0;
+			b2 += b1;
+			b1 = ((b1 << 37) | (b1 >>> 27)) ^ b2;
+
+			b0 += subKeys[k + 4];
+			b1 += subKeys[k + 5];
+			b2 += subKeys[k + 6];
+			b3 += subKeys[k + 7];
+
+			b0 += b1;
+			b1 = ((b1 << 25) | (b1 >>> 39)) ^ b0;
+			b2 += b3;
+			b3 = ((b3 << 33) | (b3 >>> 31)) ^ b2;
+
+			b0 += b3;
+			b3 = ((b3 << 46) | (b3 >>> 18)) ^ b0;
+			b2 += b1;
+			b1 = ((b1 << 12) | (b1 >>> 52)) ^ b2;
+
+			b0 += b1;
+			b1 = ((b1 << 58) | (b1 >>> 6)) ^ b0;
+			b2 += b3;
+			b3 = ((b3 << 22) | (b3 >>> 42)) ^ b2;
+
+			b0 += b3;
+			b3 = ((b3 << 32) | (b3 >>> 32)) ^ b0;
+			b2 += b1;
+			b1 = ((b1 << 32) | (b1 >>> 32)) ^ b2;
+		}
+
+		out[outOff] = b0 + subKeys[72];
+		out[outOff + 1] = b1 + subKeys[73];
+		out[outOff + 2] = b2 + subKeys[74];
+		out[outOff + 3] = b3 + subKeys[75];
+	}
+
+	/**
+	 * Decrypts one block of words. Input and output may be the same array.
+	 * 
+	 * @param subKeys
+	 *            expanded key, subkeys stored one after another
+	 */
+	static void decryptBlock(long[] subKeys, long[] in, int inOff, long[] out, int outOff) {
+		long b0 = in[inOff] - subKeys[72];
+		long b1 = in[inOff + 1] - subKeys[73];
+		long b2 = in[inOff + 2] - subKeys[74];
+		long b3 = in[inOff + 3] - subKeys[75];
+
+		for (int k = 68; k > 0; k -= 8) {
+			b3 ^= b0;
+			b3 = (b3 >>> 32) | (b3 << 32);
+			b0 -= b3;
+			b1 ^= b2;
+			b1 = (b1 >>> 32) | (b1 << 32);
+			b2 -= b1;
+
+			b1 ^= b0;
+			b1 = (b1 >>> 58) | (b1 << 6);
+			b0 -= b1;
+			b3 ^= b2;
+			b3 = (b3 >>> 22) | (b3 << 42);
+			b2 -= b3;
+
+			b3 ^= b0;
+			b3 = (b3 >>> 46) | (b3 << 18);
+			b0 -= b3;
+			b1 ^= b2;
+			b1 = (b1 >>> 12) | (b1 << 52);
+			b2 -= b1;
+
+			b1 ^= b0;
+			b1 = (b1 >>> 25) | (b1 << 39);
+			b0 -= b1;
+			b3 ^= b2;
+			b3 = (b3 >>> 33) | (b3 << 31);
+			b2 -= b3;
+
+			b0 -= subKeys[k];
+			b1 -= subKeys[k + 1];
+			b2 -= subKeys[k + 2];
+			b3 -= subKeys[k + 3];
+
+			b3 ^= b0;
+			b3 = (b3 >>> 5) | (b3 << 59);
+			b0 -= b3;
+			b1 ^= b2;
+			b1 = (b1 >>> 37) | (b1 << 27);
+			b2 -= b1;
+
+			b1 ^= b0;
+			b1 = (b1 >>> 23) | (b1 << 41);
+			b0 -= b1;
+			b3 ^= b2;
+			b3 = (b3 >>> 40) | (b3 << 24);
+			b2 -= b3;
+
+			b3 ^= b0;
+			b3 = (b3 >>> 52) | (b3 << 12);
+			b0 -= b3;
+			b1 ^= b2;
+			b1 = (b1 >>> 57) | (b1 << 7);
+			b2 -= b1;
+
+			b1 ^= b0;
+			b1 = (b1 >>> 14) | (b1 << 50);
+			b0 -= b1;
+			b3 ^= b2;
+			b3 = (b3 >>> 16) | (b3 << 48);
+			b2 -= b3;
+
+			b0 -= subKeys[k - 4];
+			b1 -= subKeys[k - 3];
+			b2 -= subKeys[k - 2];
+			b3 -= subKeys[k - 1];
+		}
+
+		out[outOff] = b0;
+		out[outOff + 1] = b1;
+		out[outOff + 2] = b2;
+		out[outOff + 3] = b3;
+	}
+
+	/**
+	 * Encrypts two consecutive blocks of words with rounds of both blocks
+	 * interleaved. Input and output may be the same array.
+	 * 
+	 * @param subKeys
+	 *            expanded key, subkeys stored one after another
+	 */
+	static void encryptBlock2(long[] subKeys, long[] in, int inOff, long[] out, int outOff) {
+		long x0 = in[inOff];
+		long x1 = in[inOff + 1];
+		long x2 = in[inOff + 2];
+		long x3 = in[inOff + 3];
+		long y0 = in[inOff + 4];
+		long y1 = in[inOff + 5];
+		long y2 = in[inOff + 6];
+		long y3 = in[inOff + 7];
+
+		for (int k = 0; k < 72; k += 8) {
+			x0 += subKeys[k];
+			y0 += subKeys[k];
+			x1 += subKeys[k + 1];
+			y1 += subKeys[k + 1];
+			x2 += subKeys[k + 2];
+			y2 += subKeys[k + 2];
+			x3 += subKeys[k + 3];
+			y3 += subKeys[k + 3];
+
+			x0 += x1;
+			x1 = ((x1 << 14) | (x1 >>> 50)) ^ x0;
+			y0 += y1;
+			y1 = ((y1 << 14) | (y1 >>> 50)) ^ y0;
+			x2 += x3;
+			x3 = ((x3 << 16) | (x3 >>> 48)) ^ x2;
+			y2 += y3;
+			y3 = ((y3 << 16) | (y3 >>> 48)) ^ y2;
+
+			x0 += x3;
+			x3 = ((x3 << 52) | (x3 >>> 12)) ^ x0;
+			y0 += y3;
+			y3 = ((y3 << 52) | (y3 >>> 12)) ^ y0;
+			x2 += x1;
+			x1 = ((x1 << 57) | (x1 >>> 7)) ^ x2;
+			y2 += y1;
+			y1 = ((y1 << 57) | (y1 >>> 7)) ^ y2;
+
+			x0 += x1;
+			x1 = ((x1 << 23) | (x1 >>> 41)) ^ x0;
+			y0 += y1;
+			y1 = ((y1 << 23) | (y1 >>> 41)) ^ y0;
+			x2 += x3;
+			x3 = ((x3 << 40) | (x3 >>> 24)) ^ x2;
+			y2 += y3;
+			y3 = ((y3 << 40) | (y3 >>> 24)) ^ y2;
+
+			x0 += x3;
+			x3 = ((x3 << 5) | (x3 >>> 59)) ^ x0;
+			y0 += y3;
+			y3 = ((y3 << 5) | (y3 >>> 59)) ^ y0;
+			x2 += x1;
+			x1 = ((x1 << 37) | (x1 >>> 27)) ^ x2;
+			y2 += y1;
+			y1 = ((y1 << 37) | (y1 >>> 27)) ^ y2;
+
+			x0 += subKeys[k + 4];
+			y0 += subKeys[k + 4];
+			x1 += subKeys[k + 5];
+			y1 += subKeys[k + 5];
+			x2 += subKeys[k + 6];
+			y2 += subKeys[k + 6];
+			x3 += subKeys[k + 7];
+			y3 += subKeys[k + 7];
+
+			x0 += x1;
+			x1 = ((x1 << 25) | (x1 >>> 39)) ^ x0;
+			y0 += y1;
+			y1 = ((y1 << 25) | (y1 >>> 39)) ^ y0;
+			x2 += x3;
+			x3 = ((x3 << 33) | (x3 >>> 31)) ^ x2;
+			y2 += y3;
+			y3 = ((y3 << 33) | (y3 >>> 31)) ^ y2;
+
+			x0 += x3;
+			x3 = ((x3 << 46) | (x3 >>> 18)) ^ x0;
+			y0 += y3;
+			y3 = ((y3 << 46) | (y3 >>> 18)) ^ y0;
+			x2 += x1;
+			x1 = ((x1 << 12) | (x1 >>> 52)) ^ x2;
+			y2 += y1;
+			y1 = ((y1 << 12) | (y1 >>> 52)) ^ y2;
+
+			x0 += x1;
+			x1 = ((x1 << 58) | (x1 >>> 6)) ^ x0;
+			y0 += y1;
+			y1 = ((y1 << 58) | (y1 >>> 6)) ^ y0;
+			x2 += x3;
+			x3 = ((x3 << 22) | (x3 >>> 42)) ^ x2;
+			y2 += y3;
+			y3 = ((y3 << 22) | (y3 >>> 42)) ^ y2;
+
+			x0 += x3;
+			x3 = ((x3 << 32) | (x3 >>> 32)) ^ x0;
+			y0 += y3;
+			y3 = ((y3 << 32) | (y3 >>> 32)) ^ y0;
+			x2 += x1;
+			x1 = ((x1 << 32) | (x1 >>> 32)) ^ x2;
+			y2 += y1;
+			y1 = ((y1 << 32) | (y1 >>> 32)) ^ y2;
+		}
+
+		out[outOff] = x0 + subKeys[72];
+		out[outOff + 1] = x1 + subKeys[73];
+		out[outOff + 2] = x2 + subKeys[74];
+		out[outOff + 3] = x3 + subKeys[75];
+		out[outOff + 4] = y0 + subKeys[72];
+		out[outOff + 5] = y1 + subKeys[73];
+		out[outOff + 6] = y2 + subKeys[74];
+		out[outOff + 7] = y3 + subKeys[75];
+	}
+
+	/**
+	 * Decrypts two consecutive blocks of words with rounds of both blocks
+	 * interleaved. Input and output may be the same array.
+	 * 
+	 * @param subKeys
+	 *            expanded key, subkeys stored one after another
+	 */
+	static void decryptBlock2(long[] subKeys, long[] in, int inOff, long[] out, int outOff) {
+		long x0 = in[inOff] - subKeys[72];
+		long x1 = in[inOff + 1] - subKeys[73];
+		long x2 = in[inOff + 2] - subKeys[74];
+		long x3 = in[inOff + 3] - subKeys[75];
+		long y0 = in[inOff + 4] - subKeys[72];
+		long y1 = in[inOff + 5] - subKeys[73];
+		long y2 = in[inOff + 6] - subKeys[74];
+		long y3 = in[inOff + 7] - subKeys[75];
+
+		for (int k = 68; k > 0; k -= 8) {
+			x3 ^= x0;
+			x3 = (x3 >>> 32) | (x3 << 32);
+			x0 -= x3;
+			y3 ^= y0;
+			y3 = (y3 >>> 32) | (y3 << 32);
+			y0 -= y3;
+			x1 ^= x2;
+			x1 = (x1 >>> 32) | (x1 << 32);
+			x2 -= x1;
+			y1 ^= y2;
+			y1 = (y1 >>> 32) | (y1 << 32);
+			y2 -= y1;
+
+			x1 ^= x0;
+			x1 = (x1 >>> 58) | (x1 << 6);
+			x0 -= x1;
+			y1 ^= y0;
+			y1 = (y1 >>> 58) | (y1 << 6);
+			y0 -= y1;
+			x3 ^= x2;
+			x3 = (x3 >>> 22) | (x3 << 42);
+			x2 -= x3;
+			y3 ^= y2;
+			y3 = (y3 >>> 22) | (y3 << 42);
+			y2 -= y3;
+
+			x3 ^= x0;
+			x3 = (x3 >>> 46) | (x3 << 18);
+			x0 -= x3;
+			y3 ^= y0;
+			y3 = (y3 >>> 46) | (y3 << 18);
+			y0 -= y3;
+			x1 ^= x2;
+			x1 = (x1 >>> 12) | (x1 << 52);
+			x2 -= x1;
+			y1 ^= y2;
+			y1 = (y1 >>> 12) | (y1 << 52);
+			y2 -= y1;
+
+			x1 ^= x0;
+			x1 = (x1 >>> 25) | (x1 << 39);
+			x0 -= x1;
+			y1 ^= y0;
+			y1 = (y1 >>> 25) | (y1 << 39);
+			y0 -= y1;
+			x3 ^= x2;
+			x3 = (x3 >>> 33) | (x3 << 31);
+			x2 -= x3;
+			y3 ^= y2;
+			y3 = (y3 >>> 33) | (y3 << 31);
+			y2 -= y3;
+
+			x0 -= subKeys[k];
+			y0 -= subKeys[k];
+			x1 -= subKeys[k + 1];
+			y1 -= subKeys[k + 1];
+			x2 -= subKeys[k + 2];
+			y2 -= subKeys[k + 2];
+			x3 -= subKeys[k + 3];
+			y3 -= subKeys[k + 3];
+
+			x3 ^= x0;
+			x3 = (x3 >>> 5) | (x3 << 59);
+			x0 -= x3;
+			y3 ^= y0;
+			y3 = (y3 >>> 5) | (y3 << 59);
+			y0 -= y3;
+			x1 ^= x2;
+			x1 = (x1 >>> 37) | (x1 << 27);
+			x2 -= x1;
+			y1 ^= y2;
+			y1 = (y1 >>> 37) | (y1 << 27);
+			y2 -= y1;
+
+			x1 ^= x0;
+			x1 = (x1 >>> 23) | (x1 << 41);
+			x0 -= x1;
+			y1 ^= y0;
+			y1 = (y1 >>> 23) | (y1 << 41);
+			y0 -= y1;
+			x3 ^= x2;
+			x3 = (x3 >>> 40) | (x3 << 24);
+			x2 -= x3;
+			y3 ^= y2;
+			y3 = (y3 >>> 40) | (y3 << 24);
+			y2 -= y3;
+
+			x3 ^= x0;
+			x3 = (x3 >>> 52) | (x3 << 12);
+			x0 -= x3;
+			y3 ^= y0;
+			y3 = (y3 >>> 52) | (y3 << 12);
+			y0 -= y3;
+			x1 ^= x2;
+			x1 = (x1 >>> 57) | (x1 << 7);
+			x2 -= x1;
+			y1 ^= y2;
+			y1 = (y1 >>> 57) | (y1 << 7);
+			y2 -= y1;
+
+			x1 ^= x0;
+			x1 = (x1 >>> 14) | (x1 << 50);
+			x0 -= x1;
+			y1 ^= y0;
+			y1 = (y1 >>> 14) | (y1 << 50);
+			y0 -= y1;
+			x3 ^= x2;
+			x3 = (x3 >>> 16) | (x3 << 48);
+			x2 -= x3;
+			y3 ^= y2;
+			y3 = (y3 >>> 16) | (y3 << 48);
+			y2 -= y3;
+
+			x0 -= subKeys[k - 4];
+			y0 -= subKeys[k - 4];
+			x1 -= subKeys[k - 3];
+			y1 -= subKeys[k - 3];
+			x2 -= subKeys[k - 2];
+			y2 -= subKeys[k - 2];
+			x3 -= subKeys[k - 1];
+			y3 -= subKeys[k - 1];
+		}
+
+		out[outOff] = x0;
+		out[outOff + 1] = x1;
+		out[outOff + 2] = x2;
+		out[outOff + 3] = x3;
+		out[outOff + 4] = y0;
+		out[outOff + 5] = y1;
+		out[outOff + 6] = y2;
+		out[outOff + 7] = y3;
+	}
+
+	/**
+	 * Decrypts consecutive blocks of words, two blocks at a time.
+	 */
+	static void decryptBlocks(long[] subKeys, long[] in, int inOff, long[] out, int outOff, int blockCount) {
+		for (; blockCount >= 2; blockCount -= 2) {
+			decryptBlock2(subKeys, in, inOff, out, outOff);
+			inOff += 8;
+			outOff += 8;
+		}
+		if (blockCount > 0) {
+			decryptBlock(subKeys, in, inOff, out, outOff);
+		}
+	}
+
+	/**
+	 * Encrypts consecutive blocks of words, two blocks at a time.
+	 */
+	static void encryptBlocks(long[] subKeys, long[] in, int inOff, long[] out, int outOff, int blockCount) {
+		for (; blockCount >= 2; blockCount -= 2) {
+			encryptBlock2(subKeys, in, inOff, out, outOff);
+			inOff += 8;
+			outOff += 8;
+		}
+		if (blockCount > 0) {
+			encryptBlock(subKeys, in, inOff, out, outOff);
+		}
+	}
+
+	/**
+	 * Encrypts one block of words, computing subkeys during injection.
+	 * Input and output may be the same array.
+	 * 
+	 * @param kw
+	 *            extended key words, stored twice
+	 * @param t
+	 *            tweak words, first two repeated at the end
+	 */
+	static void encryptBlock(long[] kw, long[] t, long[] in, int inOff, long[] out, int outOff) {
+		long b0 = in[inOff];
+		long b1 = in[inOff + 1];
+		long b2 = in[inOff + 2];
+		long b3 = in[inOff + 3];
+
+		for (int s = 0; s < 18; s += 2) {
+			final int m0 = s % 5;
+			final int n0 = s % 3;
+			b0 += kw[m0];
+			b1 += kw[m0 + 1] + t[n0];
+			b2 += kw[m0 + 2] + t[n0 + 1];
+			b3 += kw[m0 + 3] + s;
+
+			b0 += b1;
+			b1 = ((b1 << 14) | (b1 >>> 50)) ^ b0;
+			b2 += b3;
+			b3 = ((b3 << 16) | (b3 >>> 48)) ^ b2;
+
+			b0 += b3;
+			b3 = ((b3 << 52) | (b3 >>> 12)) ^ b0;
+			b2 += b1;
+			b1 = ((b1 << 57) | (b1 >>> 7)) ^ b2;
+
+			b0 += b1;
+			b1 = ((b1 << 23) | (b1 >>> 41)) ^ b0;
+			b2 += b3;
+			b3 = ((b3 << 40) | (b3 >>> 24)) ^ b2;
+
+			b0 += b3;
+			b3 = ((b3 << 5) | (b3 >>> 59)) ^ b0;
+			b2 += b1;
+			b1 = ((b1 << 37) | (b1 >>> 27)) ^ b2;
+
+			final int m1 = (s + 1) % 5;
+			final int n1 = (s + 1) % 3;
+			b0 += kw[m1];
+			b1 += kw[m1 + 1] + t[n1];
+			b2 += kw[m1 + 2] + t[n1 + 1];
+			b3 += kw[m1 + 3] + s + 1;
+
+			b0 += b1;
+			b1 = ((b1 << 25) | (b1 >>> 39)) ^ b0;
+			b2 += b3;
+			b3 = ((b3 << 33) | (b3 >>> 31)) ^ b2;
+
+			b0 += b3;
+			b3 = ((b3 << 46) | (b3 >>> 18)) ^ b0;
+			b2 += b1;
+			b1 = ((b1 << 12) | (b1 >>> 52)) ^ b2;
+
+			b0 += b1;
+			b1 = ((b1 << 58) | (b1 >>> 6)) ^ b0;
+			b2 += b3;
+			b3 = ((b3 << 22) | (b3 >>> 42)) ^ b2;
+
+			b0 += b3;
+			b3 = ((b3 << 32) | (b3 >>> 32)) ^ b0;
+			b2 += b1;
+			b1 = ((b1 << 32) | (b1 >>> 32)) ^ b2;
+		}
+
+		final int m = 3;
+		final int n = 0;
+		out[outOff] = b0 + kw[m];
+		out[outOff + 1] = b1 + kw[m + 1] + t[n];
+		out[outOff + 2] = b2 + kw[m + 2] + t[n + 1];
+		out[outOff + 3] = b3 + kw[m + 3] + 18;
+	}
+
+	/**
+	 * Decrypts one block of words, computing subkeys during injection.
+	 * Input and output may be the same array.
+	 * 
+	 * @param kw
+	 *            extended key words, stored twice
+	 * @param t
+	 *            tweak words, first two repeated at the end
+	 */
+	static void decryptBlock(long[] kw, long[] t, long[] in, int inOff, long[] out, int outOff) {
+		final int m = 3;
+		final int n = 0;
+		long b0 = in[inOff] - kw[m];
+		long b1 = in[inOff + 1] - (kw[m + 1] + t[n]);
+		long b2 = in[inOff + 2] - (kw[m + 2] + t[n + 1]);
+		long b3 = in[inOff + 3] - (kw[m + 3] + 18);
+
+		for (int s = 17; s > 0; s -= 2) {
+			b3 ^= b0;
+			b3 = (b3 >>> 32) | (b3 << 32);
+			b0 -= b3;
+			b1 ^= b2;
+			b1 = (b1 >>> 32) | (b1 << 32);
+			b2 -= b1;
+
+			b1 ^= b0;
+			b1 = (b1 >>> 58) | (b1 << 6);
+			b0 -= b1;
+			b3 ^= b2;
+			b3 = (b3 >>> 22) | (b3 << 42);
+			b2 -= b3;
+
+			b3 ^= b0;
+			b3 = (b3 >>> 46) | (b3 << 18);
+			b0 -= b3;
+			b1 ^= b2;
+			b1 = (b1 >>> 12) | (b1 << 52);
+			b2 -= b1;
+
+			b1 ^= b0;
+			b1 = (b1 >>> 25) | (b1 << 39);
+			b0 -= b1;
+			b3 ^= b2;
+			b3 = (b3 >>> 33) | (b3 << 31);
+			b2 -= b3;
+
+			final int m1 = s % 5;
+			final int n1 = s % 3;
+			b0 -= kw[m1];
+			b1 -= (kw[m1 + 1] + t[n1]);
+			b2 -= (kw[m1 + 2] + t[n1 + 1]);
+			b3 -= (kw[m1 + 3] + s);
+
+			b3 ^= b0;
+			b3 = (b3 >>> 5) | (b3 << 59);
+			b0 -= b3;
+			b1 ^= b2;
+			b1 = (b1 >>> 37) | (b1 << 27);
+			b2 -= b1;
+
+			b1 ^= b0;
+			b1 = (b1 >>> 23) | (b1 << 41);
+			b0 -= b1;
+			b3 ^= b2;
+			b3 = (b3 >>> 40) | (b3 << 24);
+			b2 -= b3;
+
+			b3 ^= b0;
+			b3 = (b3 >>> 52) | (b3 << 12);
+			b0 -= b3;
+			b1 ^= b2;
+			b1 = (b1 >>> 57) | (b1 << 7);
+			b2 -= b1;
+
+			b1 ^= b0;
+			b1 = (b1 >>> 14) | (b1 << 50);
+			b0 -= b1;
+			b3 ^= b2;
+			b3 = (b3 >>> 16) | (b3 << 48);
+			b2 -= b3;
+
+			final int m0 = (s - 1) % 5;
+			final int n0 = (s - 1) % 3;
+			b0 -= kw[m0];
+			b1 -= (kw[m0 + 1] + t[n0]);
+			b2 -= (kw[m0 + 2] + t[n0 + 1]);
+			b3 -= (kw[m0 + 3] + s - 1);
+		}
+
+		out[outOff] = b0;
+		out[outOff + 1] = b1;
+		out[outOff + 2] = b2;
+		out[outOff + 3] = b3;
+	}
+
+}
@@ -0,0 +1,602 @@
+package org.bouncycastle.crypto.engines;
+
+/**
+ * Threefish with 512 bits block and key.
+ * 
+ * Rounds are unrolled eight at a time (one pair of subkey injections),
+ * rotation constants are hardcoded and word permutation is done by renaming
+ * variables, so whole state is kept in local variables.
+ * 
+ */
+public class Threefish512Engine extends ThreefishEngine {
+
+	public Threefish512Engine() {
+		super(512);
+	}
+
+	private Threefish512Engine(Threefish512Engine engine) {
+		super(engine);
+	}
+
+	@Override
+	public Threefish512Engine copy() {
+		return new Threefish512Engine(this);
+	}
+
+	/**
+	 * Encrypts one block of words. Input and output may be the same array.
+	 * 
+	 * @param subKeys
+	 *            expanded key, subkeys stored one after another
+	 */
+	static void encryptBlock(long[] subKeys, long[] in, int inOff, long[] out, int outOff) {
+		long b0 = in[inOff];
+		long b1 = in[inOff + 1];
+		long b2 = in[inOff + 2];
+		long b3 = in[inOff + 3];
+		long b4 = in[inOff + 4];
+		long b5 = in[inOff + 5];
+		long b6 = in[inOff + 6];
+		long b7 = in[inOff + 7];
+
+		for (int k = 0; k < 144; k += 16) {
+			b0 += subKeys[k];
+			b1 += subKeys[k + 1];
+			b2 += subKeys[k + 2];
+			b3 += subKeys[k + 3];
+			b4 += subKeys[k + 4];
+			b5 += subKeys[k + 5];
+			b6 += subKeys[k + 6];
+			b7 += subKeys[k + 7];
+
+			b0 += b1;
+			b1 = ((b1 << 46) | (b1 >>> 18)) ^ b0;
+			b2 += b3;
+			b3 = ((b3 << 36) | (b3 >>> 28)) ^ b2;
+			b4 += b5;
+			b5 = ((b5 << 19) | (b5 >>> 45)) ^ b4;
+			b6 += b7;
+			b7 = ((b7 << 37) | (b7 >>> 27)) ^ b6;
+
+			b2 += b1;
+			b1 = ((b1 << 33) | (b1 >>> 31)) ^ b2;
+			b4 += b7;
+			b7 = ((b7 << 27) | (b7 >>> 37)) ^ b4;
+			b6 += b5;
+			b5 = ((b5 << 14) | (b5 >>> 50)) ^ b6;
+			b0 += b3;
+			b3 = ((b3 << 42) | (b3 >>> 22)) ^ b0;
+
+			b4 += b1;
+			b1 = ((b1 << 17) | (b1 >>> 47)) ^ b4;
+			b6 += b3;
+			b3 = ((b3 << 49) | (b3 >>> 15)) ^ b6;
+			b0 += b5;
+			b5 = ((b5 << 36) | (b5 >>> 28)) ^ b0;
+			b2 += b7;
+			b7 = ((b7 << 39) | (b7 >>> 25)) ^ b2;
+
+			b6 += b1;
+			b1 = ((b1 << 44) | (b1 >>> 20)) ^ b6;
+			b0 += b7;
+			b7 = ((b7 << 9) | (b7 >>> 55)) ^ b0;
+			b2 += b5;
+			b5 = ((b5 << 54) | (b5 >>> 10)) ^ b2;
+			b4 += b3;
+			b3 = ((b3 << 56) | (b3 >>> 8)) ^ b4;
+
+			b0 += subKeys[k + 8];
+			b1 += subKeys[k + 9];
+			b2 += subKeys[k + 10];
+			b3 += subKeys[k + 11];
+			b4 += subKeys[k + 12];
+			b5 += subKeys[k + 13];
+			b6 += subKeys[k + 14];
+			b7 += subKeys[k + 15];
+
+			b0 += b1;
+			b1 = ((b1 << 39) | (b1 >>> 25)) ^ b0;
+			b2 += b3;
+			b3 = ((b3 << 30) | (b3 >>> 34)) ^ b2;
+			b4 += b5;
+			b5 = ((b5 << 34) | (b5 >>> 30)) ^ b4;
+			b6 += b7;
+			b7 = ((b7 << 24) | (b7 >>> 40)) ^ b6;
+
+			b2 += b1;
+			b1 = ((b1 << 13) | (b1 >>> 51)) ^ b2;
+			b4 += b7;
+			b7 = ((b7 << 50) | (b7 >>> 14)) ^ b4;
+			b6 += b5;
+			b5 = ((b5 << 10) | (b5 >>> 54)) ^ b6;
+			b0 += b3;
+			b3 = ((b3 << 17) | (b3 >>> 47)) ^ b0;
+
+			b4 += b1;
+			b1 = ((b1 << 25) | (b1 >>> 39)) ^ b4;
+			b6 += b3;
+			b3 = ((b3 << 29) | (b3 >>> 35)) ^ b6;
+			b0 += b5;
+			b5 = ((b5 << 39) | (b5 >>> 25)) ^ b0;
+			b2 += b7;
+			b7 = ((b7 << 43) | (b7 >>> 21)) ^ b2;
+
+			b6 += b1;
+			b1 = ((b1 << 8) | (b1 >>> 56)) ^ b6;
+			b0 += b7;
+			b7 = ((b7 << 35) | (b7 >>> 29)) ^ b0;
+			b2 += b5;
+			b5 = ((b5 << 56) | (b5 >>> 8)) ^ b2;
+			b4 += b3;
+			b3 = ((b3 << 22) | (b3 >>> 42)) ^ b4;
+		}
+
+		out[outOff] = b0 + subKeys[144];
+		out[outOff + 1] = b1 + subKeys[145];
+		out[outOff + 2] = b2 + subKeys[146];
+		out[outOff + 3] = b3 + subKeys[147];
+		out[outOff + 4] = b4 + subKeys[148];
+		out[outOff + 5] = b5 + subKeys[149];
+		out[outOff + 6] = b6 + subKeys[150];
+		out[outOff + 7] = b7 + subKeys[151];
+	}
+
+	/**
+	 * Decrypts one block of words. Input and output may be the same array.
+	 * 
+	 * @param subKeys
+	 *            expanded key, subkeys stored one after another
+	 */
+	static void decryptBlock(long[] subKeys, long[] in, int inOff, long[] out, int outOff) {
+		long b0 = in[inOff] - subKeys[144];
+		long b1 = in[inOff + 1] - subKeys[145];
+		long b2 = in[inOff + 2] - subKeys[146];
+		long b3 = in[inOff + 3] - subKeys[147];
+		long b4 = in[inOff + 4] - subKeys[148];
+		long b5 = in[inOff + 5] - subKeys[149];
+		long b6 = in[inOff + 6] - subKeys[150];
+		long b7 = in[inOff + 7] - subKeys[151];
+
+		for (int k = 136; k > 0; k -= 16) {
+			b1 ^= b6;
+			b1 = (b1 >>> 8) | (b1 << 56);
+			b6 -= b1;
+			b7 ^= b0;
+			b7 = (b7 >>> 35) | (b7 << 29);
+			b0 -= b7;
+			b5 ^= b2;
+			b5 = (b5 >>> 56) | (b5 << 8);
+			b2 -= b5;
+			b3 ^= b4;
+			b3 = (b3 >>> 22) | (b3 << 42);
+			b4 -= b3;
+
+			b1 ^= b4;
+			b1 = (b1 >>> 25) | (b1 << 39);
+			b4 -= b1;
+			b3 ^= b6;
+			b3 = (b3 >>> 29) | (b3 << 35);
+			b6 -= b3;
+			b5 ^= b0;
+			b5 = (b5 >>> 39) | (b5 << 25);
+			b0 -= b5;
+			b7 ^= b2;
+			b7 = (b7 >>> 43) | (b7 << 21);
+			b2 -= b7;
+
+			b1 ^= b2;
+			b1 = (b1 >>> 13) | (b1 << 51);
+			b2 -= b1;
+			b7 ^= b4;
+			b7 = (b7 >>> 50) | (b7 << 14);
+			b4 -= b7;
+			b5 ^= b6;
+			b5 = (b5 >>> 10) | (b5 << 54);
+			b6 -= b5;
+			b3 ^= b0;
+			b3 = (b3 >>> 17) | (b3 << 47);
+			b0 -= b3;
+
+			b1 ^= b0;
+			b1 = (b1 >>> 39) | (b1 << 25);
+			b0 -= b1;
+			b3 ^= b2;
+			b3 = (b3 >>> 30) | (b3 << 34);
+			b2 -= b3;
+			b5 ^= b4;
+			b5 = (b5 >>> 34) | (b5 << 30);
+			b4 -= b5;
+			b7 ^= b6;
+			b7 = (b7 >>> 24) | (b7 << 40);
+			b6 -= b7;
+
+			b0 -= subKeys[k];
+			b1 -= subKeys[k + 1];
+			b2 -= subKeys[k + 2];
+			b3 -= subKeys[k + 3];
+			b4 -= subKeys[k + 4];
+			b5 -= subKeys[k + 5];
+			b6 -= subKeys[k + 6];
+			b7 -= subKeys[k + 7];
+
+			b1 ^= b6;
+			b1 = (b1 >>> 44) | (b1 << 20);
+			b6 -= b1;
+			b7 ^= b0;
+			b7 = (b7 >>> 9) | (b7 << 55);
+			b0 -= b7;
+			b5 ^= b2;
+			b5 = (b5 >>> 54) | (b5 << 10);
+			b2 -= b5;
+			b3 ^= b4;
+			b3 = (b3 >>> 56) | (b3 << 8);
+			b4 -= b3;
+
+			b1 ^= b4;
+			b1 = (b1 >>> 17) | (b1 << 47);
+			b4 -= b1;
+			b3 ^= b6;
+			b3 = (b3 >>> 49) | (b3 << 15);
+			b6 -= b3;
+			b5 ^= b0;
+			b5 = (b5 >>> 36) | (b5 << 28);
+			b0 -= b5;
+			b7 ^= b2;
+			b7 = (b7 >>> 39) | (b7 << 25);
+			b2 -= b7;
+
+			b1 ^= b2;
+			b1 = (b1 >>> 33) | (b1 << 31);
+			b2 -= b1;
+			b7 ^= b4;
+			b7 = (b7 >>> 27) | (b7 << 37);
+			b4 -= b7;
+			b5 ^= b6;
+			b5 = (b5 >>> 14) | (b5 << 50);
+			b6 -= b5;
+			b3 ^= b0;
+			b3 = (b3 >>> 42) | (b3 << 22);
+			b0 -= b3;
+
+			b1 ^= b0;
+			b1 = (b1 >>> 46) | (b1 << 18);
+			b0 -= b1;
+			b3 ^= b2;
+			b3 = (b3 >>> 36) | (b3 << 28);
+			b2 -= b3;
+			b5 ^= b4;
+			b5 = (b5 >>> 19) | (b5 << 45);
+			b4 -= b5;
+			b7 ^= b6;
+			b7 = (b7 >>> 37) | (b7 << 27);
+			b6 -= b7;
+
+			b0 -= subKeys[k - 8];
+			b1 -= subKeys[k - 7];
+			b2 -= subKeys[k - 6];
+			b3 -= subKeys[k - 5];
+			b4 -= subKeys[k - 4];
+			b5 -= subKeys[k - 3];
+			b6 -= subKeys[k - 2];
+			b7 -= subKeys[k - 1];
+		}
+
+		out[outOff] = b0;
+		out[outOff + 1] = b1;
+		out[outOff + 2] = b2;
+		out[outOff + 3] = b3;
+		out[outOff + 4] = b4;
+		out[outOff + 5] = b5;
+		out[outOff + 6] = b6;
+		out[outOff + 7] = b7;
+	}
+
+	/**
+	 * Decrypts consecutive blocks of words. Single block already has four
+	 * independent mixes per round and interleaving blocks runs out of
+	 * registers, so blocks are processed one by one.
+	 */
+	static void decryptBlocks(long[] subKeys, long[] in, int inOff, long[] out, int outOff, int blockCount) {
+		for (int i = 0; i < blockCount; i++) {
+			decryptBlock(subKeys, in, inOff + i * 8, out, outOff + i * 8);
+		}
+	}
+
+	/**
+	 * Encrypts consecutive blocks of words. Single block already has four
+	 * independent mixes per round and interleaving blocks runs out of
+	 * registers, so blocks are processed one by one.
+	 */
+	static void encryptBlocks(long[] subKeys, long[] in, int inOff, long[] out, int outOff, int blockCount) {
+		for (int i = 0; i < blockCount; i++) {
+			encryptBlock(subKeys, in, inOff + i * 8, out, outOff + i * 8);
+		}
+	}
+
+	/**
+	 * Encrypts one block of words, computing subkeys during injection.
+	 * Input and output may be the same array.
+	 * 
+	 * @param kw
+	 *            extended key words, stored twice
+	 * @param t
+	 *            tweak words, first two repeated at the end
+	 */
+	static void encryptBlock(long[] kw, long[] t, long[] in, int inOff, long[] out, int outOff) {
+		long b0 = in[inOff];
+		long b1 = in[inOff + 1];
+		long b2 = in[inOff + 2];
+		long b3 = in[inOff + 3];
+		long b4 = in[inOff + 4];
+		long b5 = in[inOff + 5];
+		long b6 = in[inOff + 6];
+		long b7 = in[inOff + 7];
+
+		for (int s = 0; s < 18; s += 2) {
+			final int m0 = s % 9;
+			final int n0 = s % 3;
+			b0 += kw[m0];
+			b1 += kw[m0 + 1];
+			b2 += kw[m0 + 2];
+			b3 += kw[m0 + 3];
+			b4 += kw[m0 + 4];
+			b5 += kw[m0 + 5] + t[n0];
+			b6 += kw[m0 + 6] + t[n0 + 1];
+			b7 += kw[m0 + 7] + s;
+
+			b0 += b1;
+			b1 = ((b1 << 46) | (b1 >>> 18)) ^ b0;
+			b2 += b3;
+			b3 = ((b3 << 36) | (b3 >>> 28)) ^ b2;
+			b4 += b5;
+			b5 = ((b5 << 19) | (b5 >>> 45)) ^ b4;
+			b6 += b7;
+			b7 = ((b7 << 37) | (b7 >>> 27)) ^ b6;
+
+			b2 += b1;
+			b1 = ((b1 << 33) | (b1 >>> 31)) ^ b2;
+			b4 += b7;
+			b7 = ((b7 << 27) | (b7 >>> 37)) ^ b4;
+			b6 += b5;
+			b5 = ((b5 << 14) | (b5 >>> 50)) ^ b6;
+			b0 += b3;
+			b3 = ((b3 << 42) | (b3 >>> 22)) ^ b0;
+
+			b4 += b1;
+			b1 = ((b1 << 17) | (b1 >>> 47)) ^ b4;
+			b6 += b3;
+			b3 = ((b3 << 49) | (b3 >>> 15)) ^ b6;
+			b0 += b5;
+			b5 = ((b5 << 36) | (b5 >>> 28)) ^ b0;
+			b2 += b7;
+			b7 = ((b7 << 39) | (b7 >>> 25)) ^ b2;
+
+			b6 += b1;
+			b1 = ((b1 << 44) | (b1 >>> 20)) ^ b6;
+			b0 += b7;
+			b7 = ((b7 << 9) | (b7 >>> 55)) ^ b0;
+			b2 += b5;
+			b5 = ((b5 << 54) | (b5 >>> 10)) ^ b2;
+			b4 += b3;
+			b3 = ((b3 << 56) | (b3 >>> 8)) ^ b4;
+
+			final int m1 = (s + 1) % 9;
+			final int n1 = (s + 1) % 3;
+			b0 += kw[m1];
+			b1 += kw[m1 + 1];
+			b2 += kw[m1 + 2];
+			b3 += kw[m1 + 3];
+			b4 += kw[m1 + 4];
+			b5 += kw[m1 + 5] + t[n1];
+			b6 += kw[m1 + 6] + t[n1 + 1];
+			b7 += kw[m1 + 7] + s + 1;
+
+			b0 += b1;
+			b1 = ((b1 << 39) | (b1 >>> 25)) ^ b0;
+			b2 += b3;
+			b3 = ((b3 << 30) | (b3 >>> 34)) ^ b2;
+			b4 += b5;
+			b5 = ((b5 << 34) | (b5 >>> 30)) ^ b4;
+			b6 += b7;
+			b7 = ((b7 << 24) | (b7 >>> 40)) ^ b6;
+
+			b2 += b1;
+			b1 = ((b1 << 13) | (b1 >>> 51)) ^ b2;
+			b4 += b7;
+			b7 = ((b7 << 50) | (b7 >>> 14)) ^ b4;
+			b6 += b5;
+			b5 = ((b5 << 10) | (b5 >>> 54)) ^ b6;
+			b0 += b3;
+			b3 = ((b3 << 17) | (b3 >>> 47)) ^ b0;
+
+			b4 += b1;
+			b1 = ((b1 << 25) | (b1 >>> 39)) ^ b4;
+			b6 += b3;
+			b3 = ((b3 << 29) | (b3 >>> 35)) ^ b6;
+			b0 += b5;
+			b5 = ((b5 << 39) | (b5 >>> 25)) ^ b0;
+			b2 += b7;
+			b7 = ((b7 << 43) | (b7 >>> 21)) ^ b2;
+
+			b6 += b1;
+			b1 = ((b1 << 8) | (b1 >>> 56)) ^ b6;
+			b0 += b7;
+			b7 = ((b7 << 35) | (b7 >>> 29)) ^ b0;
+			b2 += b5;
+			b5 = ((b5 << 56) | (b5 >>> 8)) ^ b2;
+			b4 += b3;
+			b3 = ((b3 << 22) | (b3 >>> 42)) ^ b4;
+		}
+
+		final int m = 0;
+		final int n = 0;
+		out[outOff] = b0 + kw[m];
+		out[outOff + 1] = b1 + kw[m + 1];
+		out[outOff + 2] = b2 + kw[m + 2];
+		out[outOff + 3] = b3 + kw[m + 3];
+		out[outOff + 4] = b4 + kw[m + 4];
+		out[outOff + 5] = b5 + kw[m + 5] + t[n];
+		out[outOff + 6] = b6 + kw[m + 6] + t[n + 1];
+		out[outOff + 7] = b7 + kw[m + 7] + 18;
+	}
+
+	/**
+	 * Decrypts one block of words, computing subkeys during injection.
+	 * Input and output may be the same array.
+	 * 
+	 * @param kw
+	 *            extended key words, stored twice
+	 * @param t
+	 *            tweak words, first two repeated at the end
+	 */
+	static void decryptBlock(long[] kw, long[] t, long[] in, int inOff, long[] out, int outOff) {
+		final int m = 0;
+		final int n = 0;
+		long b0 = in[inOff] - kw[m];
+		long b1 = in[inOff + 1] - (kw[m + 1]);
+		long b2 = in[inOff + 2] - (kw[m + 2]);
+		long b3 = in[inOff + 3] - (kw[m + 3]);
+		long b4 = in[inOff + 4] - (kw[m + 4]);
+		long b5 = in[inOff + 5] - (kw[m + 5] + t[n]);
+		long b6 = in[inOff + 6] - (kw[m + 6] + t[n + 1]);
+		long b7 = in[inOff + 7] - (kw[m + 7] + 18);
+
+		for (int s = 17; s > 0; s -= 2) {
+			b1 ^= b6;
+			b1 = (b1 >>> 8) | (b1 << 56);
+			b6 -= b1;
+			b7 ^= b0;
+			b7 = (b7 >>> 35) | (b7 << 29);
+			b0 -= b7;
+			b5 ^= b2;
+			b5 = (b5 >>> 56) | (b5 << 8);
+			b2 -= b5;
+			b3 ^= b4;
+			b3 = (b3 >>> 22) | (b3 << 42);
+			b4 -= b3;
+
+			b1 ^= b4;
+			b1 = (b1 >>> 25) | (b1 << 39);
+			b4 -= b1;
+			b3 ^= b6;
+			b3 = (b3 >>> 29) | (b3 << 35);
+			b6 -= b3;
+			b5 ^= b0;
+			b5 = (b5 >>> 39) | (b5 << 25);
+			b0 -= b5;
+			b7 ^= b2;
+			b7 = (b7 >>> 43) | (b7 << 21);
+			b2 -= b7;
+
+			b1 ^= b2;
+			b1 = (b1 >>> 13) | (b1 << 51);
+			b2 -= b1;
+			b7 ^= b4;
+			b7 = (b7 >>> 50) | (b7 << 14);
+			b4 -= b7;
+			b5 ^= b6;
+			b5 = (b5 >>> 10) | (b5 << 54);
+			b6 -= b5;
+			b3 ^= b0;
+			b3 = (b3 >>> 17) | (b3 << 47);
+			b0 -= b3;
+
+			b1 ^= b0;
+			b1 = (b1 >>> 39) | (b1 << 25);
+			b0 -= b1;
+			b3 ^= b2;
+			b3 = (b3 >>> 30) | (b3 << 34);
+			b2 -= b3;
+			b5 ^= b4;
+			b5 = (b5 >>> 34) | (b5 << 30);
+			b4 -= b5;
+			b7 ^= b6;
+			b7 = (b7 >>> 24) | (b7 << 40);
+			b6 -= b7;
+
+			final int m1 = s % 9;
+			final int n1 = s % 3;
+			b0 -= kw[m1];
+			b1 -= (kw[m1 + 1]);
+			b2 -= (kw[m1 + 2]);
+			b3 -= (kw[m1 + 3]);
+			b4 -= (kw[m1 + 4]);
+			b5 -= (kw[m1 + 5] + t[n1]);
+			b6 -= (kw[m1 + 6] + t[n1 + 1]);
+			b7 -= (kw[m1 + 7] + s);
+
+			b1 ^= b6;
+			b1 = (b1 >>> 44) | (b1 << 20);
+			b6 -= b1;
+			b7 ^= b0;
+			b7 = (b7 >>> 9) | (b7 << 55);
+			b0 -= b7;
+			b5 ^= b2;
+			b5 = (b5 >>> 54) | (b5 << 10);
+			b2 -= b5;
+			b3 ^= b4;
+			b3 = (b3 >>> 56) | (b3 << 8);
+			b4 -= b3;
+
+			b1 ^= b4;
+			b1 = (b1 >>> 17) | (b1 << 47);
+			b4 -= b1;
+			b3 ^= b6;
+			b3 = (b3 >>> 49) | (b3 << 15);
+			b6 -= b3;
+			b5 ^= b0;
+			b5 = (b5 >>> 36) | (b5 << 28);
+			b0 -= b5;
+			b7 ^= b2;
+			b7 = (b7 >>> 39) | (b7 << 25);
+			b2 -= b7;
+
+			b1 ^= b2;
+			b1 = (b1 >>> 33) | (b1 << 31);
+			b2 -= b1;
+			b7 ^= b4;
+			b7 = (b7 >>> 27) | (b7 << 37);
+			b4 -= b7;
+			b5 ^= b6;
+			b5 = (b5 >>> 14) | (b5 << 50);
+			b6 -= b5;
+			b3 ^= b0;
+			b3 = (b3 >>> 42) | (b3 << 22);
+			b0 -= b3;
+
+			b1 ^= b0;
+			b1 = (b1 >>> 46) | (b1 << 18);
+			b0 -= b1;
+			b3 ^= b2;
+			b3 = (b3 >>> 36) | (b3 << 28);
+			b2 -= b3;
+			b5 ^= b4;
+			b5 = (b5 >>> 19) | (b5 << 45);
+			b4 -= b5;
+			b7 ^= b6;
+			b7 = (b7 >>> 37) | (b7 << 27);
+			b6 -= b7;
+
+			final int m0 = (s - 1) % 9;
+			final int n0 = (s - 1) % 3;
+			b0 -= kw[m0];
+			b1 -= (kw[m0 + 1]);
+			b2 -= (kw[m0 + 2]);
+			b3 -= (kw[m0 + 3]);
+			b4 -= (kw[m0 + 4]);
+			b5 -= (kw[m0 + 5] + t[n0]);
+			b6 -= (kw[m0 + 6] + t[n0 + 1]);
+			b7 -= (kw[m0 + 7] + s - 1);
+		}
+
+		out[outOff] = b0;
+		out[outOff + 1] = b1;
+		out[outOff + 2] = b2;
+		out[outOff + 3] = b3;
+		out[outOff + 4] = b4;
+		out[outOff + 5] = b5;
+		out[outOff + 6] = b6;
+		out[outOff + 7] = b7;
+	}
+
+}
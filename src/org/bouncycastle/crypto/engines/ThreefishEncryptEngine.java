@@ -0,0 +1,259 @@
+package org.bouncycastle.crypto.engines;
+
+import org.bouncycastle.crypto.BlockCipher;
+import org.bouncycastle.crypto.CipherParameters;
+import org.bouncycastle.crypto.DataLengthException;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.crypto.params.ThreefishParameters;
+import org.bouncycastle.crypto.params.ThreefishPreparedParameters;
+
+/**
+ * Threefish engine which only encrypts.
+ * 
+ * Meant as underlying cipher of modes which never decrypt with block cipher,
+ * such as CTR, CFB, OFB or Skein UBI chaining. It keeps only subkeys, tweak
+ * and one block of words, and <code>processBlock</code> always runs
+ * encryption kernel, without testing work mode or key schedule variant.
+ * Decryption kernels are never called, so JIT does not compile them into code
+ * cache. Initialising for decryption is rejected.
+ * 
+ */
+public class ThreefishEncryptEngine implements BlockCipher {
+
+	/**
+	 * Tweak used with plain {@link KeyParameter}
+	 */
+	private static final byte[] ZERO_TWEAK = new byte[16];
+
+	/**
+	 * Block size in bytes
+	 */
+	private final int blockSize;
+
+	/**
+	 * Number of words in the key (and thus also in the plaintext)
+	 */
+	private final int Nw;
+
+	/**
+	 * Number of rounds
+	 */
+	private final int Nr;
+
+	/**
+	 * Subkeys, one after another
+	 */
+	private long[] subKeys;
+
+	/**
+	 * <code>true</code> if {@link #subKeys} belong to
+	 * {@link ThreefishKeySchedule} and must be copied before modification
+	 */
+	private boolean sharedSubKeys;
+
+	/**
+	 * Tweak as words
+	 */
+	private final long[] t = new long[5];
+
+	/**
+	 * Extended key words, allocated when key is first given as bytes
+	 */
+	private long[] kw;
+
+	/**
+	 * Block being processed, as words
+	 */
+	private final long[] block;
+
+	public ThreefishEncryptEngine() {
+		this(256);
+	}
+
+	/**
+	 * @param keyLength
+	 *            key length in bits
+	 */
+	public ThreefishEncryptEngine(int keyLength) {
+		switch (keyLength) {
+		case 256:
+		case 512:
+			this.Nr = 72;
+			break;
+		case 1024:
+			this.Nr = 80;
+			break;
+		default:
+			throw new IllegalArgumentException("Invalid Key length - should be 32, 64 or 128 bytes");
+		}
+		this.blockSize = keyLength / 8;
+		this.Nw = blockSize / 8;
+		this.block = new long[Nw];
+	}
+
+	@Override
+	public String getAlgorithmName() {
+		return "Threefish";
+	}
+
+	@Override
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	@Override
+	public void init(boolean forEncryption, CipherParameters params) throws IllegalArgumentException {
+		if (!forEncryption) {
+			throw new IllegalArgumentException("Threefish encrypt-only engine cannot be initialised for decryption");
+		}
+
+		if (params instanceof ThreefishKeySchedule) {
+			final ThreefishKeySchedule schedule = (ThreefishKeySchedule) params;
+			if (schedule.getBlockSize() != blockSize) {
+				throw new IllegalArgumentException("Invalid Key length - should be " + blockSize + " bytes");
+			}
+			if (schedule.isZeroizable()) {
+				// eviction overwrites subkeys of schedule, engine needs own copy
+				final long[] dest = subKeys == null || sharedSubKeys ? new long[(Nr / 4 + 1) * Nw] : subKeys;
+				if (!schedule.copySubKeys(dest)) {
+					throw new IllegalStateException("Threefish key schedule was zeroized");
+				}
+				this.subKeys = dest;
+				this.sharedSubKeys = false;
+			} else {
+				this.subKeys = schedule.getSubKeys();
+				this.sharedSubKeys = true;
+			}
+			schedule.getTweak(t);
+			return;
+		}
+
+		if (params instanceof ThreefishPreparedParameters) {
+			final ThreefishPreparedParameters prepared = (ThreefishPreparedParameters) params;
+			if (prepared.getBlockSize() != blockSize) {
+				throw new IllegalArgumentException("Invalid Key length - should be " + blockSize + " bytes");
+			}
+			if (kw == null) {
+				kw = new long[2 * (Nw + 1)];
+			}
+			prepared.copyKeyWords(kw, 0);
+			prepared.copyKeyWords(kw, Nw + 1);
+			ThreefishEngine.tweakToWords(prepared.getTweak0(), prepared.getTweak1(), t);
+		} else if (params instanceof KeyParameter) {
+			final byte[] key = ((KeyParameter) params).getKey();
+			final byte[] tweak = params instanceof ThreefishParameters ? ((ThreefishParameters) params).getTweak() : ZERO_TWEAK;
+			if (tweak == null || tweak.length != 16) {
+				throw new IllegalArgumentException("Invalid Tweak length - should be 16 bytes");
+			}
+			if (key == null || key.length != blockSize) {
+				throw new IllegalArgumentException("Invalid Key length - should be " + blockSize + " bytes");
+			}
+			if (kw == null) {
+				kw = new long[2 * (Nw + 1)];
+			}
+			ThreefishEngine.extendKey(key, kw);
+			ThreefishEngine.tweakToWords(ThreefishEngine.littleEndianToLong(tweak, 0),
+					ThreefishEngine.littleEndianToLong(tweak, 8), t);
+		} else {
+			throw new IllegalArgumentException("Invalid parameter passed to Threefish init - " + params.getClass().getName());
+		}
+
+		if (subKeys == null || sharedSubKeys) {
+			this.subKeys = new long[(Nr / 4 + 1) * Nw];
+			this.sharedSubKeys = false;
+		}
+		ThreefishEngine.fillSubKeys(kw, t, subKeys);
+	}
+
+	@Override
+	public int processBlock(byte[] in, int inOff, byte[] out, int outOff) throws DataLengthException, IllegalStateException {
+		if (subKeys == null) {
+			throw new IllegalStateException("Threefish not initialised");
+		}
+
+		if ((inOff + blockSize) > in.length) {
+			throw new DataLengthException("input buffer too short");
+		}
+
+		if ((outOff + blockSize) > out.length) {
+			throw new DataLengthException("output buffer too short");
+		}
+
+		final long[] v = block;
+		ThreefishEngine.bytesToWords(in, inOff, v, 0, Nw);
+		ThreefishEngine.encryptBlock(subKeys, v, 0, v, 0);
+		ThreefishEngine.wordsToBytes(v, 0, out, outOff, Nw);
+
+		return blockSize;
+	}
+
+	/**
+	 * Encrypts consecutive blocks given as little-endian words.
+	 * 
+	 * @param in
+	 *            input words
+	 * @param inOff
+	 *            offset of first block in input array
+	 * @param out
+	 *            output words (may be the same array as input, ranges may
+	 *            overlap)
+	 * @param outOff
+	 *            offset of first block in output array
+	 * @param blockCount
+	 *            number of blocks to process
+	 * @return number of words processed
+	 */
+	public int processBlocks(long[] in, int inOff, long[] out, int outOff, int blockCount) throws DataLengthException,
+			IllegalStateException {
+		if (subKeys == null) {
+			throw new IllegalStateException("Threefish not initialised");
+		}
+
+		final int length = blockCount * Nw;
+
+		if ((inOff + length) > in.length) {
+			throw new DataLengthException("input buffer too short");
+		}
+
+		if ((outOff + length) > out.length) {
+			throw new DataLengthException("output buffer too short");
+		}
+
+		if (ThreefishEngine.overlapsAhead(in, inOff, out, outOff, length)) {
+			for (int i = blockCount - 1; i >= 0; i--) {
+				ThreefishEngine.encryptBlock(subKeys, in, inOff + i * Nw, out, outOff + i * Nw);
+			}
+		} else {
+			ThreefishEngine.encryptBlocks(subKeys, in, inOff, out, outOff, blockCount);
+		}
+
+		return length;
+	}
+
+	@Override
+	public void reset() {
+	}
+
+	/**
+	 * Changes tweak without recomputing key schedule, as
+	 * {@link ThreefishEngine#setTweak(long, long)}.
+	 * 
+	 * @param t0
+	 *            first word of tweak (little-endian bytes 0-7)
+	 * @param t1
+	 *            second word of tweak (little-endian bytes 8-15)
+	 */
+	public void setTweak(long t0, long t1) throws IllegalStateException {
+		if (subKeys == null) {
+			throw new IllegalStateException("Threefish not initialised");
+		}
+
+		if (sharedSubKeys) {
+			this.subKeys = subKeys.clone();
+			this.sharedSubKeys = false;
+		}
+
+		ThreefishEngine.changeTweak(subKeys, Nw, t, t0, t1);
+	}
+
+}
@@ -1,10 +1,14 @@
 package org.bouncycastle.crypto.engines;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
 import org.bouncycastle.crypto.BlockCipher;
 import org.bouncycastle.crypto.CipherParameters;
 import org.bouncycastle.crypto.DataLengthException;
 import org.bouncycastle.crypto.params.KeyParameter;
 import org.bouncycastle.crypto.params.ThreefishParameters;
+import org.bouncycastle.crypto.params.ThreefishPreparedParameters;
 
 /**
  * An implementation of Threefish (1.3) encryption algorithm.
@@ -13,93 +17,178 @@ import org.bouncycastle.crypto.params.ThreefishParameters;
  * Niels Ferguson, Stefan Lucks, Doug Whiting, Mihir Bellare, Tadayoshi Kohno,
  * Jon Callas, and Jesse Walker.
  * 
+ * Rounds are computed by {@link Threefish256Engine},
+ * {@link Threefish512Engine} and {@link Threefish1024Engine}, which have them
+ * unrolled for each block size. Kernels read subkeys from array instead of
+ * having them compiled in: classes generated for single key, with subkey words
+ * as 64-bit constants, were about a third slower, as each such constant needs
+ * its own instruction to load while array reads fold into additions.
+ * 
+ * All processing methods may work in place: output may be the same array (or
+ * buffer, or array of buffers) as input, at the same or any overlapping
+ * offset. Each block is read completely before its result is written, and when
+ * output starts inside input, blocks are processed from the last one, so no
+ * temporary copy of input is needed. Buffers are known to share memory only
+ * when they are the same buffer or wrap the same array; regions are only when
+ * given by the same array of buffers.
+ * 
  */
 public class ThreefishEngine implements BlockCipher {
 
 	/**
 	 * Word permutation for 1024 bits key
 	 */
-	private static final int[] P_16 = { 0, 9, 2, 13, 6, 11, 4, 15, 10, 7, 12, 3, 14, 5, 8, 1 };
+	static final int[] P_16 = { 0, 9, 2, 13, 6, 11, 4, 15, 10, 7, 12, 3, 14, 5, 8, 1 };
 
 	/**
 	 * Reverse word permutation for 1024 bits key
 	 */
-	private static final int[] P_16__1 = { 0, 15, 2, 11, 6, 13, 4, 9, 14, 1, 8, 5, 10, 3, 12, 7 };
+	static final int[] P_16__1 = { 0, 15, 2, 11, 6, 13, 4, 9, 14, 1, 8, 5, 10, 3, 12, 7 };
 
 	/**
 	 * Word permutation for 256 bits key
 	 */
-	private static final int[] P_4 = { 0, 3, 2, 1 };
+	static final int[] P_4 = { 0, 3, 2, 1 };
 
 	/**
 	 * Reverse word permutation for 256 bits key
 	 */
-	private static final int[] P_4__1 = { 0, 3, 2, 1 };
+	static final int[] P_4__1 = { 0, 3, 2, 1 };
 
 	/**
 	 * Word permutation for 512 bits key
 	 */
-	private static final int[] P_8 = { 2, 1, 4, 7, 6, 5, 0, 3 };
+	static final int[] P_8 = { 2, 1, 4, 7, 6, 5, 0, 3 };
 
 	/**
 	 * Reverse word permutation for 512 bits key
 	 */
-	private static final int[] P_8__1 = { 6, 1, 0, 7, 2, 5, 4, 3 };
+	static final int[] P_8__1 = { 6, 1, 0, 7, 2, 5, 4, 3 };
 
 	/**
 	 * Rotation constants for 1024 bits key
 	 */
-	private static final int[][] R_16 = { { 24, 13, 8, 47, 8, 17, 22, 37 }, { 38, 19, 10, 55, 49, 18, 23, 52 },
+	static final int[][] R_16 = { { 24, 13, 8, 47, 8, 17, 22, 37 }, { 38, 19, 10, 55, 49, 18, 23, 52 },
 			{ 33, 4, 51, 13, 34, 41, 59, 17 }, { 5, 20, 48, 41, 47, 28, 16, 25 }, { 41, 9, 37, 31, 12, 47, 44, 30 },
 			{ 16, 34, 56, 51, 4, 53, 42, 41 }, { 31, 44, 47, 46, 19, 42, 44, 25 }, { 9, 48, 35, 52, 23, 31, 37, 20 } };
 
 	/**
 	 * Rotation constants for 256 bits key
 	 */
-	private static final int[][] R_4 = { { 14, 16 }, { 52, 57 }, { 23, 40 }, { 5, 37 }, { 25, 33 }, { 46, 12 }, { 58, 22 },
+	static final int[][] R_4 = { { 14, 16 }, { 52, 57 }, { 23, 40 }, { 5, 37 }, { 25, 33 }, { 46, 12 }, { 58, 22 },
 			{ 32, 32 } };
 
 	/**
 	 * Rotation constants for 512 bits key
 	 */
-	private static final int[][] R_8 = { { 46, 36, 19, 37 }, { 33, 27, 14, 42 }, { 17, 49, 36, 39 }, { 44, 9, 54, 56 },
+	static final int[][] R_8 = { { 46, 36, 19, 37 }, { 33, 27, 14, 42 }, { 17, 49, 36, 39 }, { 44, 9, 54, 56 },
 			{ 39, 30, 34, 24 }, { 13, 50, 10, 17 }, { 25, 29, 39, 43 }, { 8, 35, 56, 22 } };
 
+	/**
+	 * Converts bytes to little-endian words.
+	 * 
+	 * @param ba
+	 *            source bytes
+	 * @param length
+	 *            number of bytes to convert
+	 * @param offset
+	 *            offset in source array
+	 * @return new array of words
+	 */
 	public static long[] bytesToWords(byte[] ba, int length, int offset) {
 		long[] result = new long[length / 8];
-		long l = 0;
-		int rc = 0;
-		for (int i = 0; i < length; i++) {
-			l |= ((long) (ba[i + offset] & 0xFF)) << ((i) * 8);
-			if ((i - 7) % 8 == 0) {
-				result[rc++] = l;
-				l = 0;
-			}
-		}
+		bytesToWords(ba, offset, result, 0, result.length);
 		return result;
 	}
 
+	/**
+	 * Converts bytes to little-endian words stored in given array.
+	 * 
+	 * @param src
+	 *            source bytes
+	 * @param srcOff
+	 *            offset in source array
+	 * @param dest
+	 *            destination words
+	 * @param destOff
+	 *            offset in destination array
+	 * @param wordCount
+	 *            number of words to convert
+	 */
+	public static void bytesToWords(byte[] src, int srcOff, long[] dest, int destOff, int wordCount) {
+		for (int i = 0; i < wordCount; i++) {
+			dest[destOff + i] = littleEndianToLong(src, srcOff + i * 8);
+		}
+	}
+
+	/**
+	 * Reads one little-endian word.
+	 */
+	static long littleEndianToLong(byte[] bs, int off) {
+		return (bs[off] & 0xFFL) | (bs[off + 1] & 0xFFL) << 8 | (bs[off + 2] & 0xFFL) << 16 | (bs[off + 3] & 0xFFL) << 24
+				| (bs[off + 4] & 0xFFL) << 32 | (bs[off + 5] & 0xFFL) << 40 | (bs[off + 6] & 0xFFL) << 48
+				| (bs[off + 7] & 0xFFL) << 56;
+	}
+
+	/**
+	 * Writes one little-endian word.
+	 */
+	static void longToLittleEndian(long l, byte[] bs, int off) {
+		bs[off] = (byte) l;
+		bs[off + 1] = (byte) (l >>> 8);
+		bs[off + 2] = (byte) (l >>> 16);
+		bs[off + 3] = (byte) (l >>> 24);
+		bs[off + 4] = (byte) (l >>> 32);
+		bs[off + 5] = (byte) (l >>> 40);
+		bs[off + 6] = (byte) (l >>> 48);
+		bs[off + 7] = (byte) (l >>> 56);
+	}
+
+	/**
+	 * Converts all words to little-endian bytes.
+	 * 
+	 * @param la
+	 *            source words
+	 * @param dest
+	 *            destination bytes
+	 * @param offset
+	 *            offset in destination array
+	 */
 	public static void wordsToBytes(long[] la, byte[] dest, int offset) {
-		for (int i = 0; i < la.length; i++) {
-			long l = la[i];
-			dest[offset + 0 + i * 8] = (byte) (0xff & l);
-			l = l >> 8;
-			dest[offset + 1 + i * 8] = (byte) (0xff & l);
-			l = l >> 8;
-			dest[offset + 2 + i * 8] = (byte) (0xff & l);
-			l = l >> 8;
-			dest[offset + 3 + i * 8] = (byte) (0xff & l);
-			l = l >> 8;
-			dest[offset + 4 + i * 8] = (byte) (0xff & l);
-			l = l >> 8;
-			dest[offset + 5 + i * 8] = (byte) (0xff & l);
-			l = l >> 8;
-			dest[offset + 6 + i * 8] = (byte) (0xff & l);
-			l = l >> 8;
-			dest[offset + 7 + i * 8] = (byte) (0xff & l);
+		wordsToBytes(la, 0, dest, offset, la.length);
+	}
+
+	/**
+	 * Converts words to little-endian bytes.
+	 * 
+	 * @param src
+	 *            source words
+	 * @param srcOff
+	 *            offset in source array
+	 * @param dest
+	 *            destination bytes
+	 * @param destOff
+	 *            offset in destination array
+	 * @param wordCount
+	 *            number of words to convert
+	 */
+	public static void wordsToBytes(long[] src, int srcOff, byte[] dest, int destOff, int wordCount) {
+		for (int i = 0; i < wordCount; i++) {
+			longToLittleEndian(src[srcOff + i], dest, destOff + i * 8);
 		}
 	}
 
+	/**
+	 * Default maximum number of blocks converted to words at once by
+	 * {@link #processBlocks(byte[], int, byte[], int, int)}
+	 */
+	private static final int BULK_BLOCKS = 8;
+
+	/**
+	 * Tweak used with plain {@link KeyParameter}
+	 */
+	private static final byte[] ZERO_TWEAK = new byte[16];
+
 	/**
 	 * Block size in bytes
 	 */
@@ -115,156 +204,324 @@ public class ThreefishEngine implements BlockCipher {
 	/**
 	 * Number of rounds
 	 */
-	private final int Nr;
+	protected final int Nr;
 
 	/**
 	 * Number of words in the key (and thus also in the plaintext)
 	 */
-	private final int Nw;
+	protected final int Nw;
+
+	/**
+	 * Subkeys stored one after another in single array; subkey
+	 * <code>s</code> starts at <code>s * Nw</code>.
+	 */
+	protected long[] subKeys;
+
+	/**
+	 * Tweak as words; <code>t[2]</code> is <code>t[0] ^ t[1]</code>,
+	 * <code>t[3]</code> and <code>t[4]</code> repeat <code>t[0]</code> and
+	 * <code>t[1]</code>
+	 */
+	protected final long[] t = new long[5];
+
+	/**
+	 * Extended key words (key words followed by parity word), stored twice.
+	 * Used instead of {@link #subKeys} when subkeys are not precomputed,
+	 * otherwise kept as work area for key expansion.
+	 */
+	protected long[] kw;
 
 	/**
-	 * Word permutation
+	 * <code>false</code> if subkeys are derived during injection instead of
+	 * being precomputed by {@link #init(boolean, CipherParameters)}
 	 */
-	private final int[] p;
+	private final boolean precomputeSubKeys;
 
 	/**
-	 * Reverse word permutation (p^-1)
+	 * <code>true</code> if {@link #subKeys} belong to
+	 * {@link ThreefishKeySchedule} and must be copied before modification
 	 */
-	private final int[] p_1;
+	private boolean sharedSubKeys;
 
 	/**
-	 * Rotation constants
+	 * Cache consulted by {@link #init(boolean, CipherParameters)} instead of
+	 * expanding key, or <code>null</code>
 	 */
-	private final int[][] r;
+	private ThreefishKeyScheduleCache keyScheduleCache;
 
 	/**
-	 * Subkeys.
+	 * Key looked up in {@link #keyScheduleCache}, reused by every lookup; not
+	 * shared with copies
 	 */
-	protected long[][] subKeys;
+	private ThreefishKeyScheduleCache.CacheKey cacheKey;
 
 	/**
-	 * Tweak as words
+	 * Blocks being processed, as words
 	 */
-	protected final long[] t = new long[3];
+	private final long[] block;
 
 	public ThreefishEngine() {
 		this(256);
 	}
 
 	public ThreefishEngine(int keyLength) {
+		this(keyLength, BULK_BLOCKS, true);
+	}
+
+	/**
+	 * Creates engine which optionally does not precompute subkeys. Without
+	 * precomputed subkeys engine keeps only extended key words and tweak, and
+	 * derives each subkey when injecting it. It needs much less memory per key
+	 * (for Threefish-1024 34 words instead of 21 subkeys of 16 words), which
+	 * matters when many keyed engines are kept, at some cost in speed.
+	 * 
+	 * @param keyLength
+	 *            key length in bits
+	 * @param precomputeSubKeys
+	 *            <code>true</code> to precompute subkeys on init,
+	 *            <code>false</code> to derive them during processing
+	 */
+	public ThreefishEngine(int keyLength, boolean precomputeSubKeys) {
+		this(keyLength, precomputeSubKeys ? BULK_BLOCKS : 1, precomputeSubKeys);
+	}
+
+	/**
+	 * @param keyLength
+	 *            key length in bits
+	 * @param bulkBlocks
+	 *            maximum number of blocks converted to words at once by
+	 *            {@link #processBlocks(byte[], int, byte[], int, int)}
+	 * @param precomputeSubKeys
+	 *            <code>true</code> to precompute subkeys on init,
+	 *            <code>false</code> to derive them during processing
+	 */
+	protected ThreefishEngine(int keyLength, int bulkBlocks, boolean precomputeSubKeys) {
 		switch (keyLength) {
 		case 256:
 			this.blockSize = 32;
 			this.Nw = 32 / 8;
 			this.Nr = 72;
-			this.r = R_4;
-			this.p = P_4;
-			this.p_1 = P_4__1;
 			break;
 		case 512:
 			this.blockSize = 64;
 			this.Nw = 64 / 8;
 			this.Nr = 72;
-			this.r = R_8;
-			this.p = P_8;
-			this.p_1 = P_8__1;
 			break;
 		case 1024:
 			this.blockSize = 128;
 			this.Nw = 128 / 8;
 			this.Nr = 80;
-			this.r = R_16;
-			this.p = P_16;
-			this.p_1 = P_16__1;
 			break;
 		default:
 			throw new IllegalArgumentException("Invalid Key length - should be 32, 64 or 128 bytes");
 		}
+		this.block = new long[bulkBlocks * Nw];
+		this.precomputeSubKeys = precomputeSubKeys;
 	}
 
-	private void decryptBlock(long[] v, long[] c) {
-		for (int round = Nr; round > 0; round--) {
-			final long[] f = new long[Nw];
-			if (round % 4 == 0) {
-				final int s = round / 4;
-				for (int i = 0; i < Nw; i++) {
-					f[i] = v[i] - subKeys[s][i];
-				}
-			} else {
-				for (int i = 0; i < Nw; i++) {
-					f[i] = v[i];
-				}
-			}
-
-			long[] e = new long[Nw];
-			for (int i = 0; i < Nw; i++) {
-				e[i] = f[p_1[i]];
-			}
+	/**
+	 * Creates engine with the same key, tweak and work mode as given one, see
+	 * {@link #copy()}.
+	 * 
+	 * @param engine
+	 *            engine to copy
+	 */
+	protected ThreefishEngine(ThreefishEngine engine) {
+		this.blockSize = engine.blockSize;
+		this.Nw = engine.Nw;
+		this.Nr = engine.Nr;
+		this.block = new long[engine.block.length];
+		this.precomputeSubKeys = engine.precomputeSubKeys;
+		this.keyScheduleCache = engine.keyScheduleCache;
+		this.encryptMode = engine.encryptMode;
+		System.arraycopy(engine.t, 0, t, 0, t.length);
+		if (engine.subKeys != null) {
+			// both engines copy subkeys before changing them
+			this.subKeys = engine.subKeys;
+			this.sharedSubKeys = true;
+			engine.sharedSubKeys = true;
+		} else if (engine.kw != null) {
+			this.kw = engine.kw.clone();
+		}
+	}
 
-			for (int i = 0; i < Nw / 2; i++) {
-				long[] y = new long[2];
-				y[0] = e[i * 2];
-				y[1] = e[i * 2 + 1];
+	/**
+	 * Creates engine with the same key, tweak and work mode, without expanding
+	 * key again. Precomputed subkeys are shared until either engine changes
+	 * them (by {@link #setTweak(long, long)} or
+	 * {@link #init(boolean, CipherParameters)}), then they are copied, so
+	 * engines never affect each other. Copy is independent of this engine and
+	 * may be used by another thread; this engine must not be used while it is
+	 * being copied.
+	 * 
+	 * @return copy of this engine
+	 */
+	public ThreefishEngine copy() {
+		return new ThreefishEngine(this);
+	}
 
-				long[] x = demix(y, i, round - 1);
+	/**
+	 * Creates engine with the same key and work mode and with different
+	 * tweak, see {@link #copy()}.
+	 * 
+	 * @param t0
+	 *            first word of tweak (little-endian bytes 0-7)
+	 * @param t1
+	 *            second word of tweak (little-endian bytes 8-15)
+	 * @return copy of this engine
+	 */
+	public ThreefishEngine copy(long t0, long t1) throws IllegalStateException {
+		checkInitialised();
 
-				v[i * 2] = x[0];
-				v[i * 2 + 1] = x[1];
-			}
+		final ThreefishEngine engine = copy();
+		engine.setTweak(t0, t1);
+		return engine;
+	}
 
+	/**
+	 * Decrypts one block of words with kernel matching size of subkeys. Input and
+	 * output may be the same array.
+	 */
+	static void decryptBlock(long[] subKeys, long[] in, int inOff, long[] out, int outOff) {
+		switch (subKeys.length) {
+		case 19 * 4:
+			Threefish256Engine.decryptBlock(subKeys, in, inOff, out, outOff);
+			break;
+		case 19 * 8:
+			Threefish512Engine.decryptBlock(subKeys, in, inOff, out, outOff);
+			break;
+		default:
+			Threefish1024Engine.decryptBlock(subKeys, in, inOff, out, outOff);
+			break;
 		}
+	}
 
-		for (int i = 0; i < Nw; i++) {
-			c[i] = v[i] - subKeys[0][i];
+	/**
+	 * Decrypts consecutive blocks of words with kernel matching size of subkeys.
+	 * Input and output may be the same array.
+	 */
+	static void decryptBlocks(long[] subKeys, long[] in, int inOff, long[] out, int outOff, int blockCount) {
+		switch (subKeys.length) {
+		case 19 * 4:
+			Threefish256Engine.decryptBlocks(subKeys, in, inOff, out, outOff, blockCount);
+			break;
+		case 19 * 8:
+			Threefish512Engine.decryptBlocks(subKeys, in, inOff, out, outOff, blockCount);
+			break;
+		default:
+			Threefish1024Engine.decryptBlocks(subKeys, in, inOff, out, outOff, blockCount);
+			break;
 		}
-
 	}
 
-	private long[] demix(long[] y, final int j, final int round) {
-		long[] x = new long[2];
-		y[1] ^= y[0];
-		final long rotr = r[round % 8][j];
-		x[1] = (y[1] << (Long.SIZE - rotr)) | (y[1] >>> rotr);
-		x[0] = y[0] - x[1];
-		return x;
+	/**
+	 * Decrypts one block of words with kernel computing subkeys during injection.
+	 * Input and output may be the same array.
+	 * 
+	 * @param kw
+	 *            extended key words, stored twice
+	 * @param t
+	 *            tweak words
+	 */
+	static void decryptBlock(long[] kw, long[] t, long[] in, int inOff, long[] out, int outOff) {
+		switch (kw.length / 2 - 1) {
+		case 4:
+			Threefish256Engine.decryptBlock(kw, t, in, inOff, out, outOff);
+			break;
+		case 8:
+			Threefish512Engine.decryptBlock(kw, t, in, inOff, out, outOff);
+			break;
+		default:
+			Threefish1024Engine.decryptBlock(kw, t, in, inOff, out, outOff);
+			break;
+		}
 	}
 
-	private void encryptBlock(long[] v, long[] c) {
-		for (int round = 0; round < Nr; round++) {
-			final long[] e = new long[Nw];
-			if (round % 4 == 0) {
-				final int s = round / 4;
-				for (int i = 0; i < Nw; i++) {
-					e[i] = v[i] + subKeys[s][i];
-				}
-			} else {
-				for (int i = 0; i < Nw; i++) {
-					e[i] = v[i];
-				}
-			}
-
-			long[] f = new long[Nw];
-			for (int i = 0; i < Nw / 2; i++) {
-				long[] x = new long[2];
-				x[0] = e[i * 2];
-				x[1] = e[i * 2 + 1];
-
-				long[] y = mix(x, i, round);
-
-				f[i * 2] = y[0];
-				f[i * 2 + 1] = y[1];
+	/**
+	 * Decrypts consecutive blocks of words. Input and output may be the same
+	 * array.
+	 */
+	protected void decryptBlocks(long[] in, int inOff, long[] out, int outOff, int blockCount) {
+		if (subKeys != null) {
+			decryptBlocks(subKeys, in, inOff, out, outOff, blockCount);
+		} else {
+			for (int i = 0; i < blockCount; i++) {
+				decryptBlock(kw, t, in, inOff + i * Nw, out, outOff + i * Nw);
 			}
+		}
+	}
 
-			for (int i = 0; i < Nw; i++) {
-				v[i] = f[p[i]];
-			}
+	/**
+	 * Encrypts one block of words with kernel matching size of subkeys. Input and
+	 * output may be the same array.
+	 */
+	static void encryptBlock(long[] subKeys, long[] in, int inOff, long[] out, int outOff) {
+		switch (subKeys.length) {
+		case 19 * 4:
+			Threefish256Engine.encryptBlock(subKeys, in, inOff, out, outOff);
+			break;
+		case 19 * 8:
+			Threefish512Engine.encryptBlock(subKeys, in, inOff, out, outOff);
+			break;
+		default:
+			Threefish1024Engine.encryptBlock(subKeys, in, inOff, out, outOff);
+			break;
+		}
+	}
 
+	/**
+	 * Encrypts consecutive blocks of words with kernel matching size of subkeys.
+	 * Input and output may be the same array.
+	 */
+	static void encryptBlocks(long[] subKeys, long[] in, int inOff, long[] out, int outOff, int blockCount) {
+		switch (subKeys.length) {
+		case 19 * 4:
+			Threefish256Engine.encryptBlocks(subKeys, in, inOff, out, outOff, blockCount);
+			break;
+		case 19 * 8:
+			Threefish512Engine.encryptBlocks(subKeys, in, inOff, out, outOff, blockCount);
+			break;
+		default:
+			Threefish1024Engine.encryptBlocks(subKeys, in, inOff, out, outOff, blockCount);
+			break;
 		}
+	}
 
-		for (int i = 0; i < Nw; i++) {
-			c[i] = v[i] + subKeys[Nr / 4][i];
+	/**
+	 * Encrypts one block of words with kernel computing subkeys during injection.
+	 * Input and output may be the same array.
+	 * 
+	 * @param kw
+	 *            extended key words, stored twice
+	 * @param t
+	 *            tweak words
+	 */
+	static void encryptBlock(long[] kw, long[] t, long[] in, int inOff, long[] out, int outOff) {
+		switch (kw.length / 2 - 1) {
+		case 4:
+			Threefish256Engine.encryptBlock(kw, t, in, inOff, out, outOff);
+			break;
+		case 8:
+			Threefish512Engine.encryptBlock(kw, t, in, inOff, out, outOff);
+			break;
+		default:
+			Threefish1024Engine.encryptBlock(kw, t, in, inOff, out, outOff);
+			break;
 		}
+	}
 
+	/**
+	 * Encrypts consecutive blocks of words. Input and output may be the same
+	 * array.
+	 */
+	protected void encryptBlocks(long[] in, int inOff, long[] out, int outOff, int blockCount) {
+		if (subKeys != null) {
+			encryptBlocks(subKeys, in, inOff, out, outOff, blockCount);
+		} else {
+			for (int i = 0; i < blockCount; i++) {
+				encryptBlock(kw, t, in, inOff + i * Nw, out, outOff + i * Nw);
+			}
+		}
 	}
 
 	@Override
@@ -282,11 +539,44 @@ public class ThreefishEngine implements BlockCipher {
 		byte[] key;
 		byte[] tweak;
 		this.encryptMode = forEncryption;
-		if (params instanceof ThreefishParameters) {
+		if (params instanceof ThreefishKeySchedule) {
+			final ThreefishKeySchedule schedule = (ThreefishKeySchedule) params;
+			if (schedule.getBlockSize() != this.blockSize) {
+				throw new IllegalArgumentException("Invalid Key length - should be " + this.blockSize + " bytes");
+			}
+			if (schedule.isZeroizable()) {
+				// eviction overwrites subkeys of schedule, engine needs own copy
+				final long[] dest = subKeys == null || sharedSubKeys ? new long[(Nr / 4 + 1) * Nw] : subKeys;
+				if (!schedule.copySubKeys(dest)) {
+					throw new IllegalStateException("Threefish key schedule was zeroized");
+				}
+				this.subKeys = dest;
+				this.sharedSubKeys = false;
+			} else {
+				this.subKeys = schedule.getSubKeys();
+				this.sharedSubKeys = true;
+			}
+			this.kw = null;
+			schedule.getTweak(t);
+			return;
+		} else if (params instanceof ThreefishPreparedParameters && keyScheduleCache == null) {
+			final ThreefishPreparedParameters prepared = (ThreefishPreparedParameters) params;
+			if (prepared.getBlockSize() != this.blockSize) {
+				throw new IllegalArgumentException("Invalid Key length - should be " + this.blockSize + " bytes");
+			}
+			if (kw == null) {
+				kw = new long[2 * (Nw + 1)];
+			}
+			prepared.copyKeyWords(kw, 0);
+			prepared.copyKeyWords(kw, Nw + 1);
+			tweakToWords(prepared.getTweak0(), prepared.getTweak1(), t);
+			setkey(kw, t);
+			return;
+		} else if (params instanceof ThreefishParameters) {
 			tweak = ((ThreefishParameters) params).getTweak();
 			key = ((ThreefishParameters) params).getKey();
 		} else if (params instanceof KeyParameter) {
-			tweak = new byte[] { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 };
+			tweak = ZERO_TWEAK;
 			key = ((KeyParameter) params).getKey();
 		} else {
 			throw new IllegalArgumentException("Invalid parameter passed to Threefish init - " + params.getClass().getName());
@@ -302,20 +592,9 @@ public class ThreefishEngine implements BlockCipher {
 		setkey(key, tweak);
 	}
 
-	private long[] mix(long[] x, final int j, final int round) {
-		long[] y = new long[2];
-		y[0] = x[0] + x[1];
-		final long rotl = r[round % 8][j];
-		y[1] = (x[1] << rotl) | (x[1] >>> (Long.SIZE - rotl));
-		y[1] ^= y[0];
-		return y;
-	}
-
 	@Override
 	public int processBlock(byte[] in, int inOff, byte[] out, int outOff) throws DataLengthException, IllegalStateException {
-		if (subKeys == null) {
-			throw new IllegalStateException("Threefish not initialised");
-		}
+		checkInitialised();
 
 		if ((inOff + this.blockSize) > in.length) {
 			throw new DataLengthException("input buffer too short");
@@ -325,65 +604,599 @@ public class ThreefishEngine implements BlockCipher {
 			throw new DataLengthException("output buffer too short");
 		}
 
-		long[] v = bytesToWords(in, this.blockSize, inOff);
-		long[] c = new long[v.length];
+		final long[] v = this.block;
+		bytesToWords(in, inOff, v, 0, Nw);
 
 		if (encryptMode) {
-			encryptBlock(v, c);
+			encryptBlocks(v, 0, v, 0, 1);
 		} else {
-			decryptBlock(v, c);
+			decryptBlocks(v, 0, v, 0, 1);
 		}
 
-		wordsToBytes(c, out, outOff);
+		wordsToBytes(v, 0, out, outOff, Nw);
 
 		return this.blockSize;
 	}
 
+	/**
+	 * Processes one block given as little-endian words, without byte
+	 * conversion.
+	 * 
+	 * @param in
+	 *            input words
+	 * @param inOff
+	 *            offset of block in input array
+	 * @param out
+	 *            output words (may be the same array as input, ranges may
+	 *            overlap)
+	 * @param outOff
+	 *            offset of block in output array
+	 * @return number of words processed
+	 */
+	public int processBlock(long[] in, int inOff, long[] out, int outOff) throws DataLengthException, IllegalStateException {
+		return processBlocks(in, inOff, out, outOff, 1);
+	}
+
+	/**
+	 * Processes consecutive blocks given as little-endian words, without byte
+	 * conversion.
+	 * 
+	 * @param in
+	 *            input words
+	 * @param inOff
+	 *            offset of first block in input array
+	 * @param out
+	 *            output words (may be the same array as input, ranges may
+	 *            overlap)
+	 * @param outOff
+	 *            offset of first block in output array
+	 * @param blockCount
+	 *            number of blocks to process
+	 * @return number of words processed
+	 */
+	public int processBlocks(long[] in, int inOff, long[] out, int outOff, int blockCount) throws DataLengthException,
+			IllegalStateException {
+		checkInitialised();
+
+		final int length = blockCount * Nw;
+
+		if ((inOff + length) > in.length) {
+			throw new DataLengthException("input buffer too short");
+		}
+
+		if ((outOff + length) > out.length) {
+			throw new DataLengthException("output buffer too short");
+		}
+
+		if (overlapsAhead(in, inOff, out, outOff, length)) {
+			// output would overwrite input not read yet, process from last block
+			for (int i = blockCount - 1; i >= 0; i--) {
+				if (encryptMode) {
+					encryptBlocks(in, inOff + i * Nw, out, outOff + i * Nw, 1);
+				} else {
+					decryptBlocks(in, inOff + i * Nw, out, outOff + i * Nw, 1);
+				}
+			}
+		} else if (encryptMode) {
+			encryptBlocks(in, inOff, out, outOff, blockCount);
+		} else {
+			decryptBlocks(in, inOff, out, outOff, blockCount);
+		}
+
+		return length;
+	}
+
+	/**
+	 * Processes consecutive blocks. Threefish-256 processes independent blocks
+	 * two at a time with their rounds interleaved; measured with Java 17 on
+	 * x86-64 this is no faster than one block at a time. Larger variants
+	 * process blocks one at a time.
+	 * 
+	 * @param in
+	 *            input bytes
+	 * @param inOff
+	 *            offset of first block in input array
+	 * @param out
+	 *            output bytes (may be the same array as input, ranges may
+	 *            overlap)
+	 * @param outOff
+	 *            offset of first block in output array
+	 * @param blockCount
+	 *            number of blocks to process
+	 * @return number of bytes processed
+	 */
+	public int processBlocks(byte[] in, int inOff, byte[] out, int outOff, int blockCount) throws DataLengthException,
+			IllegalStateException {
+		checkInitialised();
+
+		final int length = blockCount * this.blockSize;
+
+		if ((inOff + length) > in.length) {
+			throw new DataLengthException("input buffer too short");
+		}
+
+		if ((outOff + length) > out.length) {
+			throw new DataLengthException("output buffer too short");
+		}
+
+		final long[] v = this.block;
+		final int bulkBlocks = v.length / Nw;
+		// chunks are processed from the last one if output would overwrite
+		// input not read yet
+		final boolean backwards = overlapsAhead(in, inOff, out, outOff, length);
+		for (int done = 0; done < blockCount;) {
+			final int count = Math.min(blockCount - done, bulkBlocks);
+			final int offset = (backwards ? blockCount - done - count : done) * this.blockSize;
+			bytesToWords(in, inOff + offset, v, 0, count * Nw);
+			if (encryptMode) {
+				encryptBlocks(v, 0, v, 0, count);
+			} else {
+				decryptBlocks(v, 0, v, 0, count);
+			}
+			wordsToBytes(v, 0, out, outOff + offset, count * Nw);
+			done += count;
+		}
+
+		return length;
+	}
+
+	/**
+	 * Processes all complete blocks remaining in input buffer. Words are read
+	 * and written directly, so heap and direct buffers are processed without
+	 * copying to arrays first. Positions of both buffers are advanced by the
+	 * number of bytes processed; bytes of incomplete block at the end of input
+	 * are left unread. Byte order of the buffers is not changed.
+	 * 
+	 * @param in
+	 *            input buffer
+	 * @param out
+	 *            output buffer (may be the same buffer as input or use the
+	 *            same array, ranges may overlap)
+	 * @return number of bytes processed
+	 */
+	public int processBlocks(ByteBuffer in, ByteBuffer out) throws DataLengthException, IllegalStateException {
+		checkInitialised();
+
+		final int blockCount = in.remaining() / this.blockSize;
+		final int length = blockCount * this.blockSize;
+
+		if (length > out.remaining()) {
+			throw new DataLengthException("output buffer too short");
+		}
+
+		final int inPos = in.position();
+		final int outPos = out.position();
+		processBuffers(in, inPos, out, outPos, blockCount);
+
+		in.position(inPos + length);
+		out.position(outPos + length);
+
+		return length;
+	}
+
+	/**
+	 * Processes blocks of a region made of consecutive buffers, for example
+	 * chunks of memory mapped file or of off-heap memory. Each buffer
+	 * contributes bytes from index 0 to its limit and offsets are counted
+	 * across the whole region, so regions larger than 2 GB are processed
+	 * without copying to heap. Blocks may not cross boundaries between
+	 * buffers. Positions and byte order of the buffers are not changed. When
+	 * input and output are the same array of buffers and output starts inside
+	 * input, the region is processed from its last block.
+	 * 
+	 * @param in
+	 *            input region
+	 * @param inOff
+	 *            offset of first block in input region
+	 * @param out
+	 *            output region (may be the same array as input, ranges may
+	 *            overlap)
+	 * @param outOff
+	 *            offset of first block in output region
+	 * @param blockCount
+	 *            number of blocks to process
+	 * @return number of bytes processed
+	 */
+	public long processBlocks(ByteBuffer[] in, long inOff, ByteBuffer[] out, long outOff, long blockCount)
+			throws DataLengthException, IllegalStateException {
+		checkInitialised();
+
+		if (overlapsAhead(in, inOff, out, outOff, blockCount * this.blockSize)) {
+			processRegionBackwards(in, inOff, out, outOff, blockCount);
+			return blockCount * this.blockSize;
+		}
+
+		int inIndex = 0;
+		while (inIndex < in.length && inOff >= in[inIndex].limit()) {
+			inOff -= in[inIndex++].limit();
+		}
+		int outIndex = 0;
+		while (outIndex < out.length && outOff >= out[outIndex].limit()) {
+			outOff -= out[outIndex++].limit();
+		}
+
+		int inPos = (int) inOff;
+		int outPos = (int) outOff;
+		for (long remaining = blockCount; remaining > 0;) {
+			while (inIndex < in.length && inPos == in[inIndex].limit()) {
+				inIndex++;
+				inPos = 0;
+			}
+			while (outIndex < out.length && outPos == out[outIndex].limit()) {
+				outIndex++;
+				outPos = 0;
+			}
+			if (inIndex == in.length) {
+				throw new DataLengthException("input buffer too short");
+			}
+			if (outIndex == out.length) {
+				throw new DataLengthException("output buffer too short");
+			}
+
+			final int inBlocks = (in[inIndex].limit() - inPos) / this.blockSize;
+			final int outBlocks = (out[outIndex].limit() - outPos) / this.blockSize;
+			final int count = (int) Math.min(remaining, Math.min(inBlocks, outBlocks));
+			if (count == 0) {
+				throw new DataLengthException("block crosses buffer boundary");
+			}
+
+			processBuffers(in[inIndex], inPos, out[outIndex], outPos, count);
+			inPos += count * this.blockSize;
+			outPos += count * this.blockSize;
+			remaining -= count;
+		}
+
+		return blockCount * this.blockSize;
+	}
+
+	/**
+	 * Processes blocks of a region from the last one, so output starting
+	 * inside input does not overwrite input before it is read.
+	 */
+	private void processRegionBackwards(ByteBuffer[] in, long inOff, ByteBuffer[] out, long outOff, long blockCount) {
+		// locate end of both ranges; position may equal limit of its buffer
+		long inEnd = inOff + blockCount * this.blockSize;
+		int inIndex = 0;
+		while (inIndex < in.length && inEnd > in[inIndex].limit()) {
+			inEnd -= in[inIndex++].limit();
+		}
+		long outEnd = outOff + blockCount * this.blockSize;
+		int outIndex = 0;
+		while (outIndex < out.length && outEnd > out[outIndex].limit()) {
+			outEnd -= out[outIndex++].limit();
+		}
+		if (inIndex == in.length) {
+			throw new DataLengthException("input buffer too short");
+		}
+		if (outIndex == out.length) {
+			throw new DataLengthException("output buffer too short");
+		}
+
+		int inPos = (int) inEnd;
+		int outPos = (int) outEnd;
+		for (long remaining = blockCount; remaining > 0;) {
+			while (inPos == 0) {
+				inPos = in[--inIndex].limit();
+			}
+			while (outPos == 0) {
+				outPos = out[--outIndex].limit();
+			}
+
+			final int count = (int) Math.min(remaining, Math.min(inPos / this.blockSize, outPos / this.blockSize));
+			if (count == 0) {
+				throw new DataLengthException("block crosses buffer boundary");
+			}
+
+			inPos -= count * this.blockSize;
+			outPos -= count * this.blockSize;
+			processBuffers(in[inIndex], inPos, out[outIndex], outPos, count);
+			remaining -= count;
+		}
+	}
+
+	/**
+	 * Processes blocks at given absolute indexes of buffers.
+	 */
+	private void processBuffers(ByteBuffer in, int inPos, ByteBuffer out, int outPos, int blockCount) {
+		final long[] v = this.block;
+		final int bulkBlocks = v.length / Nw;
+		final boolean backwards = overlapsAhead(in, inPos, out, outPos, blockCount * this.blockSize);
+		// local views, byte order of caller's buffers may be used by other
+		// threads
+		final ByteBuffer inView = in.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		final ByteBuffer outView = in == out ? inView : out.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		for (int done = 0; done < blockCount;) {
+			final int count = Math.min(blockCount - done, bulkBlocks);
+			final int offset = (backwards ? blockCount - done - count : done) * this.blockSize;
+			for (int i = 0; i < count * Nw; i++) {
+				v[i] = inView.getLong(inPos + offset + i * 8);
+			}
+			if (encryptMode) {
+				encryptBlocks(v, 0, v, 0, count);
+			} else {
+				decryptBlocks(v, 0, v, 0, count);
+			}
+			for (int i = 0; i < count * Nw; i++) {
+				outView.putLong(outPos + offset + i * 8, v[i]);
+			}
+			done += count;
+		}
+	}
+
+	/**
+	 * Changes tweak without recomputing key schedule.
+	 * 
+	 * @param tweak
+	 *            16 bytes of tweak
+	 * @see #setTweak(long, long)
+	 */
+	public void setTweak(byte[] tweak) throws IllegalArgumentException, IllegalStateException {
+		if (tweak == null || tweak.length != 16) {
+			throw new IllegalArgumentException("Invalid Tweak length - should be 16 bytes");
+		}
+		setTweak(littleEndianToLong(tweak, 0), littleEndianToLong(tweak, 8));
+	}
+
+	/**
+	 * Changes tweak without recomputing key schedule. Tweak affects only two
+	 * words of each subkey, so only these words are adjusted by difference
+	 * between old and new tweak.
+	 * 
+	 * @param t0
+	 *            first word of tweak (little-endian bytes 0-7)
+	 * @param t1
+	 *            second word of tweak (little-endian bytes 8-15)
+	 */
+	public void setTweak(long t0, long t1) throws IllegalStateException {
+		checkInitialised();
+
+		if (subKeys == null) {
+			tweakToWords(t0, t1, t);
+			return;
+		}
+
+		if (t0 == t[0] && t1 == t[1]) {
+			return;
+		}
+
+		if (sharedSubKeys) {
+			copySubKeys(subKeys);
+		}
+
+		changeTweak(subKeys, Nw, t, t0, t1);
+	}
+
+	/**
+	 * Adjusts subkeys to new tweak, see {@link #setTweak(long, long)}.
+	 * 
+	 * @param subKeys
+	 *            subkeys, one after another
+	 * @param Nw
+	 *            number of words in subkey
+	 * @param t
+	 *            current tweak words, replaced by new ones
+	 * @param t0
+	 *            first word of new tweak
+	 * @param t1
+	 *            second word of new tweak
+	 */
+	static void changeTweak(long[] subKeys, int Nw, long[] t, long t0, long t1) {
+		// differences for t[s % 3], t[(s + 1) % 3] and t[(s + 2) % 3]
+		long d0 = t0 - t[0];
+		long d1 = t1 - t[1];
+		long d2 = (t0 ^ t1) - t[2];
+		for (int k = Nw - 3; k < subKeys.length; k += Nw) {
+			subKeys[k] += d0;
+			subKeys[k + 1] += d1;
+			final long d = d0;
+			d0 = d1;
+			d1 = d2;
+			d2 = d;
+		}
+
+		tweakToWords(t0, t1, t);
+	}
+
 	@Override
 	public void reset() {
 	}
 
 	/**
-	 * Key sheduler.
+	 * Checks that engine has key.
+	 */
+	private void checkInitialised() throws IllegalStateException {
+		if (subKeys == null && kw == null) {
+			throw new IllegalStateException("Threefish not initialised");
+		}
+	}
+
+	/**
+	 * Checks if processing blocks from the first one would overwrite input
+	 * before it is read.
+	 * 
+	 * @param in
+	 *            input array
+	 * @param inOff
+	 *            offset of input
+	 * @param out
+	 *            output array
+	 * @param outOff
+	 *            offset of output
+	 * @param length
+	 *            length of processed data, in array elements
+	 * @return <code>true</code> if output starts inside input (after its
+	 *         beginning)
+	 */
+	static boolean overlapsAhead(Object in, int inOff, Object out, int outOff, int length) {
+		return in == out && outOff > inOff && outOff < inOff + length;
+	}
+
+	/**
+	 * Checks if processing blocks from the first one would overwrite input
+	 * before it is read, for offsets in regions made of consecutive buffers.
+	 */
+	private static boolean overlapsAhead(ByteBuffer[] in, long inOff, ByteBuffer[] out, long outOff, long length) {
+		return in == out && outOff > inOff && outOff < inOff + length;
+	}
+
+	/**
+	 * Checks if processing blocks from the first one would overwrite input
+	 * before it is read. Buffers share memory if they are the same buffer or
+	 * use the same array; other views of the same memory are not detected.
+	 */
+	private static boolean overlapsAhead(ByteBuffer in, int inPos, ByteBuffer out, int outPos, int length) {
+		if (in != out && in.hasArray() && out.hasArray()) {
+			return overlapsAhead(in.array(), in.arrayOffset() + inPos, out.array(), out.arrayOffset() + outPos, length);
+		}
+		return overlapsAhead((Object) in, inPos, out, outPos, length);
+	}
+
+	/**
+	 * Computes extended key words.
 	 * 
 	 * @param keyData
 	 *            byte array of key
-	 * @param tweakData
-	 *            byte array of Tweak
+	 * @param kw
+	 *            receives key words followed by parity word, stored twice
 	 */
-	private void setkey(byte[] keyData, byte[] tweakData) {
-		final long[] K = bytesToWords(keyData, this.blockSize, 0);
-		final long[] T = bytesToWords(tweakData, 16, 0);
-		final long[] key = new long[Nw + 1];
-
+	static void extendKey(byte[] keyData, long[] kw) {
+		final int Nw = kw.length / 2 - 1;
+		bytesToWords(keyData, 0, kw, 0, Nw);
 		long kNw = 0x1BD11BDAA9FC1A22l;
 		for (int i = 0; i < Nw; i++) {
-			kNw ^= K[i];
-			key[i] = K[i];
+			final long k = kw[i];
+			kNw ^= k;
+			kw[Nw + 1 + i] = k;
 		}
+		kw[Nw] = kNw;
+		kw[2 * Nw + 1] = kNw;
+	}
 
-		key[key.length - 1] = kNw;
+	/**
+	 * Computes tweak words.
+	 * 
+	 * @param t
+	 *            receives 5 tweak words
+	 */
+	static void tweakToWords(long t0, long t1, long[] t) {
+		t[0] = t0;
+		t[1] = t1;
+		t[2] = t0 ^ t1;
+		t[3] = t0;
+		t[4] = t1;
+	}
 
-		t[0] = T[0];
-		t[1] = T[1];
-		t[2] = T[0] ^ T[1];
+	/**
+	 * Computes subkeys from extended key and tweak words.
+	 * 
+	 * @param kw
+	 *            extended key words, stored twice
+	 * @param t
+	 *            tweak words
+	 * @param subKeys
+	 *            receives subkeys, one after another
+	 */
+	static void fillSubKeys(long[] kw, long[] t, long[] subKeys) {
+		final int Nw = kw.length / 2 - 1;
+		for (int s = 0, k = 0; k < subKeys.length; s++, k += Nw) {
+			System.arraycopy(kw, s % (Nw + 1), subKeys, k, Nw);
+			subKeys[k + Nw - 3] += t[s % 3];
+			subKeys[k + Nw - 2] += t[s % 3 + 1];
+			subKeys[k + Nw - 1] += s;
+		}
+	}
 
-		this.subKeys = new long[Nr / 4 + 1][Nw];
+	/**
+	 * Copies subkeys into array owned by this engine, reusing it if
+	 * possible.
+	 * 
+	 * @param src
+	 *            subkeys to copy
+	 */
+	private void copySubKeys(long[] src) {
+		if (subKeys == null || sharedSubKeys) {
+			this.subKeys = new long[src.length];
+			this.sharedSubKeys = false;
+		}
+		System.arraycopy(src, 0, subKeys, 0, src.length);
+	}
 
-		for (int round = 0; round <= Nr / 4; round++) {
-			for (int i = 0; i < Nw; i++) {
-				subKeys[round][i] = key[(round + i) % (Nw + 1)];
+	/**
+	 * Sets cache of key schedules. When set, engines precomputing subkeys take
+	 * extended words of keys passed to {@link #init(boolean, CipherParameters)}
+	 * from cache, so recurring keys are not converted again, and fill their own
+	 * subkeys with tweak passed with key. Engines computing subkeys on the fly
+	 * ignore cache.
+	 * 
+	 * @param cache
+	 *            cache to use or <code>null</code> to always expand key
+	 */
+	public void setKeyScheduleCache(ThreefishKeyScheduleCache cache) {
+		this.keyScheduleCache = cache;
+	}
 
-				if (i == Nw - 3) {
-					subKeys[round][i] += t[round % 3];
-				} else if (i == Nw - 2) {
-					subKeys[round][i] += t[(round + 1) % 3];
-				} else if (i == Nw - 1) {
-					subKeys[round][i] += round;
-				}
+	/**
+	 * Key sheduler.
+	 * 
+	 * @param keyData
+	 *            byte array of key
+	 * @param tweakData
+	 *            byte array of Tweak
+	 */
+	private void setkey(byte[] keyData, byte[] tweakData) {
+		if (precomputeSubKeys && keyScheduleCache != null) {
+			if (cacheKey == null) {
+				cacheKey = new ThreefishKeyScheduleCache.CacheKey(blockSize * 8);
+			}
+			cacheKey.set(keyData);
+			tweakToWords(littleEndianToLong(tweakData, 0), littleEndianToLong(tweakData, 8), t);
+			if (subKeys == null || sharedSubKeys) {
+				this.subKeys = new long[(Nr / 4 + 1) * Nw];
+				this.sharedSubKeys = false;
+			}
+			// schedule may be zeroized by eviction before its key words are read
+			while (!keyScheduleCache.get(cacheKey, keyData).fillSubKeys(t, subKeys)) {
+				// evicted schedule is no longer returned
+			}
+			this.kw = null;
+		} else {
+			if (kw == null) {
+				kw = new long[2 * (Nw + 1)];
 			}
+			extendKey(keyData, kw);
+			tweakToWords(littleEndianToLong(tweakData, 0), littleEndianToLong(tweakData, 8), t);
+			setkey(kw, t);
 		}
+	}
 
+	/**
+	 * Key sheduler for key and tweak already converted to words. Subkey
+	 * arrays owned by engine are reused.
+	 * 
+	 * @param keyWords
+	 *            extended key words, stored twice
+	 * @param tweakWords
+	 *            tweak words
+	 */
+	private void setkey(long[] keyWords, long[] tweakWords) {
+		if (precomputeSubKeys) {
+			if (subKeys == null || sharedSubKeys) {
+				this.subKeys = new long[(Nr / 4 + 1) * Nw];
+				this.sharedSubKeys = false;
+			}
+			fillSubKeys(keyWords, tweakWords, subKeys);
+		} else {
+			if (kw == null) {
+				kw = new long[2 * (Nw + 1)];
+			}
+			if (keyWords != kw) {
+				System.arraycopy(keyWords, 0, kw, 0, kw.length);
+			}
+			this.subKeys = null;
+		}
+		if (tweakWords != t) {
+			System.arraycopy(tweakWords, 0, t, 0, t.length);
+		}
 	}
 
 }
@@ -0,0 +1,313 @@
+package org.bouncycastle.crypto.engines;
+
+import org.bouncycastle.crypto.CipherParameters;
+import org.bouncycastle.crypto.DataLengthException;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.crypto.params.ThreefishParameters;
+import org.bouncycastle.util.Arrays;
+
+/**
+ * Immutable expanded Threefish key and tweak.
+ * 
+ * Key schedule is computed once and never modified afterwards, so one instance
+ * may be used by any number of threads at the same time, without copying or
+ * locking. Blocks are processed directly with <code>encrypt</code> and
+ * <code>decrypt</code> methods, which keep no state between calls. Schedule
+ * may also be passed to {@link ThreefishEngine#init(boolean, CipherParameters)},
+ * in which case engine uses it without copying.
+ * 
+ * The only exception are schedules held by {@link ThreefishKeyScheduleCache}
+ * with zeroizing enabled, which are overwritten with zeros when evicted. Engines
+ * copy subkeys of such schedules, and processing blocks with zeroized schedule
+ * throws {@link IllegalStateException}.
+ * 
+ */
+public final class ThreefishKeySchedule implements CipherParameters {
+
+	private static final byte[] ZERO_TWEAK = new byte[16];
+
+	/**
+	 * Block size in bytes
+	 */
+	private final int blockSize;
+
+	/**
+	 * Extended key words, stored twice. Never modified, except by
+	 * {@link #zeroize()}.
+	 */
+	private final long[] kw;
+
+	/**
+	 * Subkeys. Never modified, except by {@link #zeroize()}.
+	 */
+	private final long[] subKeys;
+
+	/**
+	 * <code>true</code> once schedule was zeroized
+	 */
+	private volatile boolean zeroized;
+
+	/**
+	 * <code>true</code> if schedule may be zeroized, so engines must copy it
+	 */
+	private final boolean zeroizable;
+
+	/**
+	 * Tweak as words
+	 */
+	private final long[] t = new long[5];
+
+	/**
+	 * Creates key schedule with zero tweak.
+	 * 
+	 * @param key
+	 *            32, 64 or 128 bytes of key
+	 */
+	public ThreefishKeySchedule(byte[] key) {
+		this(key, ZERO_TWEAK);
+	}
+
+	/**
+	 * Creates key schedule.
+	 * 
+	 * @param key
+	 *            32, 64 or 128 bytes of key
+	 * @param tweak
+	 *            16 bytes of tweak
+	 */
+	public ThreefishKeySchedule(byte[] key, byte[] tweak) {
+		this(key, tweak, false);
+	}
+
+	/**
+	 * Creates key schedule which may be zeroized.
+	 * 
+	 * @param zeroizable
+	 *            <code>true</code> if schedule may be zeroized
+	 */
+	ThreefishKeySchedule(byte[] key, byte[] tweak, boolean zeroizable) {
+		if (tweak == null || tweak.length != 16) {
+			throw new IllegalArgumentException("Invalid Tweak length - should be 16 bytes");
+		}
+		if (key == null || (key.length != 32 && key.length != 64 && key.length != 128)) {
+			throw new IllegalArgumentException("Invalid Key length - should be 32, 64 or 128 bytes");
+		}
+		final int Nw = key.length / 8;
+		final int Nr = Nw == 16 ? 80 : 72;
+		this.blockSize = key.length;
+		this.zeroizable = zeroizable;
+		this.kw = new long[2 * (Nw + 1)];
+		this.subKeys = new long[(Nr / 4 + 1) * Nw];
+		ThreefishEngine.extendKey(key, kw);
+		ThreefishEngine.tweakToWords(ThreefishEngine.littleEndianToLong(tweak, 0),
+				ThreefishEngine.littleEndianToLong(tweak, 8), t);
+		ThreefishEngine.fillSubKeys(kw, t, subKeys);
+	}
+
+	/**
+	 * Creates key schedule from parameters. Tweak is taken from
+	 * {@link ThreefishParameters}, plain {@link KeyParameter} gives zero tweak.
+	 * 
+	 * @param params
+	 *            key parameters
+	 */
+	public ThreefishKeySchedule(KeyParameter params) {
+		this(params.getKey(), params instanceof ThreefishParameters ? ((ThreefishParameters) params).getTweak() : ZERO_TWEAK);
+	}
+
+	private void checkLength(int inLength, int inOff, int outLength, int outOff, int length) {
+		checkNotZeroized();
+
+		if ((inOff + length) > inLength) {
+			throw new DataLengthException("input buffer too short");
+		}
+
+		if ((outOff + length) > outLength) {
+			throw new DataLengthException("output buffer too short");
+		}
+	}
+
+	/**
+	 * Checks that schedule was not zeroized.
+	 */
+	private void checkNotZeroized() throws IllegalStateException {
+		if (zeroized) {
+			throw new IllegalStateException("Threefish key schedule was zeroized");
+		}
+	}
+
+	/**
+	 * Decrypts one block. Allocates word buffer for conversion; use
+	 * {@link #decryptBlock(long[], int, long[], int)} to avoid it.
+	 * 
+	 * @return number of bytes processed
+	 */
+	public int decryptBlock(byte[] in, int inOff, byte[] out, int outOff) throws DataLengthException {
+		checkLength(in.length, inOff, out.length, outOff, blockSize);
+		final long[] v = ThreefishEngine.bytesToWords(in, blockSize, inOff);
+		ThreefishEngine.decryptBlock(subKeys, v, 0, v, 0);
+		ThreefishEngine.wordsToBytes(v, out, outOff);
+		return blockSize;
+	}
+
+	/**
+	 * Decrypts one block of little-endian words. Input and output may be the
+	 * same array.
+	 * 
+	 * @return number of words processed
+	 */
+	public int decryptBlock(long[] in, int inOff, long[] out, int outOff) throws DataLengthException {
+		return decryptBlocks(in, inOff, out, outOff, 1);
+	}
+
+	/**
+	 * Decrypts consecutive blocks of little-endian words. Input and output may
+	 * be the same array, ranges may overlap.
+	 * 
+	 * @return number of words processed
+	 */
+	public int decryptBlocks(long[] in, int inOff, long[] out, int outOff, int blockCount) throws DataLengthException {
+		final int length = blockCount * blockSize / 8;
+		checkLength(in.length, inOff, out.length, outOff, length);
+		if (ThreefishEngine.overlapsAhead(in, inOff, out, outOff, length)) {
+			for (int i = blockCount - 1; i >= 0; i--) {
+				ThreefishEngine.decryptBlock(subKeys, in, inOff + i * blockSize / 8, out, outOff + i * blockSize / 8);
+			}
+		} else {
+			ThreefishEngine.decryptBlocks(subKeys, in, inOff, out, outOff, blockCount);
+		}
+		return length;
+	}
+
+	/**
+	 * Encrypts one block. Allocates word buffer for conversion; use
+	 * {@link #encryptBlock(long[], int, long[], int)} to avoid it.
+	 * 
+	 * @return number of bytes processed
+	 */
+	public int encryptBlock(byte[] in, int inOff, byte[] out, int outOff) throws DataLengthException {
+		checkLength(in.length, inOff, out.length, outOff, blockSize);
+		final long[] v = ThreefishEngine.bytesToWords(in, blockSize, inOff);
+		ThreefishEngine.encryptBlock(subKeys, v, 0, v, 0);
+		ThreefishEngine.wordsToBytes(v, out, outOff);
+		return blockSize;
+	}
+
+	/**
+	 * Encrypts one block of little-endian words. Input and output may be the
+	 * same array.
+	 * 
+	 * @return number of words processed
+	 */
+	public int encryptBlock(long[] in, int inOff, long[] out, int outOff) throws DataLengthException {
+		return encryptBlocks(in, inOff, out, outOff, 1);
+	}
+
+	/**
+	 * Encrypts consecutive blocks of little-endian words. Input and output may
+	 * be the same array, ranges may overlap.
+	 * 
+	 * @return number of words processed
+	 */
+	public int encryptBlocks(long[] in, int inOff, long[] out, int outOff, int blockCount) throws DataLengthException {
+		final int length = blockCount * blockSize / 8;
+		checkLength(in.length, inOff, out.length, outOff, length);
+		if (ThreefishEngine.overlapsAhead(in, inOff, out, outOff, length)) {
+			for (int i = blockCount - 1; i >= 0; i--) {
+				ThreefishEngine.encryptBlock(subKeys, in, inOff + i * blockSize / 8, out, outOff + i * blockSize / 8);
+			}
+		} else {
+			ThreefishEngine.encryptBlocks(subKeys, in, inOff, out, outOff, blockCount);
+		}
+		return length;
+	}
+
+	/**
+	 * @return block size in bytes
+	 */
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * Returns subkeys to be shared, which is allowed only if schedule is not
+	 * {@link #isZeroizable() zeroizable}.
+	 * 
+	 * @return subkeys; must not be modified
+	 */
+	long[] getSubKeys() throws IllegalStateException {
+		checkNotZeroized();
+		return subKeys;
+	}
+
+	/**
+	 * Copies subkeys, unless schedule was zeroized.
+	 * 
+	 * @param dest
+	 *            array receiving subkeys
+	 * @return <code>false</code> if schedule was zeroized and nothing was
+	 *         copied
+	 */
+	synchronized boolean copySubKeys(long[] dest) {
+		if (zeroized) {
+			return false;
+		}
+		System.arraycopy(subKeys, 0, dest, 0, subKeys.length);
+		return true;
+	}
+
+	/**
+	 * Computes subkeys of this key with other tweak, unless schedule was
+	 * zeroized.
+	 * 
+	 * @param tweak
+	 *            tweak words
+	 * @param dest
+	 *            array receiving subkeys
+	 * @return <code>false</code> if schedule was zeroized and nothing was
+	 *         computed
+	 */
+	boolean fillSubKeys(long[] tweak, long[] dest) {
+		if (!zeroizable) {
+			ThreefishEngine.fillSubKeys(kw, tweak, dest);
+			return true;
+		}
+		synchronized (this) {
+			if (zeroized) {
+				return false;
+			}
+			ThreefishEngine.fillSubKeys(kw, tweak, dest);
+			return true;
+		}
+	}
+
+	/**
+	 * Copies tweak words.
+	 * 
+	 * @param dest
+	 *            array receiving 5 tweak words
+	 */
+	void getTweak(long[] dest) {
+		System.arraycopy(t, 0, dest, 0, t.length);
+	}
+
+	/**
+	 * @return <code>true</code> if schedule may be zeroized by cache, so
+	 *         engines must copy its subkeys
+	 */
+	boolean isZeroizable() {
+		return zeroizable;
+	}
+
+	/**
+	 * Overwrites key words, subkeys and tweak with zeros. Used by
+	 * {@link ThreefishKeyScheduleCache} on eviction.
+	 */
+	synchronized void zeroize() {
+		this.zeroized = true;
+		Arrays.fill(kw, 0L);
+		Arrays.fill(subKeys, 0L);
+		Arrays.fill(t, 0L);
+	}
+
+}
@@ -0,0 +1,282 @@
+package org.bouncycastle.crypto.engines;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bouncycastle.util.Arrays;
+
+/**
+ * Size-bounded cache of expanded Threefish keys.
+ * 
+ * Schedules are cached by key only, with zero tweak, so a recurring key hits
+ * whatever tweak it is used with. Engines using the cache take extended key
+ * words of cached schedule and fill their own subkeys with their tweak, so a
+ * hit saves converting the key and computing its parity word, not filling
+ * subkeys. Lookups take no lock and may run in any number of threads; only
+ * inserting a new schedule is serialised. When cache is full, a schedule not
+ * used since the eviction pass last reached it is evicted (CLOCK
+ * approximation of least recently used).
+ * 
+ * If zeroizing is enabled, evicted schedules and cached copies of keys are
+ * overwritten with zeros. Engines initialised with such schedule copy its
+ * subkeys, so eviction never affects an initialised engine; using zeroized
+ * schedule directly throws {@link IllegalStateException}.
+ * 
+ * @see ThreefishEngine#setKeyScheduleCache(ThreefishKeyScheduleCache)
+ */
+public class ThreefishKeyScheduleCache {
+
+	private static final byte[] ZERO_TWEAK = new byte[16];
+
+	/**
+	 * Key words used as map key. Engines keep one instance to look up schedules
+	 * without allocating; instances stored in map are never modified, except
+	 * by zeroizing.
+	 */
+	static final class CacheKey {
+
+		private int hash;
+
+		/**
+		 * Key words
+		 */
+		private final long[] words;
+
+		CacheKey(int keyLength) {
+			this.words = new long[keyLength / 64];
+		}
+
+		private CacheKey(CacheKey lookup) {
+			this.words = lookup.words.clone();
+			this.hash = lookup.hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof CacheKey && Arrays.areEqual(words, ((CacheKey) obj).words);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		/**
+		 * Sets key looked up.
+		 * 
+		 * @param key
+		 *            key bytes, of length given to constructor
+		 */
+		void set(byte[] key) {
+			ThreefishEngine.bytesToWords(key, 0, words, 0, words.length);
+			long h = 0;
+			for (int i = 0; i < words.length; i++) {
+				h = (h + words[i]) * 0x9E3779B97F4A7C15L;
+			}
+			this.hash = (int) (h ^ (h >>> 32));
+		}
+
+	}
+
+	/**
+	 * Cached schedule with reference bit of eviction pass.
+	 */
+	private static final class Entry {
+
+		/**
+		 * Set when schedule is used, cleared by eviction pass
+		 */
+		volatile boolean referenced;
+
+		final ThreefishKeySchedule schedule;
+
+		Entry(ThreefishKeySchedule schedule) {
+			this.schedule = schedule;
+			this.referenced = true;
+		}
+
+	}
+
+	private final AtomicLong evictionCount = new AtomicLong();
+
+	/**
+	 * Position of eviction pass; guarded by {@link #map} lock
+	 */
+	private Iterator<Map.Entry<CacheKey, Entry>> hand;
+
+	private final AtomicLong hitCount = new AtomicLong();
+
+	private final ConcurrentHashMap<CacheKey, Entry> map = new ConcurrentHashMap<CacheKey, Entry>();
+
+	private final int maximumSize;
+
+	private final AtomicLong missCount = new AtomicLong();
+
+	private final boolean zeroizeOnEviction;
+
+	/**
+	 * Creates cache which does not zeroize evicted schedules.
+	 * 
+	 * @param maximumSize
+	 *            maximum number of cached schedules
+	 */
+	public ThreefishKeyScheduleCache(int maximumSize) {
+		this(maximumSize, false);
+	}
+
+	/**
+	 * @param maximumSize
+	 *            maximum number of cached schedules
+	 * @param zeroizeOnEviction
+	 *            <code>true</code> to overwrite evicted schedules with zeros
+	 */
+	public ThreefishKeyScheduleCache(int maximumSize, boolean zeroizeOnEviction) {
+		if (maximumSize < 1) {
+			throw new IllegalArgumentException("Cache size must be positive");
+		}
+		this.maximumSize = maximumSize;
+		this.zeroizeOnEviction = zeroizeOnEviction;
+	}
+
+	/**
+	 * Removes all schedules from cache.
+	 */
+	public void clear() {
+		synchronized (map) {
+			for (Iterator<Map.Entry<CacheKey, Entry>> it = map.entrySet().iterator(); it.hasNext();) {
+				Map.Entry<CacheKey, Entry> entry = it.next();
+				it.remove();
+				evicted(entry.getKey(), entry.getValue());
+			}
+			hand = null;
+		}
+	}
+
+	/**
+	 * Evicts one schedule not referenced since previous pass. Caller holds
+	 * {@link #map} lock.
+	 * 
+	 * @param inserted
+	 *            entry just inserted, which is never evicted
+	 */
+	private void evictOne(Entry inserted) {
+		while (true) {
+			if (hand == null || !hand.hasNext()) {
+				hand = map.entrySet().iterator();
+			}
+			final Map.Entry<CacheKey, Entry> entry = hand.next();
+			final Entry value = entry.getValue();
+			if (value == inserted) {
+				continue;
+			}
+			if (value.referenced) {
+				value.referenced = false;
+			} else {
+				hand.remove();
+				evicted(entry.getKey(), value);
+				return;
+			}
+		}
+	}
+
+	private void evicted(CacheKey key, Entry entry) {
+		evictionCount.incrementAndGet();
+		if (zeroizeOnEviction) {
+			Arrays.fill(key.words, 0L);
+			entry.schedule.zeroize();
+		}
+	}
+
+	/**
+	 * Returns schedule of given key with zero tweak, expanding key if it is not
+	 * cached yet. If cache zeroizes evicted schedules, returned schedule must
+	 * not be kept.
+	 * 
+	 * @param key
+	 *            32, 64 or 128 bytes of key
+	 * @return key schedule with zero tweak
+	 */
+	public ThreefishKeySchedule get(byte[] key) {
+		if (key == null || (key.length != 32 && key.length != 64 && key.length != 128)) {
+			throw new IllegalArgumentException("Invalid Key length - should be 32, 64 or 128 bytes");
+		}
+		final CacheKey lookup = new CacheKey(key.length * 8);
+		lookup.set(key);
+		return get(lookup, key);
+	}
+
+	/**
+	 * Returns schedule of key set in lookup key, expanding given key if it is
+	 * not cached yet. Lookup key is not stored.
+	 */
+	ThreefishKeySchedule get(CacheKey lookup, byte[] key) {
+		final Entry entry = map.get(lookup);
+		if (entry != null) {
+			hitCount.incrementAndGet();
+			// written only when changed, hot entries stay in shared cache lines
+			if (!entry.referenced) {
+				entry.referenced = true;
+			}
+			return entry.schedule;
+		}
+		missCount.incrementAndGet();
+
+		// key is expanded without holding lock
+		final Entry created = new Entry(new ThreefishKeySchedule(key, ZERO_TWEAK, zeroizeOnEviction));
+		synchronized (map) {
+			final Entry other = map.putIfAbsent(new CacheKey(lookup), created);
+			if (other != null) {
+				return other.schedule;
+			}
+			while (map.size() > maximumSize) {
+				evictOne(created);
+			}
+		}
+		return created.schedule;
+	}
+
+	/**
+	 * @return number of schedules evicted from cache
+	 */
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	/**
+	 * @return number of lookups which found key in cache
+	 */
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	/**
+	 * @return maximum number of cached schedules
+	 */
+	public int getMaximumSize() {
+		return maximumSize;
+	}
+
+	/**
+	 * @return number of lookups which had to expand key
+	 */
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	/**
+	 * @return <code>true</code> if evicted schedules are overwritten with zeros
+	 */
+	public boolean isZeroizeOnEviction() {
+		return zeroizeOnEviction;
+	}
+
+	/**
+	 * @return number of cached schedules
+	 */
+	public int size() {
+		return map.size();
+	}
+
+}
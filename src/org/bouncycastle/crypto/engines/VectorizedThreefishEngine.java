@@ -0,0 +1,235 @@
+package org.bouncycastle.crypto.engines;
+
+/**
+ * Threefish processing several independent blocks at once.
+ * 
+ * Blocks are transposed into word-sliced lanes: each word of the state is kept
+ * in array holding this word of all {@link #LANES} blocks. Every step of mix is then a plain
+ * loop over lanes, which the JIT compiles to SIMD instructions (AVX2/AVX-512
+ * on x86) where the hardware supports them. Word permutation swaps lane arrays
+ * instead of moving data. Rotation and permutation tables are shared with
+ * {@link ThreefishEngine}.
+ * 
+ * Only multi-block calls (<code>processBlocks</code>) use lanes, and only
+ * groups of {@link #LANES} blocks. Single blocks and blocks left over after
+ * filling all lanes are processed by scalar {@link ThreefishEngine} code, as
+ * is everything on JVMs which do not vectorize loops.
+ * 
+ * {@link #LANES} is 128, not the width of one vector register (4 or 8 words),
+ * because the lanes are looped over once per mix of every round: with 8 or 16
+ * lanes the loop overhead and the lane permutation cost more than SIMD saves,
+ * and the engine is about three times slower than the scalar kernels; with 32
+ * or 64 lanes it is still slower. On Java 17 with AVX-512, 128 lanes beat the
+ * scalar kernels by about 50% for Threefish-256 and 70-90% for Threefish-1024.
+ * Threefish-512 gains the least, about 10% on average, and a single run can
+ * come out slower than scalar: its scalar kernels already keep the whole
+ * 8-word state in registers.
+ * 
+ */
+public class VectorizedThreefishEngine extends ThreefishEngine {
+
+	/**
+	 * Number of blocks processed at once; see the class description for why
+	 * it is much wider than a vector register
+	 */
+	public static final int LANES = 128;
+
+	/**
+	 * Word permutation
+	 */
+	private final int[] p;
+
+	/**
+	 * Reverse word permutation (p^-1)
+	 */
+	private final int[] p_1;
+
+	/**
+	 * Rotation constants of all rounds one after another; mix <code>i</code>
+	 * of round <code>d</code> rotates by <code>r[d * Nw / 2 + i]</code>
+	 */
+	private final int[] r;
+
+	/**
+	 * Lanes of words of the state; <code>x[i][j]</code> is word <code>i</code>
+	 * of block <code>j</code>
+	 */
+	private long[][] x;
+
+	/**
+	 * Work array for lanes permutation
+	 */
+	private long[][] y;
+
+	public VectorizedThreefishEngine() {
+		this(256);
+	}
+
+	public VectorizedThreefishEngine(int keyLength) {
+		super(keyLength, LANES, true);
+		final int[][] rotations;
+		switch (keyLength) {
+		case 256:
+			rotations = R_4;
+			this.p = P_4;
+			this.p_1 = P_4__1;
+			break;
+		case 512:
+			rotations = R_8;
+			this.p = P_8;
+			this.p_1 = P_8__1;
+			break;
+		default:
+			rotations = R_16;
+			this.p = P_16;
+			this.p_1 = P_16__1;
+			break;
+		}
+		this.r = new int[Nr * Nw / 2];
+		for (int d = 0; d < Nr; d++) {
+			System.arraycopy(rotations[d % 8], 0, r, d * Nw / 2, Nw / 2);
+		}
+		this.x = new long[Nw][LANES];
+		this.y = new long[Nw][];
+	}
+
+	private VectorizedThreefishEngine(VectorizedThreefishEngine engine) {
+		super(engine);
+		this.p = engine.p;
+		this.p_1 = engine.p_1;
+		this.r = engine.r;
+		this.x = new long[Nw][LANES];
+		this.y = new long[Nw][];
+	}
+
+	@Override
+	public VectorizedThreefishEngine copy() {
+		return new VectorizedThreefishEngine(this);
+	}
+
+	@Override
+	protected void decryptBlocks(long[] in, int inOff, long[] out, int outOff, int blockCount) {
+		for (; blockCount >= LANES; blockCount -= LANES) {
+			load(in, inOff);
+			decryptLanes();
+			store(out, outOff);
+			inOff += LANES * Nw;
+			outOff += LANES * Nw;
+		}
+		if (blockCount > 0) {
+			super.decryptBlocks(in, inOff, out, outOff, blockCount);
+		}
+	}
+
+	private void decryptLanes() {
+		inject(Nr / 4, false);
+		for (int round = Nr - 1; round >= 0; round--) {
+			for (int i = 0; i < Nw; i++) {
+				y[i] = x[p_1[i]];
+			}
+			final long[][] tmp = x;
+			x = y;
+			y = tmp;
+
+			final int rot = round * Nw / 2;
+			for (int i = 0; i < Nw / 2; i++) {
+				final long[] x0 = x[i * 2];
+				final long[] x1 = x[i * 2 + 1];
+				final int rotr = r[rot + i];
+				for (int j = 0; j < LANES; j++) {
+					final long v = x1[j] ^ x0[j];
+					final long w = (v >>> rotr) | (v << (Long.SIZE - rotr));
+					x1[j] = w;
+					x0[j] -= w;
+				}
+			}
+
+			if (round % 4 == 0) {
+				inject(round / 4, false);
+			}
+		}
+	}
+
+	@Override
+	protected void encryptBlocks(long[] in, int inOff, long[] out, int outOff, int blockCount) {
+		for (; blockCount >= LANES; blockCount -= LANES) {
+			load(in, inOff);
+			encryptLanes();
+			store(out, outOff);
+			inOff += LANES * Nw;
+			outOff += LANES * Nw;
+		}
+		if (blockCount > 0) {
+			super.encryptBlocks(in, inOff, out, outOff, blockCount);
+		}
+	}
+
+	private void encryptLanes() {
+		for (int round = 0; round < Nr; round++) {
+			if (round % 4 == 0) {
+				inject(round / 4, true);
+			}
+
+			final int rot = round * Nw / 2;
+			for (int i = 0; i < Nw / 2; i++) {
+				final long[] x0 = x[i * 2];
+				final long[] x1 = x[i * 2 + 1];
+				final int rotl = r[rot + i];
+				for (int j = 0; j < LANES; j++) {
+					final long v = x0[j] + x1[j];
+					final long w = x1[j];
+					x0[j] = v;
+					x1[j] = ((w << rotl) | (w >>> (Long.SIZE - rotl))) ^ v;
+				}
+			}
+
+			for (int i = 0; i < Nw; i++) {
+				y[i] = x[p[i]];
+			}
+			final long[][] tmp = x;
+			x = y;
+			y = tmp;
+		}
+		inject(Nr / 4, true);
+	}
+
+	/**
+	 * Adds (or subtracts) subkey to every lane.
+	 * 
+	 * @param s
+	 *            subkey index
+	 */
+	private void inject(int s, boolean add) {
+		final long[] k = subKeys;
+		for (int i = 0; i < Nw; i++) {
+			final long[] xi = x[i];
+			final long ki = add ? k[s * Nw + i] : -k[s * Nw + i];
+			for (int j = 0; j < LANES; j++) {
+				xi[j] += ki;
+			}
+		}
+	}
+
+	/**
+	 * Transposes {@link #LANES} consecutive blocks into lanes.
+	 */
+	private void load(long[] in, int inOff) {
+		for (int j = 0; j < LANES; j++) {
+			for (int i = 0; i < Nw; i++) {
+				x[i][j] = in[inOff + j * Nw + i];
+			}
+		}
+	}
+
+	/**
+	 * Transposes lanes back into {@link #LANES} consecutive blocks.
+	 */
+	private void store(long[] out, int outOff) {
+		for (int j = 0; j < LANES; j++) {
+			for (int i = 0; i < Nw; i++) {
+				out[outOff + j * Nw + i] = x[i][j];
+			}
+		}
+	}
+
+}
@@ -0,0 +1,349 @@
+package org.bouncycastle.crypto.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+
+import org.bouncycastle.crypto.engines.ThreefishEngine;
+import org.bouncycastle.crypto.modes.ThreefishTweakCounterCipher;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.crypto.params.ThreefishParameters;
+import org.bouncycastle.crypto.util.Pack;
+
+/**
+ * Encrypted file with random access.
+ * 
+ * Plaintext byte <i>n</i> is stored encrypted at offset <i>n</i> of underlying
+ * file, so both have the same size. Each full block <i>k</i> of file is
+ * encrypted by {@link ThreefishTweakCounterCipher} with tweak words (<i>k</i>,
+ * <i>fileId</i>), so reading at any position decrypts only blocks containing
+ * requested bytes, and writing re-encrypts only blocks it touches, after
+ * decrypting partially overwritten first and last one. Last block of file
+ * shorter than block size is XORed with keystream: encryption of zero block
+ * with tweak words (<i>k</i> with highest bit set, <i>fileId</i>). It becomes
+ * full block as soon as file grows past it.
+ * 
+ * Like any tweak = position scheme, this hides data but not changes of it:
+ * rewriting a full block with the same plaintext gives the same ciphertext, and
+ * rewriting last partial block reveals XOR of its old and new contents. Data is
+ * not authenticated.
+ * 
+ * Channel keeps its own position; position of underlying channel is not used.
+ * Instance is not thread-safe.
+ * 
+ */
+public class ThreefishFileChannel implements SeekableByteChannel {
+
+	/**
+	 * Maximum number of bytes processed at once, multiple of every block size
+	 */
+	private static final int BUFFER_SIZE = 16 * 1024;
+
+	private final FileChannel channel;
+
+	/**
+	 * Encrypts full blocks
+	 */
+	private final ThreefishTweakCounterCipher encryptor;
+
+	/**
+	 * Decrypts full blocks
+	 */
+	private final ThreefishTweakCounterCipher decryptor;
+
+	/**
+	 * Encrypting engine producing keystream of last partial block
+	 */
+	private final ThreefishEngine keyStreamEngine;
+
+	/**
+	 * Block size in bytes
+	 */
+	private final int blockSize;
+
+	private final long fileId;
+
+	/**
+	 * Blocks being processed
+	 */
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+
+	private final ByteBuffer bufferView = ByteBuffer.wrap(buffer);
+
+	/**
+	 * Keystream of last partial block
+	 */
+	private final byte[] keyStream;
+
+	/**
+	 * Position in file, in bytes
+	 */
+	private long position;
+
+	/**
+	 * @param channel
+	 *            underlying file, opened for reading and, to write, for writing
+	 * @param key
+	 *            key of 32, 64 or 128 bytes, which selects Threefish variant
+	 * @param fileId
+	 *            identifier of file, second word of tweak; files encrypted
+	 *            with the same key should have different identifiers
+	 */
+	public ThreefishFileChannel(FileChannel channel, KeyParameter key, long fileId) throws IllegalArgumentException {
+		final byte[] tweak = new byte[16];
+		Pack.longToLittleEndian(fileId, tweak, 8);
+		final ThreefishParameters params = new ThreefishParameters(key.getKey(), tweak);
+
+		this.channel = channel;
+		this.encryptor = new ThreefishTweakCounterCipher(new ThreefishEngine(key.getKey().length * 8));
+		this.encryptor.init(true, params);
+		this.decryptor = new ThreefishTweakCounterCipher(new ThreefishEngine(key.getKey().length * 8));
+		this.decryptor.init(false, params);
+		this.keyStreamEngine = encryptor.getUnderlyingCipher();
+		this.blockSize = encryptor.getBlockSize();
+		this.fileId = fileId;
+		this.keyStream = new byte[blockSize];
+	}
+
+	private void checkOpen() throws ClosedChannelException {
+		if (!channel.isOpen()) {
+			throw new ClosedChannelException();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * @return underlying file
+	 */
+	public FileChannel getChannel() {
+		return channel;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return channel.isOpen();
+	}
+
+	/**
+	 * Reads block of file into buffer and decrypts it.
+	 * 
+	 * @param blockIndex
+	 *            index of block, which must start before end of file
+	 * @param off
+	 *            offset in buffer
+	 * @param size
+	 *            file size
+	 */
+	private void loadBlock(long blockIndex, int off, long size) throws IOException {
+		final long start = blockIndex * blockSize;
+		final int length = (int) Math.min(blockSize, size - start);
+		readFully(start, off, length);
+		transform(false, off, length, blockIndex, size);
+	}
+
+	@Override
+	public long position() throws IOException {
+		checkOpen();
+		return position;
+	}
+
+	@Override
+	public ThreefishFileChannel position(long newPosition) throws IOException {
+		checkOpen();
+		if (newPosition < 0) {
+			throw new IllegalArgumentException("Invalid position - should not be negative");
+		}
+		this.position = newPosition;
+		return this;
+	}
+
+	/**
+	 * Reads and decrypts bytes at current position. Only blocks containing
+	 * returned bytes are read and decrypted.
+	 */
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		checkOpen();
+		final long size = channel.size();
+		if (position >= size) {
+			return -1;
+		}
+
+		int total = 0;
+		while (dst.hasRemaining() && position < size) {
+			final long blockIndex = position / blockSize;
+			final long start = blockIndex * blockSize;
+			final int skip = (int) (position - start);
+			// whole blocks covering requested bytes, up to end of file
+			final long wanted = (skip + (long) dst.remaining() + blockSize - 1) / blockSize * blockSize;
+			final int length = (int) Math.min(Math.min(wanted, buffer.length), size - start);
+
+			readFully(start, 0, length);
+			transform(false, 0, length, blockIndex, size);
+
+			final int n = Math.min(length - skip, dst.remaining());
+			dst.put(buffer, skip, n);
+			position += n;
+			total += n;
+		}
+		return total;
+	}
+
+	/**
+	 * Reads bytes of file into buffer.
+	 */
+	private void readFully(long filePosition, int off, int length) throws IOException {
+		bufferView.limit(off + length).position(off);
+		while (bufferView.hasRemaining()) {
+			if (channel.read(bufferView, filePosition + bufferView.position() - off) < 0) {
+				throw new IOException("Unexpected end of file");
+			}
+		}
+	}
+
+	@Override
+	public long size() throws IOException {
+		checkOpen();
+		return channel.size();
+	}
+
+	/**
+	 * Encrypts or decrypts consecutive blocks in buffer.
+	 * 
+	 * @param forEncryption
+	 *            <code>true</code> to encrypt
+	 * @param off
+	 *            offset of first block in buffer
+	 * @param length
+	 *            number of bytes, multiple of block size unless blocks end at
+	 *            end of file
+	 * @param blockIndex
+	 *            index of first block in file
+	 * @param size
+	 *            file size, which tells whether last block is partial
+	 */
+	private void transform(boolean forEncryption, int off, int length, long blockIndex, long size) {
+		final int fullBlocks = (int) Math.min(length / blockSize, size / blockSize - blockIndex);
+		final ThreefishTweakCounterCipher mode = forEncryption ? encryptor : decryptor;
+		mode.seekTo(blockIndex);
+		mode.processBlocks(buffer, off, buffer, off, fullBlocks);
+
+		final int rest = length - fullBlocks * blockSize;
+		if (rest > 0) {
+			for (int i = 0; i < blockSize; i++) {
+				keyStream[i] = 0;
+			}
+			keyStreamEngine.setTweak((blockIndex + fullBlocks) | Long.MIN_VALUE, fileId);
+			keyStreamEngine.processBlock(keyStream, 0, keyStream, 0);
+			final int tail = off + fullBlocks * blockSize;
+			for (int i = 0; i < rest; i++) {
+				buffer[tail + i] ^= keyStream[i];
+			}
+		}
+	}
+
+	/**
+	 * Truncates file. Block which becomes last partial block is re-encrypted.
+	 */
+	@Override
+	public ThreefishFileChannel truncate(long newSize) throws IOException {
+		checkOpen();
+		if (newSize < 0) {
+			throw new IllegalArgumentException("Invalid size - should not be negative");
+		}
+
+		final long size = channel.size();
+		if (newSize < size) {
+			final int rest = (int) (newSize % blockSize);
+			if (rest != 0) {
+				final long blockIndex = newSize / blockSize;
+				loadBlock(blockIndex, 0, size);
+				channel.truncate(newSize);
+				transform(true, 0, rest, blockIndex, newSize);
+				writeFully(blockIndex * blockSize, rest);
+			} else {
+				channel.truncate(newSize);
+			}
+		}
+		if (position > newSize) {
+			position = newSize;
+		}
+		return this;
+	}
+
+	/**
+	 * Encrypts and writes bytes at current position. Writing past end of file
+	 * first fills the gap with encrypted zeros.
+	 */
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		checkOpen();
+		final int total = src.remaining();
+		final long size = channel.size();
+
+		if (position > size && total > 0) {
+			final ByteBuffer zeros = ByteBuffer.allocate((int) Math.min(buffer.length, position - size));
+			for (long pos = size; pos < position;) {
+				zeros.clear().limit((int) Math.min(zeros.capacity(), position - pos));
+				pos = writeAt(pos, zeros);
+			}
+		}
+
+		position = writeAt(position, src);
+		return total;
+	}
+
+	/**
+	 * Encrypts and writes all remaining bytes of source, which start at or
+	 * before end of file.
+	 * 
+	 * @return position after written bytes
+	 */
+	private long writeAt(long pos, ByteBuffer src) throws IOException {
+		long size = channel.size();
+		while (src.hasRemaining()) {
+			final long blockIndex = pos / blockSize;
+			final long start = blockIndex * blockSize;
+			final int skip = (int) (pos - start);
+			final int n = Math.min(src.remaining(), buffer.length - skip);
+			final long end = pos + n;
+			final long newSize = Math.max(size, end);
+			// whole blocks covering written bytes, up to new end of file
+			final int length = (int) (Math.min((end + blockSize - 1) / blockSize * blockSize, newSize) - start);
+
+			// old bytes kept in first and last block
+			if (skip > 0) {
+				loadBlock(blockIndex, 0, size);
+			}
+			final long lastIndex = blockIndex + (length - 1) / blockSize;
+			if (end < start + length && (lastIndex != blockIndex || skip == 0)) {
+				loadBlock(lastIndex, (int) (lastIndex - blockIndex) * blockSize, size);
+			}
+
+			src.get(buffer, skip, n);
+			transform(true, 0, length, blockIndex, newSize);
+			writeFully(start, length);
+
+			pos = end;
+			size = newSize;
+		}
+		return pos;
+	}
+
+	/**
+	 * Writes bytes from buffer into file.
+	 */
+	private void writeFully(long filePosition, int length) throws IOException {
+		bufferView.limit(length).position(0);
+		while (bufferView.hasRemaining()) {
+			channel.write(bufferView, filePosition + bufferView.position());
+		}
+	}
+
+}
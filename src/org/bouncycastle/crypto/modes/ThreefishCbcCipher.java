@@ -0,0 +1,272 @@
+package org.bouncycastle.crypto.modes;
+
+import org.bouncycastle.crypto.BlockCipher;
+import org.bouncycastle.crypto.CipherParameters;
+import org.bouncycastle.crypto.DataLengthException;
+import org.bouncycastle.crypto.engines.ThreefishEngine;
+import org.bouncycastle.crypto.params.ParametersWithIV;
+
+/**
+ * Cipher block chaining mode of Threefish working on words.
+ * 
+ * Output is the same as of {@link CBCBlockCipher} over Threefish, but chaining
+ * block is kept as words and bytes are converted to words once per call,
+ * instead of XORing bytes and converting them in every
+ * {@link ThreefishEngine#processBlock(byte[], int, byte[], int)}. Blocks of
+ * decryption are independent, so they are decrypted many at once by
+ * {@link ThreefishEngine#processBlocks(long[], int, long[], int, int)}.
+ * 
+ */
+public class ThreefishCbcCipher implements BlockCipher {
+
+	/**
+	 * Maximum size of blocks converted or decrypted at once, in bytes
+	 */
+	private static final int BULK_SIZE = 1024;
+
+	private final ThreefishEngine cipher;
+
+	/**
+	 * Block size in bytes
+	 */
+	private final int blockSize;
+
+	/**
+	 * Number of words in block
+	 */
+	private final int Nw;
+
+	/**
+	 * Maximum number of blocks converted or decrypted at once
+	 */
+	private final int bulkBlocks;
+
+	/**
+	 * Initialisation vector, as words; <code>null</code> until initialised
+	 */
+	private long[] iv;
+
+	/**
+	 * Previous ciphertext block, as words
+	 */
+	private final long[] chain;
+
+	/**
+	 * Ciphertext blocks being decrypted
+	 */
+	private final long[] saved;
+
+	/**
+	 * Blocks converted from bytes
+	 */
+	private final long[] words;
+
+	private boolean forEncryption;
+
+	/**
+	 * @param cipher
+	 *            underlying Threefish engine
+	 */
+	public ThreefishCbcCipher(ThreefishEngine cipher) {
+		this.cipher = cipher;
+		this.blockSize = cipher.getBlockSize();
+		this.Nw = blockSize / 8;
+		this.bulkBlocks = Math.max(1, BULK_SIZE / blockSize);
+		this.chain = new long[Nw];
+		this.saved = new long[bulkBlocks * Nw];
+		this.words = new long[bulkBlocks * Nw];
+	}
+
+	private void checkInitialised() throws IllegalStateException {
+		if (iv == null) {
+			throw new IllegalStateException(getAlgorithmName() + " not initialised");
+		}
+	}
+
+	/**
+	 * Decrypts blocks given as words, at most {@link #bulkBlocks}.
+	 */
+	private void decryptWords(long[] in, int inOff, long[] out, int outOff, int blockCount) {
+		final int length = blockCount * Nw;
+		// keep ciphertext, output may overwrite it
+		System.arraycopy(in, inOff, saved, 0, length);
+		cipher.processBlocks(saved, 0, out, outOff, blockCount);
+		for (int i = 0; i < Nw; i++) {
+			out[outOff + i] ^= chain[i];
+		}
+		for (int i = Nw; i < length; i++) {
+			out[outOff + i] ^= saved[i - Nw];
+		}
+		System.arraycopy(saved, length - Nw, chain, 0, Nw);
+	}
+
+	/**
+	 * Encrypts blocks given as words.
+	 */
+	private void encryptWords(long[] in, int inOff, long[] out, int outOff, int blockCount) {
+		for (int b = 0; b < blockCount; b++) {
+			final int off = b * Nw;
+			for (int i = 0; i < Nw; i++) {
+				chain[i] ^= in[inOff + off + i];
+			}
+			cipher.processBlock(chain, 0, chain, 0);
+			System.arraycopy(chain, 0, out, outOff + off, Nw);
+		}
+	}
+
+	@Override
+	public String getAlgorithmName() {
+		return cipher.getAlgorithmName() + "/CBC";
+	}
+
+	@Override
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * @return underlying Threefish engine
+	 */
+	public ThreefishEngine getUnderlyingCipher() {
+		return cipher;
+	}
+
+	/**
+	 * @param params
+	 *            {@link ParametersWithIV} with initialisation vector and key
+	 *            parameters accepted by {@link ThreefishEngine}, or
+	 *            <code>null</code> to keep current key
+	 */
+	@Override
+	public void init(boolean forEncryption, CipherParameters params) throws IllegalArgumentException {
+		if (!(params instanceof ParametersWithIV)) {
+			throw new IllegalArgumentException("CBC mode requires ParametersWithIV");
+		}
+		final ParametersWithIV ivParams = (ParametersWithIV) params;
+		final byte[] ivBytes = ivParams.getIV();
+		if (ivBytes == null || ivBytes.length != blockSize) {
+			throw new IllegalArgumentException("Invalid IV length - should be " + blockSize + " bytes");
+		}
+
+		if (ivParams.getParameters() != null) {
+			cipher.init(forEncryption, ivParams.getParameters());
+		} else if (iv == null || forEncryption != this.forEncryption) {
+			throw new IllegalArgumentException("Key must be given on first init or to change direction");
+		}
+		this.forEncryption = forEncryption;
+
+		if (iv == null) {
+			iv = new long[Nw];
+		}
+		ThreefishEngine.bytesToWords(ivBytes, 0, iv, 0, Nw);
+		reset();
+	}
+
+	@Override
+	public int processBlock(byte[] in, int inOff, byte[] out, int outOff) throws DataLengthException,
+			IllegalStateException {
+		return processBlocks(in, inOff, out, outOff, 1);
+	}
+
+	/**
+	 * Processes consecutive blocks, continuing chain of previous calls.
+	 * 
+	 * @param in
+	 *            input bytes
+	 * @param inOff
+	 *            offset of first block in input array
+	 * @param out
+	 *            output bytes (may be the same array as input, at the same
+	 *            offset)
+	 * @param outOff
+	 *            offset of first block in output array
+	 * @param blockCount
+	 *            number of blocks to process
+	 * @return number of bytes processed
+	 */
+	public int processBlocks(byte[] in, int inOff, byte[] out, int outOff, int blockCount) throws DataLengthException,
+			IllegalStateException {
+		checkInitialised();
+
+		final int length = blockCount * blockSize;
+
+		if ((inOff + length) > in.length) {
+			throw new DataLengthException("input buffer too short");
+		}
+
+		if ((outOff + length) > out.length) {
+			throw new DataLengthException("output buffer too short");
+		}
+
+		for (int done = 0; done < blockCount;) {
+			final int count = Math.min(bulkBlocks, blockCount - done);
+			final int wordCount = count * Nw;
+			final int off = done * blockSize;
+			ThreefishEngine.bytesToWords(in, inOff + off, words, 0, wordCount);
+			if (forEncryption) {
+				encryptWords(words, 0, words, 0, count);
+			} else {
+				decryptWords(words, 0, words, 0, count);
+			}
+			ThreefishEngine.wordsToBytes(words, 0, out, outOff + off, wordCount);
+			done += count;
+		}
+
+		return length;
+	}
+
+	/**
+	 * Processes consecutive blocks given as little-endian words, continuing
+	 * chain of previous calls.
+	 * 
+	 * @param in
+	 *            input words
+	 * @param inOff
+	 *            offset of first block in input array
+	 * @param out
+	 *            output words (may be the same array as input, at the same
+	 *            offset)
+	 * @param outOff
+	 *            offset of first block in output array
+	 * @param blockCount
+	 *            number of blocks to process
+	 * @return number of words processed
+	 */
+	public int processBlocks(long[] in, int inOff, long[] out, int outOff, int blockCount) throws DataLengthException,
+			IllegalStateException {
+		checkInitialised();
+
+		final int length = blockCount * Nw;
+
+		if ((inOff + length) > in.length) {
+			throw new DataLengthException("input buffer too short");
+		}
+
+		if ((outOff + length) > out.length) {
+			throw new DataLengthException("output buffer too short");
+		}
+
+		if (forEncryption) {
+			encryptWords(in, inOff, out, outOff, blockCount);
+		} else {
+			for (int done = 0; done < blockCount;) {
+				final int count = Math.min(bulkBlocks, blockCount - done);
+				decryptWords(in, inOff + done * Nw, out, outOff + done * Nw, count);
+				done += count;
+			}
+		}
+
+		return length;
+	}
+
+	/**
+	 * Restores initialisation vector given on init.
+	 */
+	@Override
+	public void reset() {
+		if (iv != null) {
+			System.arraycopy(iv, 0, chain, 0, Nw);
+		}
+	}
+
+}
@@ -0,0 +1,282 @@
+package org.bouncycastle.crypto.modes;
+
+import org.bouncycastle.crypto.BlockCipher;
+import org.bouncycastle.crypto.CipherParameters;
+import org.bouncycastle.crypto.DataLengthException;
+import org.bouncycastle.crypto.engines.ThreefishEncryptEngine;
+import org.bouncycastle.crypto.engines.ThreefishEngine;
+import org.bouncycastle.crypto.params.ParametersWithIV;
+
+/**
+ * Cipher feedback mode of Threefish working on words, with feedback of whole
+ * block.
+ * 
+ * Output is the same as of {@link CFBBlockCipher} over Threefish with block
+ * size feedback, but feedback block is kept as words and bytes are converted
+ * to words once per call. Blocks of decryption are independent, so their
+ * keystream is generated many blocks at once by
+ * {@link ThreefishEncryptEngine#processBlocks(long[], int, long[], int, int)}.
+ * Feedback shorter than block is not supported.
+ * 
+ */
+public class ThreefishCfbCipher implements BlockCipher {
+
+	/**
+	 * Maximum size of blocks converted or decrypted at once, in bytes
+	 */
+	private static final int BULK_SIZE = 1024;
+
+	private final ThreefishEncryptEngine cipher;
+
+	/**
+	 * Block size in bytes
+	 */
+	private final int blockSize;
+
+	/**
+	 * Number of words in block
+	 */
+	private final int Nw;
+
+	/**
+	 * Maximum number of blocks converted or decrypted at once
+	 */
+	private final int bulkBlocks;
+
+	/**
+	 * Initialisation vector, as words; <code>null</code> until initialised
+	 */
+	private long[] iv;
+
+	/**
+	 * Previous ciphertext block, as words
+	 */
+	private final long[] chain;
+
+	/**
+	 * Ciphertext blocks being decrypted
+	 */
+	private final long[] saved;
+
+	/**
+	 * Keystream of blocks being decrypted
+	 */
+	private final long[] keyStream;
+
+	/**
+	 * Blocks converted from bytes
+	 */
+	private final long[] words;
+
+	private boolean forEncryption;
+
+	/**
+	 * @param cipher
+	 *            underlying Threefish engine
+	 */
+	public ThreefishCfbCipher(ThreefishEncryptEngine cipher) {
+		this.cipher = cipher;
+		this.blockSize = cipher.getBlockSize();
+		this.Nw = blockSize / 8;
+		this.bulkBlocks = Math.max(1, BULK_SIZE / blockSize);
+		this.chain = new long[Nw];
+		this.saved = new long[bulkBlocks * Nw];
+		this.keyStream = new long[bulkBlocks * Nw];
+		this.words = new long[bulkBlocks * Nw];
+	}
+
+	private void checkInitialised() throws IllegalStateException {
+		if (iv == null) {
+			throw new IllegalStateException(getAlgorithmName() + " not initialised");
+		}
+	}
+
+	/**
+	 * Decrypts blocks given as words, at most {@link #bulkBlocks}.
+	 */
+	private void decryptWords(long[] in, int inOff, long[] out, int outOff, int blockCount) {
+		final int length = blockCount * Nw;
+		// keep ciphertext, output may overwrite it
+		System.arraycopy(in, inOff, saved, 0, length);
+		System.arraycopy(chain, 0, keyStream, 0, Nw);
+		System.arraycopy(saved, 0, keyStream, Nw, length - Nw);
+		cipher.processBlocks(keyStream, 0, keyStream, 0, blockCount);
+		for (int i = 0; i < length; i++) {
+			out[outOff + i] = saved[i] ^ keyStream[i];
+		}
+		System.arraycopy(saved, length - Nw, chain, 0, Nw);
+	}
+
+	/**
+	 * Encrypts blocks given as words.
+	 */
+	private void encryptWords(long[] in, int inOff, long[] out, int outOff, int blockCount) {
+		for (int b = 0; b < blockCount; b++) {
+			final int off = b * Nw;
+			cipher.processBlocks(chain, 0, chain, 0, 1);
+			for (int i = 0; i < Nw; i++) {
+				chain[i] ^= in[inOff + off + i];
+			}
+			System.arraycopy(chain, 0, out, outOff + off, Nw);
+		}
+	}
+
+	@Override
+	public String getAlgorithmName() {
+		return cipher.getAlgorithmName() + "/CFB" + (blockSize * 8);
+	}
+
+	@Override
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * @return underlying Threefish engine
+	 */
+	public ThreefishEncryptEngine getUnderlyingCipher() {
+		return cipher;
+	}
+
+	/**
+	 * @param forEncryption
+	 *            <code>true</code> to encrypt; underlying engine always
+	 *            encrypts
+	 * @param params
+	 *            {@link ParametersWithIV} with initialisation vector and key
+	 *            parameters accepted by {@link ThreefishEncryptEngine}, or
+	 *            <code>null</code> to keep current key
+	 */
+	@Override
+	public void init(boolean forEncryption, CipherParameters params) throws IllegalArgumentException {
+		if (!(params instanceof ParametersWithIV)) {
+			throw new IllegalArgumentException("CFB mode requires ParametersWithIV");
+		}
+		final ParametersWithIV ivParams = (ParametersWithIV) params;
+		final byte[] ivBytes = ivParams.getIV();
+		if (ivBytes == null || ivBytes.length != blockSize) {
+			throw new IllegalArgumentException("Invalid IV length - should be " + blockSize + " bytes");
+		}
+
+		if (ivParams.getParameters() != null) {
+			cipher.init(true, ivParams.getParameters());
+		} else if (iv == null) {
+			throw new IllegalArgumentException("Key must be given on first init");
+		}
+		this.forEncryption = forEncryption;
+
+		if (iv == null) {
+			iv = new long[Nw];
+		}
+		ThreefishEngine.bytesToWords(ivBytes, 0, iv, 0, Nw);
+		reset();
+	}
+
+	@Override
+	public int processBlock(byte[] in, int inOff, byte[] out, int outOff) throws DataLengthException,
+			IllegalStateException {
+		return processBlocks(in, inOff, out, outOff, 1);
+	}
+
+	/**
+	 * Processes consecutive blocks, continuing chain of previous calls.
+	 * 
+	 * @param in
+	 *            input bytes
+	 * @param inOff
+	 *            offset of first block in input array
+	 * @param out
+	 *            output bytes (may be the same array as input, at the same
+	 *            offset)
+	 * @param outOff
+	 *            offset of first block in output array
+	 * @param blockCount
+	 *            number of blocks to process
+	 * @return number of bytes processed
+	 */
+	public int processBlocks(byte[] in, int inOff, byte[] out, int outOff, int blockCount) throws DataLengthException,
+			IllegalStateException {
+		checkInitialised();
+
+		final int length = blockCount * blockSize;
+
+		if ((inOff + length) > in.length) {
+			throw new DataLengthException("input buffer too short");
+		}
+
+		if ((outOff + length) > out.length) {
+			throw new DataLengthException("output buffer too short");
+		}
+
+		for (int done = 0; done < blockCount;) {
+			final int count = Math.min(bulkBlocks, blockCount - done);
+			final int wordCount = count * Nw;
+			final int off = done * blockSize;
+			ThreefishEngine.bytesToWords(in, inOff + off, words, 0, wordCount);
+			if (forEncryption) {
+				encryptWords(words, 0, words, 0, count);
+			} else {
+				decryptWords(words, 0, words, 0, count);
+			}
+			ThreefishEngine.wordsToBytes(words, 0, out, outOff + off, wordCount);
+			done += count;
+		}
+
+		return length;
+	}
+
+	/**
+	 * Processes consecutive blocks given as little-endian words, continuing
+	 * chain of previous calls.
+	 * 
+	 * @param in
+	 *            input words
+	 * @param inOff
+	 *            offset of first block in input array
+	 * @param out
+	 *            output words (may be the same array as input, at the same
+	 *            offset)
+	 * @param outOff
+	 *            offset of first block in output array
+	 * @param blockCount
+	 *            number of blocks to process
+	 * @return number of words processed
+	 */
+	public int processBlocks(long[] in, int inOff, long[] out, int outOff, int blockCount) throws DataLengthException,
+			IllegalStateException {
+		checkInitialised();
+
+		final int length = blockCount * Nw;
+
+		if ((inOff + length) > in.length) {
+			throw new DataLengthException("input buffer too short");
+		}
+
+		if ((outOff + length) > out.length) {
+			throw new DataLengthException("output buffer too short");
+		}
+
+		if (forEncryption) {
+			encryptWords(in, inOff, out, outOff, blockCount);
+		} else {
+			for (int done = 0; done < blockCount;) {
+				final int count = Math.min(bulkBlocks, blockCount - done);
+				decryptWords(in, inOff + done * Nw, out, outOff + done * Nw, count);
+				done += count;
+			}
+		}
+
+		return length;
+	}
+
+	/**
+	 * Restores initialisation vector given on init.
+	 */
+	@Override
+	public void reset() {
+		if (iv != null) {
+			System.arraycopy(iv, 0, chain, 0, Nw);
+		}
+	}
+
+}
@@ -0,0 +1,274 @@
+package org.bouncycastle.crypto.modes;
+
+import org.bouncycastle.crypto.CipherParameters;
+import org.bouncycastle.crypto.DataLengthException;
+import org.bouncycastle.crypto.StreamCipher;
+import org.bouncycastle.crypto.engines.ThreefishEncryptEngine;
+import org.bouncycastle.crypto.engines.ThreefishEngine;
+import org.bouncycastle.crypto.params.ParametersWithIV;
+import org.bouncycastle.crypto.util.Pack;
+
+/**
+ * Counter mode of Threefish working on words.
+ * 
+ * Counter is kept as block of words and keystream is produced for many blocks
+ * at once by {@link ThreefishEncryptEngine#processBlocks(long[], int, long[], int, int)},
+ * without converting counter blocks to bytes. Data is combined with keystream
+ * 64 bits at a time, without converting it to separate array of words.
+ * Counter is incremented as by {@link SICBlockCipher} (block is big-endian
+ * number), so output is the same as of
+ * {@link SICBlockCipher} over Threefish, and {@link #seekTo(long)} can move to
+ * any position without generating keystream before it.
+ * 
+ */
+public class ThreefishCtrCipher implements StreamCipher {
+
+	/**
+	 * Maximum size of keystream generated at once, in bytes
+	 */
+	private static final int KEY_STREAM_SIZE = 1024;
+
+	private final ThreefishEncryptEngine cipher;
+
+	/**
+	 * Block size in bytes
+	 */
+	private final int blockSize;
+
+	/**
+	 * Number of words in block
+	 */
+	private final int Nw;
+
+	/**
+	 * Initial counter block, as words; <code>null</code> until initialised
+	 */
+	private long[] iv;
+
+	/**
+	 * Counter block of next keystream block, as words
+	 */
+	private final long[] counter;
+
+	/**
+	 * Keystream blocks, as words
+	 */
+	private final long[] keyStream;
+
+	/**
+	 * Number of keystream bytes generated
+	 */
+	private int keyStreamLength;
+
+	/**
+	 * Number of keystream bytes used
+	 */
+	private int keyStreamPos;
+
+	/**
+	 * Position in stream, in bytes
+	 */
+	private long position;
+
+	/**
+	 * @param cipher
+	 *            underlying Threefish engine
+	 */
+	public ThreefishCtrCipher(ThreefishEncryptEngine cipher) {
+		this.cipher = cipher;
+		this.blockSize = cipher.getBlockSize();
+		this.Nw = blockSize / 8;
+		this.counter = new long[Nw];
+		this.keyStream = new long[Math.max(1, KEY_STREAM_SIZE / blockSize) * Nw];
+	}
+
+	/**
+	 * Adds number of blocks to counter, with carry over whole block.
+	 */
+	private void addToCounter(long blocks) {
+		long carry = blocks;
+		for (int i = Nw - 1; i >= 0 && carry != 0; i--) {
+			final long w = Long.reverseBytes(counter[i]);
+			final long sum = w + carry;
+			// unsigned overflow
+			carry = (sum ^ Long.MIN_VALUE) < (w ^ Long.MIN_VALUE) ? 1 : 0;
+			counter[i] = Long.reverseBytes(sum);
+		}
+	}
+
+	private void checkInitialised() throws IllegalStateException {
+		if (iv == null) {
+			throw new IllegalStateException(getAlgorithmName() + " not initialised");
+		}
+	}
+
+	/**
+	 * Generates keystream for at least <code>length</code> bytes, limited by
+	 * size of keystream buffer.
+	 */
+	private void generateKeyStream(int length) {
+		final int blocks = Math.min(keyStream.length / Nw, (length + blockSize - 1) / blockSize);
+		for (int b = 0; b < blocks; b++) {
+			System.arraycopy(counter, 0, keyStream, b * Nw, Nw);
+			addToCounter(1);
+		}
+		cipher.processBlocks(keyStream, 0, keyStream, 0, blocks);
+		keyStreamLength = blocks * blockSize;
+		keyStreamPos = 0;
+	}
+
+	@Override
+	public String getAlgorithmName() {
+		return cipher.getAlgorithmName() + "/CTR";
+	}
+
+	/**
+	 * @return position in stream, in bytes
+	 */
+	public long getPosition() {
+		return position;
+	}
+
+	/**
+	 * @return underlying Threefish engine
+	 */
+	public ThreefishEncryptEngine getUnderlyingCipher() {
+		return cipher;
+	}
+
+	/**
+	 * Initialises cipher. Encryption and decryption are the same operation.
+	 * 
+	 * @param forEncryption
+	 *            ignored
+	 * @param params
+	 *            {@link ParametersWithIV} with initial counter block and key
+	 *            parameters accepted by {@link ThreefishEncryptEngine}, or
+	 *            <code>null</code> to keep current key
+	 */
+	@Override
+	public void init(boolean forEncryption, CipherParameters params) throws IllegalArgumentException {
+		if (!(params instanceof ParametersWithIV)) {
+			throw new IllegalArgumentException("CTR mode requires ParametersWithIV");
+		}
+		final ParametersWithIV ivParams = (ParametersWithIV) params;
+		final byte[] ivBytes = ivParams.getIV();
+		if (ivBytes == null || ivBytes.length != blockSize) {
+			throw new IllegalArgumentException("Invalid IV length - should be " + blockSize + " bytes");
+		}
+
+		if (ivParams.getParameters() != null) {
+			cipher.init(true, ivParams.getParameters());
+		} else if (iv == null) {
+			throw new IllegalArgumentException("Key must be given on first init");
+		}
+
+		if (iv == null) {
+			iv = new long[Nw];
+		}
+		ThreefishEngine.bytesToWords(ivBytes, 0, iv, 0, Nw);
+		reset();
+	}
+
+	/**
+	 * Processes bytes. Input and output may be the same array, at the same
+	 * offset.
+	 */
+	@Override
+	public void processBytes(byte[] in, int inOff, int len, byte[] out, int outOff) throws DataLengthException {
+		checkInitialised();
+
+		if ((inOff + len) > in.length) {
+			throw new DataLengthException("input buffer too short");
+		}
+
+		if ((outOff + len) > out.length) {
+			throw new DataLengthException("output buffer too short");
+		}
+
+		position += len;
+		final long[] ks = keyStream;
+		while (len > 0) {
+			if (keyStreamPos == keyStreamLength) {
+				generateKeyStream(len);
+			}
+
+			if ((keyStreamPos & 7) == 0) {
+				final int words = Math.min(len, keyStreamLength - keyStreamPos) >>> 3;
+				if (words > 0) {
+					xorWords(in, inOff, ks, keyStreamPos >>> 3, out, outOff, words);
+					inOff += words * 8;
+					outOff += words * 8;
+					keyStreamPos += words * 8;
+					len -= words * 8;
+					continue;
+				}
+			}
+
+			out[outOff++] = (byte) (in[inOff++] ^ (ks[keyStreamPos >>> 3] >>> ((keyStreamPos & 7) << 3)));
+			keyStreamPos++;
+			len--;
+		}
+	}
+
+	@Override
+	public void reset() {
+		if (iv != null) {
+			System.arraycopy(iv, 0, counter, 0, Nw);
+		}
+		keyStreamLength = 0;
+		keyStreamPos = 0;
+		position = 0;
+	}
+
+	@Override
+	public byte returnByte(byte in) {
+		checkInitialised();
+
+		if (keyStreamPos == keyStreamLength) {
+			generateKeyStream(1);
+		}
+		position++;
+		final int pos = keyStreamPos++;
+		return (byte) (in ^ (keyStream[pos >>> 3] >>> ((pos & 7) << 3)));
+	}
+
+	/**
+	 * Moves to given position in stream. Only keystream of block containing
+	 * position is generated.
+	 * 
+	 * @param byteOffset
+	 *            position in stream, in bytes
+	 */
+	public void seekTo(long byteOffset) throws IllegalArgumentException, IllegalStateException {
+		checkInitialised();
+
+		if (byteOffset < 0) {
+			throw new IllegalArgumentException("Invalid position - should not be negative");
+		}
+
+		System.arraycopy(iv, 0, counter, 0, Nw);
+		addToCounter(byteOffset / blockSize);
+		keyStreamLength = 0;
+		keyStreamPos = 0;
+		final int skip = (int) (byteOffset % blockSize);
+		if (skip > 0) {
+			generateKeyStream(1);
+			keyStreamPos = skip;
+		}
+		position = byteOffset;
+	}
+
+	/**
+	 * XORs little-endian words of input bytes with keystream words. Input and
+	 * output may be the same array, at the same offset.
+	 */
+	private static void xorWords(byte[] in, int inOff, long[] words, int wordsOff, byte[] out, int outOff,
+			int wordCount) {
+		for (int i = 0; i < wordCount; i++) {
+			final long w = Pack.littleEndianToLong(in, inOff + i * 8) ^ words[wordsOff + i];
+			Pack.longToLittleEndian(w, out, outOff + i * 8);
+		}
+	}
+
+}
@@ -0,0 +1,233 @@
+package org.bouncycastle.crypto.modes;
+
+import org.bouncycastle.crypto.BlockCipher;
+import org.bouncycastle.crypto.CipherParameters;
+import org.bouncycastle.crypto.DataLengthException;
+import org.bouncycastle.crypto.engines.ThreefishEncryptEngine;
+import org.bouncycastle.crypto.engines.ThreefishEngine;
+import org.bouncycastle.crypto.params.ParametersWithIV;
+
+/**
+ * Output feedback mode of Threefish working on words, with feedback of whole
+ * block.
+ * 
+ * Output is the same as of {@link OFBBlockCipher} over Threefish with block
+ * size feedback, but feedback block is kept as words and bytes are converted
+ * to words once per call. Every keystream block depends on previous one, so
+ * blocks are encrypted one by one. Encryption and decryption are the same
+ * operation. Feedback shorter than block is not supported.
+ * 
+ */
+public class ThreefishOfbCipher implements BlockCipher {
+
+	/**
+	 * Maximum size of blocks converted at once, in bytes
+	 */
+	private static final int BULK_SIZE = 1024;
+
+	private final ThreefishEncryptEngine cipher;
+
+	/**
+	 * Block size in bytes
+	 */
+	private final int blockSize;
+
+	/**
+	 * Number of words in block
+	 */
+	private final int Nw;
+
+	/**
+	 * Maximum number of blocks converted at once
+	 */
+	private final int bulkBlocks;
+
+	/**
+	 * Initialisation vector, as words; <code>null</code> until initialised
+	 */
+	private long[] iv;
+
+	/**
+	 * Last keystream block, as words
+	 */
+	private final long[] chain;
+
+	/**
+	 * Blocks converted from bytes
+	 */
+	private final long[] words;
+
+	/**
+	 * @param cipher
+	 *            underlying Threefish engine
+	 */
+	public ThreefishOfbCipher(ThreefishEncryptEngine cipher) {
+		this.cipher = cipher;
+		this.blockSize = cipher.getBlockSize();
+		this.Nw = blockSize / 8;
+		this.bulkBlocks = Math.max(1, BULK_SIZE / blockSize);
+		this.chain = new long[Nw];
+		this.words = new long[bulkBlocks * Nw];
+	}
+
+	private void checkInitialised() throws IllegalStateException {
+		if (iv == null) {
+			throw new IllegalStateException(getAlgorithmName() + " not initialised");
+		}
+	}
+
+	@Override
+	public String getAlgorithmName() {
+		return cipher.getAlgorithmName() + "/OFB" + (blockSize * 8);
+	}
+
+	@Override
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * @return underlying Threefish engine
+	 */
+	public ThreefishEncryptEngine getUnderlyingCipher() {
+		return cipher;
+	}
+
+	/**
+	 * @param forEncryption
+	 *            ignored
+	 * @param params
+	 *            {@link ParametersWithIV} with initialisation vector and key
+	 *            parameters accepted by {@link ThreefishEncryptEngine}, or
+	 *            <code>null</code> to keep current key
+	 */
+	@Override
+	public void init(boolean forEncryption, CipherParameters params) throws IllegalArgumentException {
+		if (!(params instanceof ParametersWithIV)) {
+			throw new IllegalArgumentException("OFB mode requires ParametersWithIV");
+		}
+		final ParametersWithIV ivParams = (ParametersWithIV) params;
+		final byte[] ivBytes = ivParams.getIV();
+		if (ivBytes == null || ivBytes.length != blockSize) {
+			throw new IllegalArgumentException("Invalid IV length - should be " + blockSize + " bytes");
+		}
+
+		if (ivParams.getParameters() != null) {
+			cipher.init(true, ivParams.getParameters());
+		} else if (iv == null) {
+			throw new IllegalArgumentException("Key must be given on first init");
+		}
+
+		if (iv == null) {
+			iv = new long[Nw];
+		}
+		ThreefishEngine.bytesToWords(ivBytes, 0, iv, 0, Nw);
+		reset();
+	}
+
+	@Override
+	public int processBlock(byte[] in, int inOff, byte[] out, int outOff) throws DataLengthException,
+			IllegalStateException {
+		return processBlocks(in, inOff, out, outOff, 1);
+	}
+
+	/**
+	 * Processes consecutive blocks, continuing keystream of previous calls.
+	 * 
+	 * @param in
+	 *            input bytes
+	 * @param inOff
+	 *            offset of first block in input array
+	 * @param out
+	 *            output bytes (may be the same array as input, at the same
+	 *            offset)
+	 * @param outOff
+	 *            offset of first block in output array
+	 * @param blockCount
+	 *            number of blocks to process
+	 * @return number of bytes processed
+	 */
+	public int processBlocks(byte[] in, int inOff, byte[] out, int outOff, int blockCount) throws DataLengthException,
+			IllegalStateException {
+		checkInitialised();
+
+		final int length = blockCount * blockSize;
+
+		if ((inOff + length) > in.length) {
+			throw new DataLengthException("input buffer too short");
+		}
+
+		if ((outOff + length) > out.length) {
+			throw new DataLengthException("output buffer too short");
+		}
+
+		for (int done = 0; done < blockCount;) {
+			final int count = Math.min(bulkBlocks, blockCount - done);
+			final int wordCount = count * Nw;
+			final int off = done * blockSize;
+			ThreefishEngine.bytesToWords(in, inOff + off, words, 0, wordCount);
+			processWords(words, 0, words, 0, count);
+			ThreefishEngine.wordsToBytes(words, 0, out, outOff + off, wordCount);
+			done += count;
+		}
+
+		return length;
+	}
+
+	/**
+	 * Processes consecutive blocks given as little-endian words, continuing
+	 * keystream of previous calls.
+	 * 
+	 * @param in
+	 *            input words
+	 * @param inOff
+	 *            offset of first block in input array
+	 * @param out
+	 *            output words (may be the same array as input, at the same
+	 *            offset)
+	 * @param outOff
+	 *            offset of first block in output array
+	 * @param blockCount
+	 *            number of blocks to process
+	 * @return number of words processed
+	 */
+	public int processBlocks(long[] in, int inOff, long[] out, int outOff, int blockCount) throws DataLengthException,
+			IllegalStateException {
+		checkInitialised();
+
+		final int length = blockCount * Nw;
+
+		if ((inOff + length) > in.length) {
+			throw new DataLengthException("input buffer too short");
+		}
+
+		if ((outOff + length) > out.length) {
+			throw new DataLengthException("output buffer too short");
+		}
+
+		processWords(in, inOff, out, outOff, blockCount);
+
+		return length;
+	}
+
+	private void processWords(long[] in, int inOff, long[] out, int outOff, int blockCount) {
+		for (int b = 0; b < blockCount; b++) {
+			final int off = b * Nw;
+			cipher.processBlocks(chain, 0, chain, 0, 1);
+			for (int i = 0; i < Nw; i++) {
+				out[outOff + off + i] = in[inOff + off + i] ^ chain[i];
+			}
+		}
+	}
+
+	/**
+	 * Restores initialisation vector given on init.
+	 */
+	@Override
+	public void reset() {
+		if (iv != null) {
+			System.arraycopy(iv, 0, chain, 0, Nw);
+		}
+	}
+
+}
@@ -0,0 +1,375 @@
+package org.bouncycastle.crypto.modes;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.bouncycastle.crypto.CipherParameters;
+import org.bouncycastle.crypto.DataLengthException;
+import org.bouncycastle.crypto.engines.ThreefishEngine;
+
+/**
+ * Threefish sector (disk page) encryption, in the manner of XTS.
+ * 
+ * Block <i>j</i> of sector <i>s</i> is processed with tweak words (<i>s</i>,
+ * <i>j</i>), so every block of storage is encrypted differently and sectors can
+ * be processed independently, in any order. Tweak is changed by
+ * {@link ThreefishEngine#setTweak(long, long)}. If sector size is not a
+ * multiple of block size, last partial block is handled by ciphertext stealing
+ * as in XTS, so ciphertext is as long as plaintext.
+ * 
+ * Sectors are processed in place. Given an executor, calls spanning several
+ * sectors are split into parts processed in parallel; each part has its own
+ * copy of engine ({@link ThreefishEngine#copy()}), so parts share no mutable
+ * state. Call returns only after all its parts have finished, also when it
+ * fails or calling thread is interrupted; remaining parts are then stopped at
+ * next sector and content of sectors is undefined. Instance itself is not
+ * thread-safe.
+ * 
+ */
+public class ThreefishSectorCipher {
+
+	/**
+	 * Processes consecutive sectors of one part.
+	 */
+	private final class Part implements Runnable {
+
+		private final ThreefishEngine engine;
+
+		/**
+		 * Block being processed, as words
+		 */
+		private final long[] block;
+
+		/**
+		 * Last full block and partial block, for ciphertext stealing
+		 */
+		private final byte[] tail;
+
+		private ByteBuffer data;
+
+		private int offset;
+
+		private long sector;
+
+		private int sectorCount;
+
+		/**
+		 * Set when call failed, remaining sectors are skipped
+		 */
+		private volatile boolean stopped;
+
+		Part(ThreefishEngine engine) {
+			this.engine = engine;
+			this.block = new long[blockSize / 8];
+			this.tail = new byte[blockSize + sectorSize % blockSize];
+		}
+
+		@Override
+		public void run() {
+			try {
+				for (int i = 0; i < sectorCount && !stopped; i++) {
+					processSector(sector + i, offset + i * sectorSize);
+				}
+			} finally {
+				data = null;
+			}
+		}
+
+		/**
+		 * Processes one sector of {@link #data} in place.
+		 */
+		private void processSector(long sector, int off) {
+			final int Nw = block.length;
+			final int blocks = sectorSize / blockSize;
+			final int partial = sectorSize % blockSize;
+			final int fullBlocks = partial == 0 ? blocks : blocks - 1;
+
+			for (int j = 0; j < fullBlocks; j++) {
+				final int pos = off + j * blockSize;
+				for (int i = 0; i < Nw; i++) {
+					block[i] = data.getLong(pos + i * 8);
+				}
+				engine.setTweak(sector, j);
+				engine.processBlock(block, 0, block, 0);
+				for (int i = 0; i < Nw; i++) {
+					data.putLong(pos + i * 8, block[i]);
+				}
+			}
+
+			if (partial != 0) {
+				final int pos = off + fullBlocks * blockSize;
+				for (int i = 0; i < tail.length; i++) {
+					tail[i] = data.get(pos + i);
+				}
+				// encryption: CC = E(P[m-1]), C[m-1] = E(P[m] | CC[r..]), C[m] = CC[0..r)
+				// decryption: PP = D(C[m-1]), P[m-1] = D(C[m] | PP[r..]), P[m] = PP[0..r)
+				engine.setTweak(sector, forEncryption ? fullBlocks : fullBlocks + 1);
+				engine.processBlock(tail, 0, tail, 0);
+				for (int i = 0; i < partial; i++) {
+					final byte b = tail[i];
+					tail[i] = tail[blockSize + i];
+					tail[blockSize + i] = b;
+				}
+				engine.setTweak(sector, forEncryption ? fullBlocks + 1 : fullBlocks);
+				engine.processBlock(tail, 0, tail, 0);
+				for (int i = 0; i < tail.length; i++) {
+					data.put(pos + i, tail[i]);
+				}
+			}
+		}
+
+	}
+
+	private final ThreefishEngine cipher;
+
+	/**
+	 * Block size in bytes
+	 */
+	private final int blockSize;
+
+	/**
+	 * Sector size in bytes
+	 */
+	private final int sectorSize;
+
+	/**
+	 * Executor of parts other than first, or <code>null</code>
+	 */
+	private final ExecutorService executor;
+
+	/**
+	 * Maximum number of parts processed at once
+	 */
+	private final int parallelism;
+
+	private boolean forEncryption;
+
+	/**
+	 * Parts, each with own copy of engine; <code>null</code> until initialised
+	 */
+	private Part[] parts;
+
+	/**
+	 * Creates cipher processing sectors in calling thread.
+	 * 
+	 * @param cipher
+	 *            underlying Threefish engine
+	 * @param sectorSize
+	 *            sector size in bytes, at least block size
+	 */
+	public ThreefishSectorCipher(ThreefishEngine cipher, int sectorSize) {
+		this(cipher, sectorSize, null, 1);
+	}
+
+	/**
+	 * Creates cipher processing sectors in parallel.
+	 * 
+	 * @param cipher
+	 *            underlying Threefish engine
+	 * @param sectorSize
+	 *            sector size in bytes, at least block size
+	 * @param executor
+	 *            executor running all parts of call but first, which is
+	 *            processed by calling thread
+	 * @param parallelism
+	 *            maximum number of parts call is split into
+	 */
+	public ThreefishSectorCipher(ThreefishEngine cipher, int sectorSize, ExecutorService executor, int parallelism) {
+		if (sectorSize < cipher.getBlockSize()) {
+			throw new IllegalArgumentException("Invalid sector size - should be at least " + cipher.getBlockSize()
+					+ " bytes");
+		}
+		if (parallelism < 1 || (parallelism > 1 && executor == null)) {
+			throw new IllegalArgumentException("Parallelism must be positive and requires executor");
+		}
+		this.cipher = cipher;
+		this.blockSize = cipher.getBlockSize();
+		this.sectorSize = sectorSize;
+		this.executor = executor;
+		this.parallelism = parallelism;
+	}
+
+	public String getAlgorithmName() {
+		return cipher.getAlgorithmName() + "/Sector";
+	}
+
+	/**
+	 * @return sector size in bytes
+	 */
+	public int getSectorSize() {
+		return sectorSize;
+	}
+
+	/**
+	 * @return underlying Threefish engine
+	 */
+	public ThreefishEngine getUnderlyingCipher() {
+		return cipher;
+	}
+
+	/**
+	 * @param forEncryption
+	 *            <code>true</code> to encrypt sectors
+	 * @param params
+	 *            key parameters accepted by {@link ThreefishEngine}; tweak is
+	 *            replaced by sector and block number
+	 */
+	public void init(boolean forEncryption, CipherParameters params) throws IllegalArgumentException {
+		cipher.init(forEncryption, params);
+		this.forEncryption = forEncryption;
+		final Part[] parts = new Part[parallelism];
+		parts[0] = new Part(cipher);
+		for (int i = 1; i < parallelism; i++) {
+			parts[i] = new Part(cipher.copy());
+		}
+		this.parts = parts;
+	}
+
+	/**
+	 * Processes consecutive sectors. Input and output may be the same array;
+	 * otherwise input is copied to output first and processed there.
+	 * 
+	 * @param firstSector
+	 *            number of first sector
+	 * @param in
+	 *            input sectors
+	 * @param inOff
+	 *            offset of first sector in input array
+	 * @param out
+	 *            output sectors
+	 * @param outOff
+	 *            offset of first sector in output array
+	 * @param sectorCount
+	 *            number of sectors
+	 * @return number of bytes processed
+	 */
+	public int processSectors(long firstSector, byte[] in, int inOff, byte[] out, int outOff, int sectorCount)
+			throws DataLengthException, IllegalStateException {
+		final int length = sectorCount * sectorSize;
+
+		if ((inOff + length) > in.length) {
+			throw new DataLengthException("input buffer too short");
+		}
+
+		if ((outOff + length) > out.length) {
+			throw new DataLengthException("output buffer too short");
+		}
+
+		if (in != out || inOff != outOff) {
+			System.arraycopy(in, inOff, out, outOff, length);
+		}
+		process(firstSector, ByteBuffer.wrap(out), outOff, sectorCount);
+		return length;
+	}
+
+	/**
+	 * Processes in place all remaining bytes of buffer, which must be whole
+	 * sectors, and moves buffer position to its limit.
+	 * 
+	 * @param firstSector
+	 *            number of first sector
+	 * @param data
+	 *            sectors, heap or direct buffer
+	 * @return number of bytes processed
+	 */
+	public int processSectors(long firstSector, ByteBuffer data) throws DataLengthException, IllegalStateException {
+		final int length = data.remaining();
+		if (length % sectorSize != 0) {
+			throw new DataLengthException("data is not a multiple of sector size");
+		}
+
+		process(firstSector, data.duplicate(), data.position(), length / sectorSize);
+		data.position(data.limit());
+		return length;
+	}
+
+	/**
+	 * Splits sectors into parts and processes them.
+	 * 
+	 * @param data
+	 *            buffer owned by this call
+	 */
+	private void process(long firstSector, ByteBuffer data, int offset, int sectorCount) throws IllegalStateException {
+		if (parts == null) {
+			throw new IllegalStateException(getAlgorithmName() + " not initialised");
+		}
+
+		final int partCount = Math.max(1, Math.min(parallelism, sectorCount));
+		final int perPart = (sectorCount + partCount - 1) / partCount;
+		data.order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0, done = 0; i < partCount; i++) {
+			final Part part = parts[i];
+			part.data = i == 0 ? data : data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+			part.offset = offset + done * sectorSize;
+			part.sector = firstSector + done;
+			part.sectorCount = Math.min(perPart, sectorCount - done);
+			part.stopped = false;
+			done += part.sectorCount;
+		}
+
+		if (partCount == 1) {
+			parts[0].run();
+			return;
+		}
+
+		final Future<?>[] futures = new Future<?>[partCount];
+		RuntimeException failure = null;
+		int submitted = 1;
+		try {
+			for (; submitted < partCount; submitted++) {
+				futures[submitted] = executor.submit(parts[submitted]);
+			}
+			parts[0].run();
+		} catch (RuntimeException e) {
+			failure = e;
+			stop(submitted);
+		}
+
+		// parts use buffer and engines of this call, so all of them must finish
+		// before returning, even if waiting is interrupted
+		boolean interrupted = false;
+		for (int i = 1; i < submitted; i++) {
+			while (true) {
+				try {
+					futures[i].get();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+					if (failure == null) {
+						failure = new IllegalStateException("interrupted while waiting for sectors");
+						stop(submitted);
+					}
+				} catch (ExecutionException e) {
+					if (failure == null) {
+						failure = e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause()
+								: new IllegalStateException("sector processing failed: " + e.getCause());
+						stop(submitted);
+					}
+					break;
+				}
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Makes parts skip their remaining sectors.
+	 * 
+	 * @param partCount
+	 *            number of parts started
+	 */
+	private void stop(int partCount) {
+		for (int i = 0; i < partCount; i++) {
+			parts[i].stopped = true;
+		}
+	}
+
+}
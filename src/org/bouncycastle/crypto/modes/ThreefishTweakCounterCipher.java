@@ -0,0 +1,251 @@
+package org.bouncycastle.crypto.modes;
+
+import org.bouncycastle.crypto.BlockCipher;
+import org.bouncycastle.crypto.CipherParameters;
+import org.bouncycastle.crypto.DataLengthException;
+import org.bouncycastle.crypto.engines.ThreefishEngine;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.crypto.params.ThreefishParameters;
+import org.bouncycastle.crypto.util.Pack;
+
+/**
+ * Threefish mode which encrypts each block with its index in tweak.
+ * 
+ * Block with index <i>i</i> is processed with tweak words (<i>i</i>,
+ * <i>id</i>): first word of tweak given on init is index of first block, second
+ * word identifies the stream (file, nonce). Blocks are independent, so any
+ * range of blocks can be processed after {@link #seekTo(long)}, and ranges can
+ * be processed in parallel by copies ({@link #copy()}). Unlike counter mode,
+ * reusing stream identifier reveals only which blocks at the same index are
+ * equal, not plaintext.
+ * 
+ * Tweak is changed for every block by
+ * {@link ThreefishEngine#setTweak(long, long)}, which adjusts subkeys without
+ * expanding key again.
+ * 
+ */
+public class ThreefishTweakCounterCipher implements BlockCipher {
+
+	private final ThreefishEngine cipher;
+
+	/**
+	 * Block size in bytes
+	 */
+	private final int blockSize;
+
+	/**
+	 * Index of first block after init or reset
+	 */
+	private long firstBlock;
+
+	/**
+	 * Index of next block
+	 */
+	private long blockIndex;
+
+	/**
+	 * Stream identifier, second word of tweak
+	 */
+	private long id;
+
+	/**
+	 * @param cipher
+	 *            underlying Threefish engine
+	 */
+	public ThreefishTweakCounterCipher(ThreefishEngine cipher) {
+		this.cipher = cipher;
+		this.blockSize = cipher.getBlockSize();
+	}
+
+	private ThreefishTweakCounterCipher(ThreefishTweakCounterCipher mode) {
+		this.cipher = mode.cipher.copy();
+		this.blockSize = mode.blockSize;
+		this.firstBlock = mode.firstBlock;
+		this.blockIndex = mode.blockIndex;
+		this.id = mode.id;
+	}
+
+	/**
+	 * Creates cipher with the same key, stream identifier, work mode and
+	 * position, sharing key schedule as {@link ThreefishEngine#copy()}. Copies
+	 * may process different ranges of stream in parallel.
+	 * 
+	 * @return copy of this cipher
+	 */
+	public ThreefishTweakCounterCipher copy() {
+		return new ThreefishTweakCounterCipher(this);
+	}
+
+	@Override
+	public String getAlgorithmName() {
+		return cipher.getAlgorithmName() + "/TweakCounter";
+	}
+
+	/**
+	 * @return index of next block
+	 */
+	public long getBlockIndex() {
+		return blockIndex;
+	}
+
+	@Override
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * @return underlying Threefish engine
+	 */
+	public ThreefishEngine getUnderlyingCipher() {
+		return cipher;
+	}
+
+	/**
+	 * @param params
+	 *            {@link ThreefishParameters} with key, index of first block
+	 *            (tweak bytes 0-7) and stream identifier (tweak bytes 8-15), or
+	 *            {@link KeyParameter} for zero index and identifier
+	 */
+	@Override
+	public void init(boolean forEncryption, CipherParameters params) throws IllegalArgumentException {
+		if (params instanceof ThreefishParameters) {
+			final byte[] tweak = ((ThreefishParameters) params).getTweak();
+			if (tweak == null || tweak.length != 16) {
+				throw new IllegalArgumentException("Invalid Tweak length - should be 16 bytes");
+			}
+			cipher.init(forEncryption, params);
+			this.firstBlock = Pack.littleEndianToLong(tweak, 0);
+			this.id = Pack.littleEndianToLong(tweak, 8);
+		} else if (params instanceof KeyParameter) {
+			cipher.init(forEncryption, params);
+			this.firstBlock = 0;
+			this.id = 0;
+		} else {
+			throw new IllegalArgumentException("Invalid parameter passed to " + getAlgorithmName() + " init - "
+					+ params.getClass().getName());
+		}
+		this.blockIndex = firstBlock;
+	}
+
+	/**
+	 * Processes block at current index and moves to next one.
+	 */
+	@Override
+	public int processBlock(byte[] in, int inOff, byte[] out, int outOff) throws DataLengthException,
+			IllegalStateException {
+		cipher.setTweak(blockIndex, id);
+		cipher.processBlock(in, inOff, out, outOff);
+		blockIndex++;
+		return blockSize;
+	}
+
+	/**
+	 * Processes consecutive blocks, starting at current index.
+	 * 
+	 * @param in
+	 *            input bytes
+	 * @param inOff
+	 *            offset of first block in input array
+	 * @param out
+	 *            output bytes (may be the same array as input, ranges may
+	 *            overlap)
+	 * @param outOff
+	 *            offset of first block in output array
+	 * @param blockCount
+	 *            number of blocks to process
+	 * @return number of bytes processed
+	 */
+	public int processBlocks(byte[] in, int inOff, byte[] out, int outOff, int blockCount) throws DataLengthException,
+			IllegalStateException {
+		final int length = blockCount * blockSize;
+
+		if ((inOff + length) > in.length) {
+			throw new DataLengthException("input buffer too short");
+		}
+
+		if ((outOff + length) > out.length) {
+			throw new DataLengthException("output buffer too short");
+		}
+
+		if (in == out && outOff > inOff && outOff < inOff + length) {
+			// output would overwrite input not read yet, process from last block
+			for (int i = blockCount - 1; i >= 0; i--) {
+				cipher.setTweak(blockIndex + i, id);
+				cipher.processBlock(in, inOff + i * blockSize, out, outOff + i * blockSize);
+			}
+		} else {
+			for (int i = 0; i < blockCount; i++) {
+				cipher.setTweak(blockIndex + i, id);
+				cipher.processBlock(in, inOff + i * blockSize, out, outOff + i * blockSize);
+			}
+		}
+		blockIndex += blockCount;
+
+		return length;
+	}
+
+	/**
+	 * Processes consecutive blocks given as little-endian words, starting at
+	 * current index.
+	 * 
+	 * @param in
+	 *            input words
+	 * @param inOff
+	 *            offset of first block in input array
+	 * @param out
+	 *            output words (may be the same array as input, ranges may
+	 *            overlap)
+	 * @param outOff
+	 *            offset of first block in output array
+	 * @param blockCount
+	 *            number of blocks to process
+	 * @return number of words processed
+	 */
+	public int processBlocks(long[] in, int inOff, long[] out, int outOff, int blockCount) throws DataLengthException,
+			IllegalStateException {
+		final int Nw = blockSize / 8;
+		final int length = blockCount * Nw;
+
+		if ((inOff + length) > in.length) {
+			throw new DataLengthException("input buffer too short");
+		}
+
+		if ((outOff + length) > out.length) {
+			throw new DataLengthException("output buffer too short");
+		}
+
+		if (in == out && outOff > inOff && outOff < inOff + length) {
+			for (int i = blockCount - 1; i >= 0; i--) {
+				cipher.setTweak(blockIndex + i, id);
+				cipher.processBlock(in, inOff + i * Nw, out, outOff + i * Nw);
+			}
+		} else {
+			for (int i = 0; i < blockCount; i++) {
+				cipher.setTweak(blockIndex + i, id);
+				cipher.processBlock(in, inOff + i * Nw, out, outOff + i * Nw);
+			}
+		}
+		blockIndex += blockCount;
+
+		return length;
+	}
+
+	/**
+	 * Moves back to index of first block given on init.
+	 */
+	@Override
+	public void reset() {
+		blockIndex = firstBlock;
+	}
+
+	/**
+	 * Moves to given block, in constant time.
+	 * 
+	 * @param blockIndex
+	 *            index of next block to process
+	 */
+	public void seekTo(long blockIndex) {
+		this.blockIndex = blockIndex;
+	}
+
+}
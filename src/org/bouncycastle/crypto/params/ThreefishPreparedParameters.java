@@ -0,0 +1,173 @@
+package org.bouncycastle.crypto.params;
+
+import org.bouncycastle.crypto.CipherParameters;
+import org.bouncycastle.crypto.engines.ThreefishEngine;
+import org.bouncycastle.crypto.util.Pack;
+
+/**
+ * Threefish key and tweak converted to words once, when parameters are
+ * created.
+ * 
+ * {@link ThreefishEngine#init(boolean, CipherParameters)} copies key words and
+ * tweak words from these parameters, without validating and converting bytes
+ * again, so initialising engine costs only filling its subkeys (or copying key
+ * words, if engine does not precompute subkeys). Parameters are immutable and
+ * may be shared by any number of engines and threads: key and tweak are copied
+ * when given and when returned, as bytes or as words. As they extend
+ * {@link ThreefishParameters}, they are also accepted by code which knows only
+ * byte form.
+ * 
+ */
+public class ThreefishPreparedParameters extends ThreefishParameters {
+
+	/**
+	 * Parity of key words, as defined by Threefish key schedule
+	 */
+	private static final long C240 = 0x1BD11BDAA9FC1A22L;
+
+	/**
+	 * Key words followed by parity word
+	 */
+	private final long[] kw;
+
+	private final long t0;
+
+	private final long t1;
+
+	/**
+	 * Creates parameters with zero tweak.
+	 * 
+	 * @param key
+	 *            32, 64 or 128 bytes of key
+	 */
+	public ThreefishPreparedParameters(byte[] key) {
+		this(key, 0, 0);
+	}
+
+	/**
+	 * @param key
+	 *            32, 64 or 128 bytes of key
+	 * @param tweak
+	 *            16 bytes of tweak
+	 */
+	public ThreefishPreparedParameters(byte[] key, byte[] tweak) {
+		this(checkKey(key), extend(key), checkTweak(tweak), Pack.littleEndianToLong(tweak, 0),
+				Pack.littleEndianToLong(tweak, 8));
+	}
+
+	/**
+	 * @param key
+	 *            32, 64 or 128 bytes of key
+	 * @param t0
+	 *            first word of tweak (little-endian bytes 0-7)
+	 * @param t1
+	 *            second word of tweak (little-endian bytes 8-15)
+	 */
+	public ThreefishPreparedParameters(byte[] key, long t0, long t1) {
+		this(checkKey(key), extend(key), tweakToBytes(t0, t1), t0, t1);
+	}
+
+	private ThreefishPreparedParameters(byte[] key, long[] kw, byte[] tweak, long t0, long t1) {
+		super(key, tweak);
+		this.kw = kw;
+		this.t0 = t0;
+		this.t1 = t1;
+	}
+
+	private static byte[] checkKey(byte[] key) {
+		if (key == null || (key.length != 32 && key.length != 64 && key.length != 128)) {
+			throw new IllegalArgumentException("Invalid Key length - should be 32, 64 or 128 bytes");
+		}
+		return key.clone();
+	}
+
+	private static byte[] checkTweak(byte[] tweak) {
+		if (tweak == null || tweak.length != 16) {
+			throw new IllegalArgumentException("Invalid Tweak length - should be 16 bytes");
+		}
+		return tweak.clone();
+	}
+
+	private static long[] extend(byte[] key) {
+		final int Nw = key.length / 8;
+		final long[] kw = new long[Nw + 1];
+		long parity = C240;
+		for (int i = 0; i < Nw; i++) {
+			kw[i] = Pack.littleEndianToLong(key, i * 8);
+			parity ^= kw[i];
+		}
+		kw[Nw] = parity;
+		return kw;
+	}
+
+	private static byte[] tweakToBytes(long t0, long t1) {
+		final byte[] tweak = new byte[16];
+		Pack.longToLittleEndian(t0, tweak, 0);
+		Pack.longToLittleEndian(t1, tweak, 8);
+		return tweak;
+	}
+
+	/**
+	 * @return block size in bytes
+	 */
+	public int getBlockSize() {
+		return (kw.length - 1) * 8;
+	}
+
+	/**
+	 * Copies key words followed by parity word of key schedule.
+	 * 
+	 * @param dest
+	 *            receives block size / 8 + 1 words
+	 * @param destOff
+	 *            offset in destination array
+	 */
+	public void copyKeyWords(long[] dest, int destOff) {
+		System.arraycopy(kw, 0, dest, destOff, kw.length);
+	}
+
+	/**
+	 * @return copy of key
+	 */
+	@Override
+	public byte[] getKey() {
+		return super.getKey().clone();
+	}
+
+	/**
+	 * @return copy of tweak
+	 */
+	@Override
+	public byte[] getTweak() {
+		return super.getTweak().clone();
+	}
+
+	/**
+	 * @return first word of tweak (little-endian bytes 0-7)
+	 */
+	public long getTweak0() {
+		return t0;
+	}
+
+	/**
+	 * @return second word of tweak (little-endian bytes 8-15)
+	 */
+	public long getTweak1() {
+		return t1;
+	}
+
+	/**
+	 * Creates parameters with the same key and different tweak. Key is not
+	 * converted again; its words are shared with this instance.
+	 * 
+	 * @param t0
+	 *            first word of tweak (little-endian bytes 0-7)
+	 * @param t1
+	 *            second word of tweak (little-endian bytes 8-15)
+	 * @return new parameters
+	 */
+	public ThreefishPreparedParameters withTweak(long t0, long t1) {
+		return new ThreefishPreparedParameters(super.getKey(), kw, tweakToBytes(t0, t1), t0, t1);
+	}
+
+}
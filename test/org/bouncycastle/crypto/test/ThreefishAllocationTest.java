@@ -0,0 +1,112 @@
+package org.bouncycastle.crypto.test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+
+import org.bouncycastle.crypto.BlockCipher;
+import org.bouncycastle.crypto.engines.ThreefishEncryptEngine;
+import org.bouncycastle.crypto.engines.ThreefishEngine;
+import org.bouncycastle.crypto.params.ThreefishParameters;
+import org.bouncycastle.crypto.params.ThreefishPreparedParameters;
+import org.bouncycastle.util.test.SimpleTest;
+
+/**
+ * Checks that processing blocks with initialised engine does not allocate
+ * memory.
+ */
+public class ThreefishAllocationTest extends SimpleTest {
+
+	private static final int BLOCKS = 10000;
+
+	/**
+	 * Tolerance for allocations made by measurement itself.
+	 */
+	private static final long TOLERANCE = 1024;
+
+	public static void main(String[] args) {
+		runTest(new ThreefishAllocationTest());
+	}
+
+	private Method allocatedBytes;
+
+	private ThreadMXBean threadBean;
+
+	private long allocatedBytes() throws Exception {
+		return ((Long) allocatedBytes.invoke(threadBean, Long.valueOf(Thread.currentThread().getId()))).longValue();
+	}
+
+	private void checkAllocation(BlockCipher engine, boolean forEncryption) throws Exception {
+		final int blockSize = engine.getBlockSize();
+		engine.init(forEncryption, new ThreefishParameters(new byte[blockSize], new byte[16]));
+
+		final byte[] in = new byte[blockSize];
+		final byte[] out = new byte[blockSize];
+
+		// warm up
+		for (int i = 0; i < BLOCKS; i++) {
+			engine.processBlock(in, 0, out, 0);
+		}
+
+		final long before = allocatedBytes();
+		for (int i = 0; i < BLOCKS; i++) {
+			engine.processBlock(in, 0, out, 0);
+		}
+		final long allocated = allocatedBytes() - before;
+
+		if (allocated > TOLERANCE) {
+			fail(engine.getAlgorithmName() + "-" + blockSize * 8 + (forEncryption ? " encryption" : " decryption")
+					+ " allocated " + allocated + " bytes for " + BLOCKS + " blocks");
+		}
+	}
+
+	private void checkInitAllocation(ThreefishEngine engine) throws Exception {
+		final int blockSize = engine.getBlockSize();
+		final ThreefishPreparedParameters params = new ThreefishPreparedParameters(new byte[blockSize], 1, 2);
+
+		// warm up
+		for (int i = 0; i < BLOCKS; i++) {
+			engine.init(true, params);
+		}
+
+		final long before = allocatedBytes();
+		for (int i = 0; i < BLOCKS; i++) {
+			engine.init(true, params);
+		}
+		final long allocated = allocatedBytes() - before;
+
+		if (allocated > TOLERANCE) {
+			fail("Threefish-" + blockSize * 8 + " init with prepared parameters allocated " + allocated + " bytes for "
+					+ BLOCKS + " calls");
+		}
+	}
+
+	@Override
+	public String getName() {
+		return "ThreefishAllocation";
+	}
+
+	@Override
+	public void performTest() throws Exception {
+		threadBean = ManagementFactory.getThreadMXBean();
+		try {
+			allocatedBytes = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+			allocatedBytes();
+		} catch (Exception e) {
+			// allocation counters are not supported by this JVM
+			return;
+		}
+
+		final int[] keyLengths = { 256, 512, 1024 };
+		for (int i = 0; i < keyLengths.length; i++) {
+			checkAllocation(new ThreefishEngine(keyLengths[i]), true);
+			checkAllocation(new ThreefishEngine(keyLengths[i]), false);
+			checkAllocation(new ThreefishEngine(keyLengths[i], false), true);
+			checkAllocation(new ThreefishEngine(keyLengths[i], false), false);
+			checkAllocation(new ThreefishEncryptEngine(keyLengths[i]), true);
+			checkInitAllocation(new ThreefishEngine(keyLengths[i]));
+			checkInitAllocation(new ThreefishEngine(keyLengths[i], false));
+		}
+	}
+
+}
@@ -0,0 +1,223 @@
+package org.bouncycastle.crypto.test;
+
+import java.util.Random;
+
+import org.bouncycastle.crypto.engines.ThreefishEngine;
+import org.bouncycastle.crypto.engines.ThreefishKeyScheduleCache;
+import org.bouncycastle.crypto.params.ThreefishParameters;
+
+/**
+ * Simple benchmark of Threefish engine variants. Prints throughput and memory
+ * retained per keyed engine for each block size, and rate of encrypting single
+ * blocks under many different keys, with and without cache of key schedules,
+ * with one tweak per key or new tweak every time.
+ */
+public class ThreefishBenchmark {
+
+	/**
+	 * Creates initialised engines.
+	 */
+	private static abstract class EngineFactory {
+
+		abstract ThreefishEngine create(int keyLength, ThreefishParameters params);
+
+	}
+
+	private static final int[] KEY_LENGTHS = { 256, 512, 1024 };
+
+	/**
+	 * Number of engines kept to measure retained memory
+	 */
+	private static final int ENGINES = 20000;
+
+	/**
+	 * Size of data processed in single call
+	 */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Time of single measurement
+	 */
+	private static final long MEASURE_NANOS = 500L * 1000 * 1000;
+
+	/**
+	 * Number of keys used by multi-key measurement
+	 */
+	private static final int KEYS = 1024;
+
+	/**
+	 * Number of tweaks used with each key when tweak varies
+	 */
+	private static final int TWEAKS = 16;
+
+	private static final Random random = new Random();
+
+	private static final EngineFactory PRECOMPUTED = new EngineFactory() {
+		@Override
+		ThreefishEngine create(int keyLength, ThreefishParameters params) {
+			ThreefishEngine engine = new ThreefishEngine(keyLength);
+			engine.init(true, params);
+			return engine;
+		}
+	};
+
+	private static final EngineFactory ON_THE_FLY = new EngineFactory() {
+		@Override
+		ThreefishEngine create(int keyLength, ThreefishParameters params) {
+			ThreefishEngine engine = new ThreefishEngine(keyLength, false);
+			engine.init(true, params);
+			return engine;
+		}
+	};
+
+	public static void main(String[] args) {
+		System.out.println("key schedule   bits      MB/s  bytes/engine");
+		for (int i = 0; i < KEY_LENGTHS.length; i++) {
+			report("precomputed", KEY_LENGTHS[i], PRECOMPUTED);
+			report("on-the-fly", KEY_LENGTHS[i], ON_THE_FLY);
+		}
+
+		System.out.println();
+		System.out.println("one block per key   bits  blocks/ms");
+		for (int i = 0; i < KEY_LENGTHS.length; i++) {
+			System.out.println(String.format("%-17s %6d %10.1f", "init precomputed", KEY_LENGTHS[i],
+					multiKey(KEY_LENGTHS[i], new ThreefishEngine(KEY_LENGTHS[i]), 1)));
+			System.out.println(String.format("%-17s %6d %10.1f", "init on-the-fly", KEY_LENGTHS[i],
+					multiKey(KEY_LENGTHS[i], new ThreefishEngine(KEY_LENGTHS[i], false), 1)));
+			System.out.println(String.format("%-17s %6d %10.1f", "init cached", KEY_LENGTHS[i],
+					multiKey(KEY_LENGTHS[i], cached(KEY_LENGTHS[i], false), 1)));
+			System.out.println(String.format("%-17s %6d %10.1f", "init cached zero", KEY_LENGTHS[i],
+					multiKey(KEY_LENGTHS[i], cached(KEY_LENGTHS[i], true), 1)));
+		}
+
+		System.out.println();
+		System.out.println("new tweak per block bits  blocks/ms");
+		for (int i = 0; i < KEY_LENGTHS.length; i++) {
+			System.out.println(String.format("%-17s %6d %10.1f", "init precomputed", KEY_LENGTHS[i],
+					multiKey(KEY_LENGTHS[i], new ThreefishEngine(KEY_LENGTHS[i]), TWEAKS)));
+			System.out.println(String.format("%-17s %6d %10.1f", "init cached", KEY_LENGTHS[i],
+					multiKey(KEY_LENGTHS[i], cached(KEY_LENGTHS[i], false), TWEAKS)));
+			System.out.println(String.format("%-17s %6d %10.1f", "init cached zero", KEY_LENGTHS[i],
+					multiKey(KEY_LENGTHS[i], cached(KEY_LENGTHS[i], true), TWEAKS)));
+		}
+	}
+
+	/**
+	 * @return engine taking key schedules from cache holding all keys of
+	 *         multi-key measurement
+	 */
+	private static ThreefishEngine cached(int keyLength, boolean zeroizeOnEviction) {
+		ThreefishEngine engine = new ThreefishEngine(keyLength);
+		engine.setKeyScheduleCache(new ThreefishKeyScheduleCache(KEYS, zeroizeOnEviction));
+		return engine;
+	}
+
+	/**
+	 * Measures encryption of one block per key with
+	 * {@link ThreefishEngine#init(boolean, org.bouncycastle.crypto.CipherParameters)}
+	 * followed by {@link ThreefishEngine#processBlock(byte[], int, byte[], int)}.
+	 * 
+	 * @param tweaks
+	 *            number of different tweaks used with each key, one after
+	 *            another
+	 * @return blocks per millisecond
+	 */
+	private static double multiKey(int keyLength, ThreefishEngine engine, int tweaks) {
+		ThreefishParameters[] params = new ThreefishParameters[KEYS * tweaks];
+		for (int i = 0; i < KEYS; i++) {
+			params[i] = params(keyLength);
+		}
+		for (int i = KEYS; i < params.length; i++) {
+			byte[] tweak = new byte[16];
+			random.nextBytes(tweak);
+			params[i] = new ThreefishParameters(params[i % KEYS].getKey(), tweak);
+		}
+		byte[] buf = new byte[keyLength / 8];
+
+		double result = 0;
+		for (int round = 0; round < 5; round++) {
+			long blocks = 0;
+			final long start = System.nanoTime();
+			long time;
+			do {
+				for (int i = 0; i < params.length; i++) {
+					engine.init(true, params[i]);
+					engine.processBlock(buf, 0, buf, 0);
+				}
+				blocks += params.length;
+				time = System.nanoTime() - start;
+			} while (time < MEASURE_NANOS);
+			result = Math.max(result, blocks * 1000.0 * 1000 / time);
+		}
+		return result;
+	}
+
+	private static ThreefishParameters params(int keyLength) {
+		byte[] key = new byte[keyLength / 8];
+		byte[] tweak = new byte[16];
+		random.nextBytes(key);
+		random.nextBytes(tweak);
+		return new ThreefishParameters(key, tweak);
+	}
+
+	private static void report(String name, int keyLength, EngineFactory factory) {
+		System.out.println(String.format("%-12s %6d %9.1f %13d", name, keyLength, throughput(keyLength, factory),
+				retained(keyLength, factory)));
+	}
+
+	/**
+	 * Measures memory used by keyed engines.
+	 *
+	 * @return bytes per engine
+	 */
+	private static long retained(int keyLength, EngineFactory factory) {
+		ThreefishParameters[] params = new ThreefishParameters[ENGINES];
+		for (int i = 0; i < ENGINES; i++) {
+			params[i] = params(keyLength);
+		}
+		ThreefishEngine[] engines = new ThreefishEngine[ENGINES];
+		final long before = usedMemory();
+		for (int i = 0; i < ENGINES; i++) {
+			engines[i] = factory.create(keyLength, params[i]);
+		}
+		final long after = usedMemory();
+		if (engines[random.nextInt(ENGINES)] == null) {
+			throw new IllegalStateException();
+		}
+		return (after - before) / ENGINES;
+	}
+
+	/**
+	 * Measures speed of bulk encryption.
+	 *
+	 * @return megabytes per second
+	 */
+	private static double throughput(int keyLength, EngineFactory factory) {
+		ThreefishEngine engine = factory.create(keyLength, params(keyLength));
+		byte[] buf = new byte[BUFFER_SIZE];
+		final int blocks = BUFFER_SIZE / engine.getBlockSize();
+
+		double result = 0;
+		for (int round = 0; round < 5; round++) {
+			long bytes = 0;
+			final long start = System.nanoTime();
+			long time;
+			do {
+				engine.processBlocks(buf, 0, buf, 0, blocks);
+				bytes += BUFFER_SIZE;
+				time = System.nanoTime() - start;
+			} while (time < MEASURE_NANOS);
+			result = Math.max(result, bytes * 1000.0 / time);
+		}
+		return result;
+	}
+
+	private static long usedMemory() {
+		final Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+}
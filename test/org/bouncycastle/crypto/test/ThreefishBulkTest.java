@@ -0,0 +1,411 @@
+package org.bouncycastle.crypto.test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import org.bouncycastle.crypto.DataLengthException;
+import org.bouncycastle.crypto.engines.ThreefishEncryptEngine;
+import org.bouncycastle.crypto.engines.ThreefishEngine;
+import org.bouncycastle.crypto.engines.VectorizedThreefishEngine;
+import org.bouncycastle.crypto.params.ThreefishParameters;
+import org.bouncycastle.util.test.SimpleTest;
+
+/**
+ * Checks that multi-block and word-level processing gives the same result as
+ * processing block by block.
+ */
+public class ThreefishBulkTest extends SimpleTest {
+
+	private static final int BLOCKS = 131;
+
+	private static final int[] KEY_LENGTHS = { 256, 512, 1024 };
+
+	public static void main(String[] args) {
+		runTest(new ThreefishBulkTest());
+	}
+
+	private static long[] toWords(byte[] data) {
+		long[] result = new long[data.length / 8];
+		for (int i = 0; i < result.length; i++) {
+			for (int j = 7; j >= 0; j--) {
+				result[i] = (result[i] << 8) | (data[i * 8 + j] & 0xFF);
+			}
+		}
+		return result;
+	}
+
+	private final Random random = new Random(1);
+
+	private ThreefishParameters params;
+
+	private byte[] plain;
+
+	/**
+	 * Processes input block by block with fresh engine.
+	 */
+	private byte[] expected(int keyLength, boolean forEncryption, byte[] in) {
+		ThreefishEngine engine = new ThreefishEngine(keyLength);
+		engine.init(forEncryption, params);
+		byte[] result = new byte[in.length];
+		for (int i = 0; i < in.length; i += engine.getBlockSize()) {
+			engine.processBlock(in, i, result, i);
+		}
+		return result;
+	}
+
+	@Override
+	public String getName() {
+		return "ThreefishBulk";
+	}
+
+	@Override
+	public void performTest() throws Exception {
+		for (int i = 0; i < KEY_LENGTHS.length; i++) {
+			final int keyLength = KEY_LENGTHS[i];
+			final int blockSize = keyLength / 8;
+			byte[] key = new byte[blockSize];
+			byte[] tweak = new byte[16];
+			random.nextBytes(key);
+			random.nextBytes(tweak);
+			params = new ThreefishParameters(key, tweak);
+			plain = new byte[BLOCKS * blockSize];
+			random.nextBytes(plain);
+
+			final byte[] cipher = expected(keyLength, true, plain);
+			if (!areEqual(plain, expected(keyLength, false, cipher))) {
+				fail("decryption failed for " + keyLength);
+			}
+
+			testWords(new ThreefishEngine(keyLength), cipher);
+			testBytes(new ThreefishEngine(keyLength), cipher);
+			testBuffers(new ThreefishEngine(keyLength), cipher);
+			testRegion(new ThreefishEngine(keyLength), cipher);
+			testWords(new VectorizedThreefishEngine(keyLength), cipher);
+			testBytes(new VectorizedThreefishEngine(keyLength), cipher);
+			testOverlap(new ThreefishEngine(keyLength), cipher);
+			testOverlap(new ThreefishEngine(keyLength, false), cipher);
+			testOverlap(new VectorizedThreefishEngine(keyLength), cipher);
+			testEncryptOnly(keyLength, cipher);
+		}
+
+		testConversion();
+	}
+
+	private void testBuffers(ThreefishEngine engine, byte[] cipher) {
+		final int keyLength = engine.getBlockSize() * 8;
+
+		engine.init(true, params);
+		ByteBuffer in = ByteBuffer.allocateDirect(plain.length + 7);
+		in.position(2);
+		in.put(plain);
+		in.position(2);
+		ByteBuffer out = ByteBuffer.allocate(plain.length + 1);
+		out.position(1);
+		if (engine.processBlocks(in, out) != plain.length) {
+			fail("wrong number of bytes processed");
+		}
+		if (in.position() != plain.length + 2 || out.position() != plain.length + 1) {
+			fail("buffer positions not advanced");
+		}
+		if (in.order() != ByteOrder.BIG_ENDIAN || out.order() != ByteOrder.BIG_ENDIAN) {
+			fail("buffer byte order changed");
+		}
+		byte[] result = new byte[cipher.length];
+		out.position(1);
+		out.get(result);
+		if (!areEqual(cipher, result)) {
+			fail("buffer encryption failed for " + keyLength);
+		}
+
+		engine.init(false, params);
+		ByteBuffer buf = ByteBuffer.allocateDirect(cipher.length);
+		buf.put(cipher);
+		buf.flip();
+		engine.processBlocks(buf, buf.duplicate());
+		buf.flip();
+		buf.get(result);
+		if (!areEqual(plain, result)) {
+			fail("buffer decryption failed for " + keyLength);
+		}
+	}
+
+	/**
+	 * Splits data into direct buffers of given sizes (in blocks).
+	 */
+	private ByteBuffer[] region(byte[] data, int blockSize, int[] sizes) {
+		ByteBuffer[] result = new ByteBuffer[sizes.length];
+		int offset = 0;
+		for (int i = 0; i < sizes.length; i++) {
+			result[i] = ByteBuffer.allocateDirect(sizes[i] * blockSize);
+			final int length = Math.max(0, Math.min(result[i].capacity(), data.length - offset));
+			result[i].put(data, offset, length);
+			result[i].clear();
+			offset += length;
+		}
+		return result;
+	}
+
+	private void testEncryptOnly(int keyLength, byte[] cipher) {
+		final int blockSize = keyLength / 8;
+		ThreefishEncryptEngine engine = new ThreefishEncryptEngine(keyLength);
+
+		engine.init(true, params);
+		byte[] buf = new byte[plain.length];
+		for (int i = 0; i < plain.length; i += blockSize) {
+			engine.processBlock(plain, i, buf, i);
+		}
+		if (!areEqual(cipher, buf)) {
+			fail("encrypt-only engine failed for " + keyLength);
+		}
+
+		final long[] words = toWords(plain);
+		final long[] cipherWords = toWords(cipher);
+		if (engine.processBlocks(words, 0, words, 0, BLOCKS) != words.length) {
+			fail("wrong number of words processed");
+		}
+		for (int i = 0; i < words.length; i++) {
+			if (words[i] != cipherWords[i]) {
+				fail("word-level encrypt-only engine failed for " + keyLength);
+			}
+		}
+
+		byte[] tweak = params.getTweak();
+		engine.init(true, new ThreefishParameters(params.getKey(), new byte[16]));
+		engine.setTweak(toWords(tweak)[0], toWords(tweak)[1]);
+		engine.processBlock(plain, 0, buf, 0);
+		for (int i = 0; i < blockSize; i++) {
+			if (buf[i] != cipher[i]) {
+				fail("encrypt-only engine setTweak failed for " + keyLength);
+			}
+		}
+
+		try {
+			engine.init(false, params);
+			fail("encrypt-only engine initialised for decryption");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * Processes data moved within single array or buffer, by parts of block and
+	 * by whole blocks in both directions.
+	 */
+	private void testOverlap(ThreefishEngine engine, byte[] cipher) {
+		final int keyLength = engine.getBlockSize() * 8;
+		final int blockSize = engine.getBlockSize();
+		final int wordCount = plain.length / 8;
+		final long[] plainWords = toWords(plain);
+		final long[] cipherWords = toWords(cipher);
+		final int[] shifts = { 1, 3, blockSize / 8, blockSize / 8 + 1, 5 * blockSize / 8, 140 * blockSize / 8 };
+		final int margin = shifts[shifts.length - 1] * 8;
+
+		engine.init(true, params);
+		for (int i = 0; i < shifts.length; i++) {
+			for (int sign = -1; sign <= 1; sign += 2) {
+				final int shift = sign * shifts[i];
+				final int inOff = margin / 8;
+
+				long[] words = new long[wordCount + margin / 4];
+				System.arraycopy(plainWords, 0, words, inOff, wordCount);
+				engine.processBlocks(words, inOff, words, inOff + shift, BLOCKS);
+				for (int j = 0; j < wordCount; j++) {
+					if (words[inOff + shift + j] != cipherWords[j]) {
+						fail("overlapping word encryption failed for " + keyLength + ", shift " + shift);
+					}
+				}
+
+				byte[] bytes = new byte[plain.length + margin * 2];
+				System.arraycopy(plain, 0, bytes, margin, plain.length);
+				engine.processBlocks(bytes, margin, bytes, margin + shift, BLOCKS);
+				for (int j = 0; j < cipher.length; j++) {
+					if (bytes[margin + shift + j] != cipher[j]) {
+						fail("overlapping byte encryption failed for " + keyLength + ", shift " + shift);
+					}
+				}
+
+				System.arraycopy(plain, 0, bytes, margin, plain.length);
+				ByteBuffer in = ByteBuffer.wrap(bytes, margin, plain.length);
+				ByteBuffer out = ByteBuffer.wrap(bytes, margin + shift, plain.length);
+				engine.processBlocks(in, out.slice());
+				for (int j = 0; j < cipher.length; j++) {
+					if (bytes[margin + shift + j] != cipher[j]) {
+						fail("overlapping buffer encryption failed for " + keyLength + ", shift " + shift);
+					}
+				}
+			}
+		}
+
+		engine.init(false, params);
+		long[] words = new long[wordCount + 1];
+		System.arraycopy(cipherWords, 0, words, 0, wordCount);
+		engine.processBlocks(words, 0, words, 1, BLOCKS);
+		for (int j = 0; j < wordCount; j++) {
+			if (words[j + 1] != plainWords[j]) {
+				fail("overlapping word decryption failed for " + keyLength);
+			}
+		}
+	}
+
+	private void testRegion(ThreefishEngine engine, byte[] cipher) {
+		final int keyLength = engine.getBlockSize() * 8;
+		final int blockSize = engine.getBlockSize();
+
+		engine.init(true, params);
+		ByteBuffer[] in = region(plain, blockSize, new int[] { 3, 0, 100, BLOCKS });
+		ByteBuffer[] out = region(new byte[0], blockSize, new int[] { 1, 60, BLOCKS });
+		if (engine.processBlocks(in, 0, out, blockSize, BLOCKS) != plain.length) {
+			fail("wrong number of bytes processed");
+		}
+		byte[] result = new byte[plain.length + blockSize];
+		int offset = 0;
+		for (int i = 0; i < out.length && offset < result.length; i++) {
+			final int length = Math.min(out[i].remaining(), result.length - offset);
+			out[i].get(result, offset, length);
+			offset += length;
+		}
+		for (int i = 0; i < cipher.length; i++) {
+			if (result[i + blockSize] != cipher[i]) {
+				fail("region encryption failed for " + keyLength);
+			}
+		}
+
+		engine.init(false, params);
+		ByteBuffer[] buf = region(cipher, blockSize, new int[] { 2, 2, BLOCKS });
+		engine.processBlocks(buf, blockSize, buf, blockSize, BLOCKS - 1);
+		offset = 0;
+		for (int i = 0; i < buf.length && offset < result.length; i++) {
+			final int length = Math.min(buf[i].remaining(), cipher.length - offset);
+			buf[i].get(result, offset, length);
+			offset += length;
+		}
+		for (int i = blockSize; i < plain.length; i++) {
+			if (result[i] != plain[i]) {
+				fail("region decryption failed for " + keyLength);
+			}
+		}
+
+		// output starts inside input and overlap crosses buffer boundary
+		engine.init(true, params);
+		buf = region(plain, blockSize, new int[] { 4, 4 });
+		engine.processBlocks(buf, 0, buf, 2 * blockSize, 6);
+		result = new byte[8 * blockSize];
+		buf[0].get(result, 0, 4 * blockSize);
+		buf[1].get(result, 4 * blockSize, 4 * blockSize);
+		for (int i = 0; i < 6 * blockSize; i++) {
+			if (result[i + 2 * blockSize] != cipher[i]) {
+				fail("overlapping region encryption failed for " + keyLength);
+			}
+		}
+
+		try {
+			engine.processBlocks(region(cipher, blockSize, new int[] { 1, 1 }), 0, buf, 0, 3);
+			fail("short region not detected");
+		} catch (DataLengthException e) {
+			// expected
+		}
+	}
+
+	private void testBytes(ThreefishEngine engine, byte[] cipher) {
+		final int keyLength = engine.getBlockSize() * 8;
+
+		engine.init(true, params);
+		byte[] out = new byte[plain.length + 5];
+		if (engine.processBlocks(plain, 0, out, 5, BLOCKS) != plain.length) {
+			fail("wrong number of bytes processed");
+		}
+		for (int i = 0; i < cipher.length; i++) {
+			if (out[i + 5] != cipher[i]) {
+				fail("bulk encryption failed for " + keyLength);
+			}
+		}
+
+		engine.init(false, params);
+		byte[] buf = new byte[cipher.length];
+		System.arraycopy(cipher, 0, buf, 0, cipher.length);
+		engine.processBlocks(buf, 0, buf, 0, BLOCKS);
+		if (!areEqual(plain, buf)) {
+			fail("bulk decryption failed for " + keyLength);
+		}
+	}
+
+	private void testConversion() {
+		byte[] bytes = new byte[40];
+		random.nextBytes(bytes);
+		long[] expected = toWords(bytes);
+
+		long[] words = new long[6];
+		ThreefishEngine.bytesToWords(bytes, 3, words, 1, 4);
+		byte[] tmp = new byte[32];
+		System.arraycopy(bytes, 3, tmp, 0, 32);
+		long[] shifted = toWords(tmp);
+		for (int i = 0; i < 4; i++) {
+			if (words[i + 1] != shifted[i]) {
+				fail("bytesToWords failed");
+			}
+		}
+		if (words[0] != 0 || words[5] != 0) {
+			fail("bytesToWords wrote outside range");
+		}
+
+		long[] compat = ThreefishEngine.bytesToWords(bytes, bytes.length, 0);
+		for (int i = 0; i < expected.length; i++) {
+			if (compat[i] != expected[i]) {
+				fail("bytesToWords compatibility failed");
+			}
+		}
+
+		byte[] back = new byte[42];
+		ThreefishEngine.wordsToBytes(expected, back, 1);
+		byte[] range = new byte[42];
+		ThreefishEngine.wordsToBytes(expected, 0, range, 1, expected.length);
+		for (int i = 0; i < bytes.length; i++) {
+			if (back[i + 1] != bytes[i] || range[i + 1] != bytes[i]) {
+				fail("wordsToBytes failed");
+			}
+		}
+		if (back[0] != 0 || back[41] != 0) {
+			fail("wordsToBytes wrote outside range");
+		}
+	}
+
+	private void testWords(ThreefishEngine engine, byte[] cipher) {
+		final int keyLength = engine.getBlockSize() * 8;
+		final int wordCount = plain.length / 8;
+		final long[] plainWords = toWords(plain);
+		final long[] cipherWords = toWords(cipher);
+
+		engine.init(true, params);
+		long[] out = new long[wordCount + 3];
+		if (engine.processBlocks(plainWords, 0, out, 3, BLOCKS) != wordCount) {
+			fail("wrong number of words processed");
+		}
+		for (int i = 0; i < wordCount; i++) {
+			if (out[i + 3] != cipherWords[i]) {
+				fail("word-level encryption failed for " + keyLength);
+			}
+		}
+
+		engine.init(false, params);
+		long[] buf = new long[wordCount];
+		System.arraycopy(cipherWords, 0, buf, 0, wordCount);
+		for (int i = 0; i < wordCount; i += keyLength / 64) {
+			engine.processBlock(buf, i, buf, i);
+		}
+		for (int i = 0; i < wordCount; i++) {
+			if (buf[i] != plainWords[i]) {
+				fail("word-level decryption failed for " + keyLength);
+			}
+		}
+
+		System.arraycopy(cipherWords, 0, buf, 0, wordCount);
+		engine.processBlocks(buf, 0, buf, 0, BLOCKS);
+		for (int i = 0; i < wordCount; i++) {
+			if (buf[i] != plainWords[i]) {
+				fail("word-level bulk decryption failed for " + keyLength);
+			}
+		}
+	}
+
+}
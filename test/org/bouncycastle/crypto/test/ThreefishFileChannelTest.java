@@ -0,0 +1,189 @@
+package org.bouncycastle.crypto.test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.Random;
+
+import org.bouncycastle.crypto.engines.ThreefishEngine;
+import org.bouncycastle.crypto.io.ThreefishFileChannel;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.crypto.params.ThreefishParameters;
+import org.bouncycastle.crypto.util.Pack;
+import org.bouncycastle.util.test.SimpleTest;
+
+/**
+ * Checks random access encrypted file against plain copy kept in memory and
+ * block by block encryption.
+ */
+public class ThreefishFileChannelTest extends SimpleTest {
+
+	private static final int[] KEY_LENGTHS = { 256, 512, 1024 };
+
+	/**
+	 * Maximum file size, larger than channel buffer
+	 */
+	private static final int MAX_SIZE = 40000;
+
+	private static final int OPERATIONS = 300;
+
+	public static void main(String[] args) {
+		runTest(new ThreefishFileChannelTest());
+	}
+
+	private final Random random = new Random(5);
+
+	/**
+	 * Checks that file holds given plaintext encrypted block by block.
+	 */
+	private void checkCiphertext(File file, byte[] key, long fileId, byte[] plain, int size) throws Exception {
+		final int blockSize = key.length;
+		RandomAccessFile raw = new RandomAccessFile(file, "r");
+		try {
+			if (raw.length() != size) {
+				fail("file size " + raw.length() + " instead of " + size);
+			}
+			final byte[] cipherText = new byte[size];
+			raw.readFully(cipherText);
+
+			final ThreefishEngine engine = new ThreefishEngine(blockSize * 8);
+			final byte[] tweak = new byte[16];
+			Pack.longToLittleEndian(fileId, tweak, 8);
+			final byte[] block = new byte[blockSize];
+			for (int k = 0; k * blockSize < size; k++) {
+				final int start = k * blockSize;
+				final int length = Math.min(blockSize, size - start);
+				if (length == blockSize) {
+					Pack.longToLittleEndian(k, tweak, 0);
+					engine.init(true, new ThreefishParameters(key, tweak));
+					engine.processBlock(plain, start, block, 0);
+				} else {
+					Pack.longToLittleEndian(k | Long.MIN_VALUE, tweak, 0);
+					engine.init(true, new ThreefishParameters(key, tweak));
+					engine.processBlock(new byte[blockSize], 0, block, 0);
+					for (int i = 0; i < length; i++) {
+						block[i] ^= plain[start + i];
+					}
+				}
+				for (int i = 0; i < length; i++) {
+					if (block[i] != cipherText[start + i]) {
+						fail("ciphertext of block " + k + " differs for " + blockSize * 8);
+					}
+				}
+			}
+		} finally {
+			raw.close();
+		}
+	}
+
+	@Override
+	public String getName() {
+		return "ThreefishFileChannel";
+	}
+
+	@Override
+	public void performTest() throws Exception {
+		for (int i = 0; i < KEY_LENGTHS.length; i++) {
+			testRandomAccess(KEY_LENGTHS[i]);
+		}
+	}
+
+	private void testRandomAccess(int keyLength) throws Exception {
+		final byte[] key = new byte[keyLength / 8];
+		random.nextBytes(key);
+		final long fileId = random.nextLong();
+		final byte[] plain = new byte[MAX_SIZE];
+		int size = 0;
+
+		final File file = File.createTempFile("threefish", ".bin");
+		try {
+			ThreefishFileChannel channel = new ThreefishFileChannel(new RandomAccessFile(file, "rw").getChannel(),
+					new KeyParameter(key), fileId);
+			for (int op = 0; op < OPERATIONS; op++) {
+				final int choice = random.nextInt(10);
+				if (choice < 4) {
+					// write, possibly past end of file
+					final int pos = random.nextInt(Math.min(MAX_SIZE, size + 300));
+					final int len = random.nextInt(Math.min(MAX_SIZE - pos, random.nextBoolean() ? 300 : 20000) + 1);
+					final byte[] data = new byte[len];
+					random.nextBytes(data);
+					channel.position(pos);
+					if (channel.write(ByteBuffer.wrap(data)) != len) {
+						fail("write returned wrong length");
+					}
+					if (len > 0) {
+						for (int i = size; i < pos; i++) {
+							plain[i] = 0;
+						}
+						System.arraycopy(data, 0, plain, pos, len);
+						size = Math.max(size, pos + len);
+					}
+					if (channel.position() != pos + len) {
+						fail("write did not advance position");
+					}
+				} else if (choice < 9) {
+					// read from any position
+					final int pos = random.nextInt(size + 10);
+					final ByteBuffer dst = ByteBuffer.allocate(random.nextInt(random.nextBoolean() ? 300 : 20000));
+					channel.position(pos);
+					final int n = channel.read(dst);
+					if (pos >= size) {
+						if (n != -1 && dst.capacity() > 0) {
+							fail("read past end of file returned " + n);
+						}
+						continue;
+					}
+					if (n != Math.min(dst.capacity(), size - pos)) {
+						fail("read returned " + n + " bytes at " + pos);
+					}
+					for (int i = 0; i < n; i++) {
+						if (dst.get(i) != plain[pos + i]) {
+							fail("read at " + pos + " failed for " + keyLength);
+						}
+					}
+				} else {
+					final int newSize = random.nextInt(size + 1);
+					channel.position(size);
+					channel.truncate(newSize);
+					size = newSize;
+					if (channel.position() != newSize) {
+						fail("truncate did not move position");
+					}
+				}
+				if (channel.size() != size) {
+					fail("size " + channel.size() + " instead of " + size);
+				}
+			}
+			channel.close();
+			checkCiphertext(file, key, fileId, plain, size);
+
+			try {
+				channel.read(ByteBuffer.allocate(1));
+				fail("closed channel not detected");
+			} catch (ClosedChannelException e) {
+				// expected
+			}
+
+			// reopened file, whole content at once
+			channel = new ThreefishFileChannel(new RandomAccessFile(file, "r").getChannel(), new KeyParameter(key),
+					fileId);
+			final ByteBuffer all = ByteBuffer.allocate(size + 1);
+			while (channel.read(all) > 0) {
+				// reads until end of file
+			}
+			channel.close();
+			if (all.position() != size) {
+				fail("reopened file read " + all.position() + " bytes of " + size);
+			}
+			for (int i = 0; i < size; i++) {
+				if (all.get(i) != plain[i]) {
+					fail("reopened file differs at " + i + " for " + keyLength);
+				}
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+}
@@ -0,0 +1,494 @@
+package org.bouncycastle.crypto.test;
+
+import java.util.Random;
+
+import org.bouncycastle.crypto.engines.Threefish256Engine;
+import org.bouncycastle.crypto.engines.ThreefishEngine;
+import org.bouncycastle.crypto.engines.ThreefishKeySchedule;
+import org.bouncycastle.crypto.engines.ThreefishKeyScheduleCache;
+import org.bouncycastle.crypto.engines.VectorizedThreefishEngine;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.crypto.params.ThreefishParameters;
+import org.bouncycastle.crypto.params.ThreefishPreparedParameters;
+import org.bouncycastle.util.test.SimpleTest;
+
+/**
+ * Checks ways of setting up Threefish key against plain
+ * {@link ThreefishEngine#init(boolean, org.bouncycastle.crypto.CipherParameters)}.
+ */
+public class ThreefishKeyScheduleTest extends SimpleTest {
+
+	private static final int BLOCKS = 5;
+
+	private static final int THREADS = 4;
+
+	private static final int[] KEY_LENGTHS = { 256, 512, 1024 };
+
+	public static void main(String[] args) {
+		runTest(new ThreefishKeyScheduleTest());
+	}
+
+	private final Random random = new Random(2);
+
+	private byte[] cipher;
+
+	private byte[] key;
+
+	private byte[] plain;
+
+	private byte[] tweak;
+
+	@Override
+	public String getName() {
+		return "ThreefishKeySchedule";
+	}
+
+	@Override
+	public void performTest() throws Exception {
+		for (int i = 0; i < KEY_LENGTHS.length; i++) {
+			final int keyLength = KEY_LENGTHS[i];
+			final int blockSize = keyLength / 8;
+			key = new byte[blockSize];
+			tweak = new byte[16];
+			plain = new byte[BLOCKS * blockSize];
+			random.nextBytes(key);
+			random.nextBytes(tweak);
+			random.nextBytes(plain);
+
+			ThreefishEngine engine = new ThreefishEngine(keyLength);
+			engine.init(true, new ThreefishParameters(key, tweak));
+			cipher = new byte[plain.length];
+			engine.processBlocks(plain, 0, cipher, 0, BLOCKS);
+
+			testSchedule(keyLength);
+			testTweak(keyLength);
+			testOnTheFly(keyLength);
+			testCache(keyLength, false);
+			testCache(keyLength, true);
+			testPrepared(keyLength, true);
+			testPrepared(keyLength, false);
+			testCopy(keyLength, true);
+			testCopy(keyLength, false);
+		}
+	}
+
+	private void testCache(final int keyLength, boolean zeroize) throws InterruptedException {
+		final ThreefishKeyScheduleCache cache = new ThreefishKeyScheduleCache(2, zeroize);
+		byte[] buf = new byte[plain.length];
+
+		ThreefishEngine engine = new ThreefishEngine(keyLength);
+		engine.setKeyScheduleCache(cache);
+		for (int n = 0; n < 3; n++) {
+			engine.init(true, new ThreefishParameters(key, tweak));
+			engine.processBlocks(plain, 0, buf, 0, BLOCKS);
+			if (!areEqual(cipher, buf)) {
+				fail("cached key schedule encryption failed for " + keyLength);
+			}
+		}
+		if (cache.getMissCount() != 1 || cache.getHitCount() != 2) {
+			fail("wrong cache statistics for " + keyLength);
+		}
+
+		// cached schedule must not be modified by tweak of engine
+		ThreefishEngine other = new ThreefishEngine(keyLength);
+		other.setKeyScheduleCache(cache);
+		other.init(false, new ThreefishParameters(key, tweak));
+		other.processBlocks(cipher, 0, buf, 0, BLOCKS);
+		if (!areEqual(plain, buf)) {
+			fail("cached key schedule decryption failed for " + keyLength);
+		}
+
+		// the same key with other tweak uses the same schedule
+		byte[] otherTweak = new byte[16];
+		random.nextBytes(otherTweak);
+		ThreefishEngine expected = new ThreefishEngine(keyLength);
+		expected.init(true, new ThreefishParameters(key, otherTweak));
+		byte[] otherCipher = new byte[plain.length];
+		expected.processBlocks(plain, 0, otherCipher, 0, BLOCKS);
+		other.init(true, new ThreefishParameters(key, otherTweak));
+		other.processBlocks(plain, 0, buf, 0, BLOCKS);
+		if (!areEqual(otherCipher, buf) || cache.getMissCount() != 1 || cache.size() != 1) {
+			fail("cached key schedule with other tweak failed for " + keyLength);
+		}
+
+		// changing tweak of engine must not modify cached schedule
+		other.setTweak(tweak);
+		other.init(true, new ThreefishParameters(key, otherTweak));
+		other.processBlocks(plain, 0, buf, 0, BLOCKS);
+		if (!areEqual(otherCipher, buf) || cache.getMissCount() != 1) {
+			fail("cached key schedule modified by setTweak for " + keyLength);
+		}
+
+		// fill cache with other keys
+		for (int n = 0; n < 2; n++) {
+			byte[] otherKey = new byte[key.length];
+			random.nextBytes(otherKey);
+			other.init(true, new ThreefishParameters(otherKey, tweak));
+		}
+		if (cache.size() != 2 || cache.getEvictionCount() != 1) {
+			fail("key schedule not evicted for " + keyLength);
+		}
+		engine.processBlocks(plain, 0, buf, 0, BLOCKS);
+		if (!areEqual(cipher, buf)) {
+			fail("eviction affected engine for " + keyLength);
+		}
+
+		// engine initialised with schedule taken from cache
+		ThreefishKeySchedule schedule = cache.get(key);
+		ThreefishEngine scheduled = new ThreefishEngine(keyLength);
+		scheduled.init(true, schedule);
+		byte[] zeroTweak = new byte[plain.length];
+		scheduled.processBlocks(plain, 0, zeroTweak, 0, BLOCKS);
+		for (int n = 0; n < 2; n++) {
+			byte[] otherKey = new byte[key.length];
+			random.nextBytes(otherKey);
+			cache.get(otherKey);
+		}
+		scheduled.processBlocks(plain, 0, buf, 0, BLOCKS);
+		if (!areEqual(zeroTweak, buf)) {
+			fail("eviction affected engine initialised with schedule for " + keyLength);
+		}
+		try {
+			schedule.encryptBlock(new long[keyLength / 64], 0, new long[keyLength / 64], 0);
+			if (zeroize) {
+				fail("zeroized schedule used for " + keyLength);
+			}
+		} catch (IllegalStateException e) {
+			if (!zeroize) {
+				fail("evicted schedule not usable for " + keyLength);
+			}
+		}
+		try {
+			scheduled.init(true, schedule);
+			if (zeroize) {
+				fail("engine initialised with zeroized schedule for " + keyLength);
+			}
+		} catch (IllegalStateException e) {
+			if (!zeroize) {
+				fail("engine not initialised with evicted schedule for " + keyLength);
+			}
+		}
+		scheduled.processBlocks(plain, 0, buf, 0, BLOCKS);
+		if (!areEqual(zeroTweak, buf)) {
+			fail("failed init with zeroized schedule affected engine for " + keyLength);
+		}
+
+		cache.clear();
+		if (cache.size() != 0) {
+			fail("cache not cleared for " + keyLength);
+		}
+		engine.init(true, new ThreefishParameters(key, tweak));
+		engine.processBlocks(plain, 0, buf, 0, BLOCKS);
+		if (!areEqual(cipher, buf)) {
+			fail("key schedule cached again failed for " + keyLength);
+		}
+
+		// cache shared by several threads, evicting all the time
+		final byte[][] otherKeys = new byte[2][key.length];
+		random.nextBytes(otherKeys[0]);
+		random.nextBytes(otherKeys[1]);
+		final boolean[] failed = new boolean[THREADS];
+		Thread[] threads = new Thread[THREADS];
+		for (int i = 0; i < THREADS; i++) {
+			final int index = i;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					final ThreefishEngine engine = new ThreefishEngine(keyLength);
+					engine.setKeyScheduleCache(cache);
+					final byte[] result = new byte[plain.length];
+					for (int n = 0; n < 200; n++) {
+						engine.init(true, new ThreefishParameters(otherKeys[(n + index) & 1], tweak));
+						engine.init(true, new ThreefishParameters(key, tweak));
+						engine.processBlocks(plain, 0, result, 0, BLOCKS);
+						if (!areEqual(cipher, result)) {
+							failed[index] = true;
+						}
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (int i = 0; i < THREADS; i++) {
+			threads[i].join();
+			if (failed[i]) {
+				fail("cache shared by threads failed for " + keyLength);
+			}
+		}
+	}
+
+	private void testCopy(int keyLength, boolean precomputeSubKeys) {
+		byte[] other = new byte[16];
+		random.nextBytes(other);
+		byte[] buf = new byte[plain.length];
+
+		ThreefishEngine engine = new ThreefishEngine(keyLength, precomputeSubKeys);
+		engine.init(true, new ThreefishParameters(key, tweak));
+		ThreefishEngine copy = engine.copy();
+		ThreefishEngine tweaked = engine.copy(0, 0);
+
+		// changes of original must not affect copies
+		engine.setTweak(other);
+		copy.processBlocks(plain, 0, buf, 0, BLOCKS);
+		if (!areEqual(cipher, buf)) {
+			fail("copy encryption failed for " + keyLength);
+		}
+		byte[] otherKey = new byte[key.length];
+		random.nextBytes(otherKey);
+		engine.init(false, new ThreefishParameters(otherKey, other));
+		copy.processBlocks(plain, 0, buf, 0, BLOCKS);
+		if (!areEqual(cipher, buf)) {
+			fail("copy changed by re-init of original for " + keyLength);
+		}
+
+		ThreefishEngine expected = new ThreefishEngine(keyLength);
+		expected.init(true, new KeyParameter(key));
+		byte[] zeroTweak = new byte[plain.length];
+		expected.processBlocks(plain, 0, zeroTweak, 0, BLOCKS);
+		tweaked.processBlocks(plain, 0, buf, 0, BLOCKS);
+		if (!areEqual(zeroTweak, buf)) {
+			fail("copy with tweak failed for " + keyLength);
+		}
+
+		// changes of copy must not affect original
+		engine.init(true, new ThreefishParameters(key, tweak));
+		copy = engine.copy();
+		copy.setTweak(0, 0);
+		engine.processBlocks(plain, 0, buf, 0, BLOCKS);
+		if (!areEqual(cipher, buf)) {
+			fail("original changed by copy for " + keyLength);
+		}
+
+		copy = engine.copy();
+		copy.init(false, new ThreefishParameters(key, tweak));
+		copy.processBlocks(cipher, 0, buf, 0, BLOCKS);
+		if (!areEqual(plain, buf)) {
+			fail("re-initialised copy failed for " + keyLength);
+		}
+		engine.processBlocks(plain, 0, buf, 0, BLOCKS);
+		if (!areEqual(cipher, buf)) {
+			fail("original changed by re-init of copy for " + keyLength);
+		}
+
+		ThreefishEngine[] typed = { new Threefish256Engine(), new VectorizedThreefishEngine(keyLength) };
+		for (int i = 0; i < typed.length; i++) {
+			if (typed[i].copy().getClass() != typed[i].getClass()) {
+				fail("copy of " + typed[i].getClass().getName() + " has wrong class");
+			}
+		}
+
+		try {
+			new ThreefishEngine(keyLength).copy(0, 0);
+			fail("copy with tweak of uninitialised engine not detected");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	private void testOnTheFly(int keyLength) {
+		byte[] buf = new byte[plain.length];
+
+		ThreefishEngine engine = new ThreefishEngine(keyLength, false);
+		engine.init(true, new ThreefishParameters(key, tweak));
+		engine.processBlocks(plain, 0, buf, 0, BLOCKS);
+		if (!areEqual(cipher, buf)) {
+			fail("on-the-fly key schedule encryption failed for " + keyLength);
+		}
+		engine.init(false, new ThreefishParameters(key, tweak));
+		for (int i = 0; i < buf.length; i += engine.getBlockSize()) {
+			engine.processBlock(buf, i, buf, i);
+		}
+		if (!areEqual(plain, buf)) {
+			fail("on-the-fly key schedule decryption failed for " + keyLength);
+		}
+
+		byte[] other = new byte[16];
+		random.nextBytes(other);
+		engine.init(true, new ThreefishParameters(key, other));
+		engine.setTweak(tweak);
+		engine.processBlocks(plain, 0, buf, 0, BLOCKS);
+		if (!areEqual(cipher, buf)) {
+			fail("on-the-fly key schedule setTweak failed for " + keyLength);
+		}
+	}
+
+	private void testTweak(int keyLength) {
+		byte[] other = new byte[16];
+		random.nextBytes(other);
+		byte[] buf = new byte[plain.length];
+
+		ThreefishEngine engine = new ThreefishEngine(keyLength);
+		engine.init(true, new ThreefishParameters(key, other));
+		engine.setTweak(tweak);
+		engine.processBlocks(plain, 0, buf, 0, BLOCKS);
+		if (!areEqual(cipher, buf)) {
+			fail("setTweak failed for " + keyLength);
+		}
+
+		// tweak change must not modify shared schedule
+		ThreefishKeySchedule schedule = new ThreefishKeySchedule(key, tweak);
+		engine.init(false, schedule);
+		engine.setTweak(other);
+		engine.setTweak(tweak);
+		engine.processBlocks(cipher, 0, buf, 0, BLOCKS);
+		if (!areEqual(plain, buf)) {
+			fail("setTweak decryption failed for " + keyLength);
+		}
+		engine.init(true, schedule);
+		engine.processBlocks(plain, 0, buf, 0, BLOCKS);
+		if (!areEqual(cipher, buf)) {
+			fail("setTweak modified shared schedule for " + keyLength);
+		}
+
+		long t0 = random.nextLong();
+		long t1 = random.nextLong();
+		byte[] tweakBytes = new byte[16];
+		for (int i = 0; i < 8; i++) {
+			tweakBytes[i] = (byte) (t0 >>> (i * 8));
+			tweakBytes[i + 8] = (byte) (t1 >>> (i * 8));
+		}
+		byte[] expected = new byte[plain.length];
+		engine.init(true, new ThreefishParameters(key, tweakBytes));
+		engine.processBlocks(plain, 0, expected, 0, BLOCKS);
+		engine.init(true, new ThreefishParameters(key, tweak));
+		engine.setTweak(t0, t1);
+		engine.processBlocks(plain, 0, buf, 0, BLOCKS);
+		if (!areEqual(expected, buf)) {
+			fail("setTweak with words failed for " + keyLength);
+		}
+	}
+
+	private void testPrepared(int keyLength, boolean precomputeSubKeys) {
+		final String name = keyLength + (precomputeSubKeys ? "" : " on-the-fly");
+		byte[] buf = new byte[plain.length];
+
+		ThreefishPreparedParameters params = new ThreefishPreparedParameters(key, tweak);
+		ThreefishEngine engine = new ThreefishEngine(keyLength, precomputeSubKeys);
+		engine.init(true, params);
+		engine.processBlocks(plain, 0, buf, 0, BLOCKS);
+		if (!areEqual(cipher, buf)) {
+			fail("prepared parameters encryption failed for " + name);
+		}
+		engine.init(false, params);
+		engine.processBlocks(buf, 0, buf, 0, BLOCKS);
+		if (!areEqual(plain, buf)) {
+			fail("prepared parameters decryption failed for " + name);
+		}
+		if (!areEqual(key, params.getKey()) || !areEqual(tweak, params.getTweak())) {
+			fail("prepared parameters do not keep bytes for " + name);
+		}
+		params.getKey()[0] ^= 1;
+		params.getTweak()[0] ^= 1;
+		if (!areEqual(key, params.getKey()) || !areEqual(tweak, params.getTweak())) {
+			fail("prepared parameters expose bytes for " + name);
+		}
+		long[] keyWords = new long[keyLength / 64 + 1];
+		params.copyKeyWords(keyWords, 0);
+		keyWords[0] ^= 1;
+		engine.init(true, params);
+		engine.processBlocks(plain, 0, buf, 0, BLOCKS);
+		if (!areEqual(cipher, buf)) {
+			fail("prepared parameters expose words for " + name);
+		}
+
+		long t0 = random.nextLong();
+		long t1 = random.nextLong();
+		ThreefishPreparedParameters words = new ThreefishPreparedParameters(key, t0, t1);
+		byte[] expected = new byte[plain.length];
+		engine.init(true, new ThreefishParameters(key, words.getTweak()));
+		engine.processBlocks(plain, 0, expected, 0, BLOCKS);
+		engine.init(true, words);
+		engine.processBlocks(plain, 0, buf, 0, BLOCKS);
+		if (!areEqual(expected, buf)) {
+			fail("prepared parameters with tweak words failed for " + name);
+		}
+		engine.init(true, params.withTweak(t0, t1));
+		engine.processBlocks(plain, 0, buf, 0, BLOCKS);
+		if (!areEqual(expected, buf)) {
+			fail("prepared parameters withTweak failed for " + name);
+		}
+
+		engine.init(true, new KeyParameter(key));
+		engine.processBlocks(plain, 0, expected, 0, BLOCKS);
+		engine.init(true, new ThreefishPreparedParameters(key));
+		engine.processBlocks(plain, 0, buf, 0, BLOCKS);
+		if (!areEqual(expected, buf)) {
+			fail("prepared parameters with zero tweak failed for " + name);
+		}
+
+		try {
+			new ThreefishEngine(keyLength == 256 ? 512 : 256).init(true, params);
+			fail("prepared parameters of wrong size accepted");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	private void testSchedule(int keyLength) throws Exception {
+		final ThreefishKeySchedule schedule = new ThreefishKeySchedule(new ThreefishParameters(key, tweak));
+		final int blockSize = schedule.getBlockSize();
+
+		byte[] buf = new byte[plain.length];
+		for (int i = 0; i < plain.length; i += blockSize) {
+			schedule.encryptBlock(plain, i, buf, i);
+		}
+		if (!areEqual(cipher, buf)) {
+			fail("schedule encryption failed for " + keyLength);
+		}
+		for (int i = 0; i < plain.length; i += blockSize) {
+			schedule.decryptBlock(buf, i, buf, i);
+		}
+		if (!areEqual(plain, buf)) {
+			fail("schedule decryption failed for " + keyLength);
+		}
+
+		ThreefishEngine engine = new ThreefishEngine(keyLength);
+		engine.init(true, schedule);
+		engine.processBlocks(plain, 0, buf, 0, BLOCKS);
+		if (!areEqual(cipher, buf)) {
+			fail("engine initialised with schedule failed for " + keyLength);
+		}
+
+		try {
+			new ThreefishEngine(keyLength == 256 ? 512 : 256).init(true, schedule);
+			fail("schedule of wrong size accepted");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+
+		// one schedule shared by several threads
+		final boolean[] failed = new boolean[THREADS];
+		Thread[] threads = new Thread[THREADS];
+		for (int i = 0; i < THREADS; i++) {
+			final int index = i;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					final long[] words = new long[plain.length / 8];
+					final byte[] result = new byte[plain.length];
+					for (int n = 0; n < 200; n++) {
+						ThreefishEngine.bytesToWords(plain, 0, words, 0, words.length);
+						schedule.encryptBlocks(words, 0, words, 0, BLOCKS);
+						ThreefishEngine.wordsToBytes(words, 0, result, 0, words.length);
+						if (!areEqual(cipher, result)) {
+							failed[index] = true;
+						}
+						schedule.decryptBlocks(words, 0, words, 0, BLOCKS);
+						ThreefishEngine.wordsToBytes(words, 0, result, 0, words.length);
+						if (!areEqual(plain, result)) {
+							failed[index] = true;
+						}
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (int i = 0; i < THREADS; i++) {
+			threads[i].join();
+			if (failed[i]) {
+				fail("shared schedule failed for " + keyLength);
+			}
+		}
+	}
+
+}
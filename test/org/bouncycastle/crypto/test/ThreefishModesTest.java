@@ -0,0 +1,560 @@
+package org.bouncycastle.crypto.test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bouncycastle.crypto.BlockCipher;
+import org.bouncycastle.crypto.DataLengthException;
+import org.bouncycastle.crypto.engines.ThreefishEncryptEngine;
+import org.bouncycastle.crypto.engines.ThreefishEngine;
+import org.bouncycastle.crypto.modes.CBCBlockCipher;
+import org.bouncycastle.crypto.modes.CFBBlockCipher;
+import org.bouncycastle.crypto.modes.OFBBlockCipher;
+import org.bouncycastle.crypto.modes.SICBlockCipher;
+import org.bouncycastle.crypto.modes.ThreefishCbcCipher;
+import org.bouncycastle.crypto.modes.ThreefishCfbCipher;
+import org.bouncycastle.crypto.modes.ThreefishCtrCipher;
+import org.bouncycastle.crypto.modes.ThreefishOfbCipher;
+import org.bouncycastle.crypto.modes.ThreefishSectorCipher;
+import org.bouncycastle.crypto.modes.ThreefishTweakCounterCipher;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.crypto.params.ParametersWithIV;
+import org.bouncycastle.crypto.params.ThreefishParameters;
+import org.bouncycastle.util.test.SimpleTest;
+
+/**
+ * Checks Threefish specific modes against generic BC modes or block by block
+ * processing.
+ */
+public class ThreefishModesTest extends SimpleTest {
+
+	private static final int[] KEY_LENGTHS = { 256, 512, 1024 };
+
+	/**
+	 * Length of processed data, not multiple of any block size
+	 */
+	private static final int LENGTH = 5000;
+
+	public static void main(String[] args) {
+		runTest(new ThreefishModesTest());
+	}
+
+	private final Random random = new Random(3);
+
+	private ThreefishParameters params;
+
+	private byte[] plain;
+
+	@Override
+	public String getName() {
+		return "ThreefishModes";
+	}
+
+	@Override
+	public void performTest() throws Exception {
+		for (int i = 0; i < KEY_LENGTHS.length; i++) {
+			final int keyLength = KEY_LENGTHS[i];
+			byte[] key = new byte[keyLength / 8];
+			byte[] tweak = new byte[16];
+			random.nextBytes(key);
+			random.nextBytes(tweak);
+			params = new ThreefishParameters(key, tweak);
+			plain = new byte[LENGTH];
+			random.nextBytes(plain);
+
+			testChaining(keyLength);
+			testCtr(keyLength);
+			testTweakCounter(keyLength);
+			testSector(keyLength, keyLength / 8);
+			testSector(keyLength, keyLength / 8 + 1);
+			testSector(keyLength, 512);
+			testSector(keyLength, 1000);
+			testSectorInterrupted(keyLength);
+		}
+	}
+
+	/**
+	 * Encrypts one sector block by block, each with tweak set on init, and
+	 * steals ciphertext as described by XTS.
+	 */
+	private byte[] sector(int keyLength, long sector, byte[] data, int off, int sectorSize) {
+		final int blockSize = keyLength / 8;
+		final int partial = sectorSize % blockSize;
+		final int m = sectorSize / blockSize;
+		final byte[] key = params.getKey();
+		ThreefishEngine engine = new ThreefishEngine(keyLength);
+		byte[] result = new byte[sectorSize];
+		for (int j = 0; j < m; j++) {
+			engine.init(true, new ThreefishParameters(key, tweak(sector, j)));
+			engine.processBlock(data, off + j * blockSize, result, j * blockSize);
+		}
+		if (partial != 0) {
+			// CC is at block m-1 of result
+			byte[] pp = new byte[blockSize];
+			System.arraycopy(data, off + m * blockSize, pp, 0, partial);
+			System.arraycopy(result, (m - 1) * blockSize + partial, pp, partial, blockSize - partial);
+			System.arraycopy(result, (m - 1) * blockSize, result, m * blockSize, partial);
+			engine.init(true, new ThreefishParameters(key, tweak(sector, m)));
+			engine.processBlock(pp, 0, result, (m - 1) * blockSize);
+		}
+		return result;
+	}
+
+	private void testSector(int keyLength, int sectorSize) throws Exception {
+		final int sectors = LENGTH / sectorSize;
+		final int length = sectors * sectorSize;
+		final long first = random.nextLong();
+
+		final byte[] expected = new byte[length];
+		for (int s = 0; s < sectors; s++) {
+			System.arraycopy(sector(keyLength, first + s, plain, s * sectorSize, sectorSize), 0, expected, s
+					* sectorSize, sectorSize);
+		}
+
+		ThreefishSectorCipher mode = new ThreefishSectorCipher(new ThreefishEngine(keyLength), sectorSize);
+		mode.init(true, new KeyParameter(params.getKey()));
+		byte[] buf = new byte[length];
+		mode.processSectors(first, plain, 0, buf, 0, sectors);
+		if (!areEqual(expected, buf)) {
+			fail("sector encryption failed for " + keyLength + ", sector " + sectorSize);
+		}
+
+		mode.init(false, params);
+		mode.processSectors(first, buf, 0, buf, 0, sectors);
+		for (int j = 0; j < length; j++) {
+			if (buf[j] != plain[j]) {
+				fail("sector decryption failed for " + keyLength + ", sector " + sectorSize);
+			}
+		}
+
+		// parallel, in direct buffer, more parts than threads
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try {
+			mode = new ThreefishSectorCipher(new ThreefishEngine(keyLength), sectorSize, executor, 4);
+			mode.init(true, params);
+			ByteBuffer data = ByteBuffer.allocateDirect(length + 2);
+			data.put(plain, 0, length).flip();
+			mode.processSectors(first, data);
+			if (data.position() != length) {
+				fail("sector buffer position not advanced for " + keyLength);
+			}
+			data.flip();
+			data.get(buf);
+			if (!areEqual(expected, buf)) {
+				fail("parallel sector encryption failed for " + keyLength + ", sector " + sectorSize);
+			}
+
+			// single sector from the middle
+			final int s = sectors / 2;
+			mode.init(false, params);
+			ByteBuffer heap = ByteBuffer.wrap(expected, s * sectorSize, sectorSize).slice();
+			mode.processSectors(first + s, heap);
+			for (int j = 0; j < sectorSize; j++) {
+				if (expected[s * sectorSize + j] != plain[s * sectorSize + j]) {
+					fail("sector " + s + " decryption failed for " + keyLength);
+				}
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		try {
+			mode.processSectors(first, ByteBuffer.allocate(sectorSize + 1));
+			fail("partial sector not detected");
+		} catch (DataLengthException e) {
+			// expected
+		}
+
+		try {
+			new ThreefishSectorCipher(new ThreefishEngine(keyLength), keyLength / 8 - 1);
+			fail("short sector not detected");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * Checks that call interrupted while waiting for parts returns only after
+	 * all of them finished.
+	 */
+	private void testSectorInterrupted(int keyLength) throws Exception {
+		final int sectorSize = keyLength / 8;
+		final AtomicInteger finished = new AtomicInteger();
+		// parts start late and are counted as finished before their futures
+		// complete
+		ExecutorService executor = new ThreadPoolExecutor(3, 3, 0, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>()) {
+
+			@Override
+			protected <T> RunnableFuture<T> newTaskFor(final Runnable runnable, T value) {
+				return new FutureTask<T>(new Runnable() {
+
+					@Override
+					public void run() {
+						try {
+							Thread.sleep(50);
+						} catch (InterruptedException e) {
+							// start anyway
+						}
+						runnable.run();
+						finished.incrementAndGet();
+					}
+				}, value);
+			}
+		};
+		try {
+			ThreefishSectorCipher mode = new ThreefishSectorCipher(new ThreefishEngine(keyLength), sectorSize,
+					executor, 4);
+			mode.init(true, params);
+			byte[] buf = new byte[4 * sectorSize];
+			Thread.currentThread().interrupt();
+			try {
+				mode.processSectors(0, buf, 0, buf, 0, 4);
+				fail("interruption not reported for " + keyLength);
+			} catch (IllegalStateException e) {
+				// expected
+			}
+			if (!Thread.interrupted()) {
+				fail("interrupt status not restored for " + keyLength);
+			}
+			if (finished.get() != 3) {
+				fail("sector call returned before parts finished for " + keyLength);
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Processes whole blocks of data block by block.
+	 */
+	private static byte[] blockByBlock(BlockCipher mode, byte[] data) {
+		final int blockSize = mode.getBlockSize();
+		byte[] result = new byte[data.length / blockSize * blockSize];
+		for (int i = 0; i < result.length; i += blockSize) {
+			mode.processBlock(data, i, result, i);
+		}
+		return result;
+	}
+
+	/**
+	 * Encrypts data with {@link SICBlockCipher}.
+	 */
+	private byte[] sic(int keyLength, byte[] iv, byte[] data) {
+		final int blockSize = keyLength / 8;
+		SICBlockCipher sic = new SICBlockCipher(new ThreefishEngine(keyLength));
+		sic.init(true, new ParametersWithIV(params, iv));
+		byte[] keyStream = new byte[(data.length + blockSize - 1) / blockSize * blockSize];
+		for (int i = 0; i < keyStream.length; i += blockSize) {
+			sic.processBlock(keyStream, i, keyStream, i);
+		}
+		byte[] result = new byte[data.length];
+		for (int i = 0; i < data.length; i++) {
+			result[i] = (byte) (data[i] ^ keyStream[i]);
+		}
+		return result;
+	}
+
+	/**
+	 * Builds 16 byte tweak from words.
+	 */
+	private static byte[] tweak(long t0, long t1) {
+		byte[] tweak = new byte[16];
+		for (int i = 0; i < 8; i++) {
+			tweak[i] = (byte) (t0 >>> (i * 8));
+			tweak[i + 8] = (byte) (t1 >>> (i * 8));
+		}
+		return tweak;
+	}
+
+	private void testTweakCounter(final int keyLength) throws Exception {
+		final int blockSize = keyLength / 8;
+		final int blocks = LENGTH / blockSize;
+		final long first = random.nextLong();
+		final long id = random.nextLong();
+		final byte[] key = params.getKey();
+
+		final byte[] expected = new byte[blocks * blockSize];
+		ThreefishEngine engine = new ThreefishEngine(keyLength);
+		for (int i = 0; i < blocks; i++) {
+			engine.init(true, new ThreefishParameters(key, tweak(first + i, id)));
+			engine.processBlock(plain, i * blockSize, expected, i * blockSize);
+		}
+
+		final ThreefishTweakCounterCipher mode = new ThreefishTweakCounterCipher(new ThreefishEngine(keyLength));
+		mode.init(true, new ThreefishParameters(key, tweak(first, id)));
+		byte[] buf = new byte[expected.length];
+		mode.processBlock(plain, 0, buf, 0);
+		mode.processBlocks(plain, blockSize, buf, blockSize, blocks - 1);
+		if (!areEqual(expected, buf)) {
+			fail("tweak counter encryption failed for " + keyLength);
+		}
+		if (mode.getBlockIndex() != first + blocks) {
+			fail("tweak counter index not advanced for " + keyLength);
+		}
+
+		mode.reset();
+		long[] words = new long[buf.length / 8];
+		ThreefishEngine.bytesToWords(plain, 0, words, 0, words.length);
+		mode.processBlocks(words, 0, words, 0, blocks);
+		ThreefishEngine.wordsToBytes(words, 0, buf, 0, words.length);
+		if (!areEqual(expected, buf)) {
+			fail("tweak counter word encryption failed for " + keyLength);
+		}
+
+		// decryption of arbitrary ranges
+		mode.init(false, new ThreefishParameters(key, tweak(first, id)));
+		for (int i = 0; i < 10; i++) {
+			final int from = random.nextInt(blocks);
+			final int count = random.nextInt(blocks - from + 1);
+			mode.seekTo(first + from);
+			byte[] part = new byte[count * blockSize];
+			mode.processBlocks(expected, from * blockSize, part, 0, count);
+			for (int j = 0; j < part.length; j++) {
+				if (part[j] != plain[from * blockSize + j]) {
+					fail("tweak counter decryption from " + from + " failed for " + keyLength);
+				}
+			}
+		}
+
+		// parallel decryption of chunks by copies
+		final byte[] result = new byte[expected.length];
+		final int threads = 4;
+		final int chunk = (blocks + threads - 1) / threads;
+		Thread[] workers = new Thread[threads];
+		mode.reset();
+		for (int t = 0; t < threads; t++) {
+			final int from = Math.min(blocks, t * chunk);
+			final int count = Math.min(blocks - from, chunk);
+			final ThreefishTweakCounterCipher copy = mode.copy();
+			workers[t] = new Thread() {
+				@Override
+				public void run() {
+					copy.seekTo(first + from);
+					copy.processBlocks(expected, from * blockSize, result, from * blockSize, count);
+				}
+			};
+			workers[t].start();
+		}
+		for (int t = 0; t < threads; t++) {
+			workers[t].join();
+		}
+		for (int j = 0; j < result.length; j++) {
+			if (result[j] != plain[j]) {
+				fail("tweak counter parallel decryption failed for " + keyLength);
+			}
+		}
+
+		mode.init(true, new KeyParameter(key));
+		mode.processBlock(plain, 0, buf, 0);
+		engine.init(true, new KeyParameter(key));
+		engine.processBlock(plain, 0, result, 0);
+		for (int j = 0; j < blockSize; j++) {
+			if (buf[j] != result[j]) {
+				fail("tweak counter with plain key failed for " + keyLength);
+			}
+		}
+	}
+
+	private void testChaining(int keyLength) {
+		final int blockSize = keyLength / 8;
+		byte[] iv = new byte[blockSize];
+		random.nextBytes(iv);
+		final ParametersWithIV ivParams = new ParametersWithIV(params, iv);
+
+		testChaining(new CBCBlockCipher(new ThreefishEngine(keyLength)), new ThreefishCbcCipher(new ThreefishEngine(
+				keyLength)), ivParams);
+		testChaining(new CFBBlockCipher(new ThreefishEngine(keyLength), keyLength), new ThreefishCfbCipher(
+				new ThreefishEncryptEngine(keyLength)), ivParams);
+		testChaining(new OFBBlockCipher(new ThreefishEngine(keyLength), keyLength), new ThreefishOfbCipher(
+				new ThreefishEncryptEngine(keyLength)), ivParams);
+
+		try {
+			new ThreefishCbcCipher(new ThreefishEngine(keyLength)).processBlock(plain, 0, plain, 0);
+			fail("uninitialised CBC not detected");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+
+		try {
+			ThreefishCbcCipher cbc = new ThreefishCbcCipher(new ThreefishEngine(keyLength));
+			cbc.init(true, ivParams);
+			cbc.init(false, new ParametersWithIV(null, iv));
+			fail("change of direction without key not detected");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+
+		try {
+			new ThreefishOfbCipher(new ThreefishEncryptEngine(keyLength)).init(true, new ParametersWithIV(params,
+					new byte[blockSize + 1]));
+			fail("long IV not detected");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * Checks word level chaining mode against generic one, in both directions.
+	 */
+	private void testChaining(BlockCipher generic, BlockCipher mode, ParametersWithIV ivParams) {
+		final int blockSize = mode.getBlockSize();
+		final int blocks = LENGTH / blockSize;
+		final String name = mode.getAlgorithmName();
+		generic.init(true, ivParams);
+		final byte[] expected = blockByBlock(generic, plain);
+
+		// single block, then random numbers of blocks
+		mode.init(true, ivParams);
+		byte[] buf = new byte[expected.length];
+		for (int done = 0; done < blocks;) {
+			final int count = done == 0 ? 1 : Math.min(blocks - done, random.nextInt(40));
+			if (count == 1) {
+				mode.processBlock(plain, done * blockSize, buf, done * blockSize);
+			} else {
+				processBlocks(mode, plain, done * blockSize, buf, done * blockSize, count);
+			}
+			done += count;
+		}
+		if (!areEqual(expected, buf)) {
+			fail(name + " encryption failed");
+		}
+
+		// words in place, after reset
+		mode.reset();
+		long[] words = new long[expected.length / 8];
+		ThreefishEngine.bytesToWords(plain, 0, words, 0, words.length);
+		processBlocks(mode, words, blocks);
+		ThreefishEngine.wordsToBytes(words, 0, buf, 0, words.length);
+		if (!areEqual(expected, buf)) {
+			fail(name + " word encryption failed");
+		}
+
+		// decryption in place, bytes then words
+		mode.init(false, ivParams);
+		final int half = blocks / 2;
+		System.arraycopy(expected, 0, buf, 0, expected.length);
+		processBlocks(mode, buf, 0, buf, 0, half);
+		words = new long[(blocks - half) * blockSize / 8];
+		ThreefishEngine.bytesToWords(buf, half * blockSize, words, 0, words.length);
+		processBlocks(mode, words, blocks - half);
+		ThreefishEngine.wordsToBytes(words, 0, buf, half * blockSize, words.length);
+		for (int i = 0; i < buf.length; i++) {
+			if (buf[i] != plain[i]) {
+				fail(name + " decryption failed");
+			}
+		}
+	}
+
+	private static void processBlocks(BlockCipher mode, byte[] in, int inOff, byte[] out, int outOff, int blockCount) {
+		if (mode instanceof ThreefishCbcCipher) {
+			((ThreefishCbcCipher) mode).processBlocks(in, inOff, out, outOff, blockCount);
+		} else if (mode instanceof ThreefishCfbCipher) {
+			((ThreefishCfbCipher) mode).processBlocks(in, inOff, out, outOff, blockCount);
+		} else {
+			((ThreefishOfbCipher) mode).processBlocks(in, inOff, out, outOff, blockCount);
+		}
+	}
+
+	private static void processBlocks(BlockCipher mode, long[] words, int blockCount) {
+		if (mode instanceof ThreefishCbcCipher) {
+			((ThreefishCbcCipher) mode).processBlocks(words, 0, words, 0, blockCount);
+		} else if (mode instanceof ThreefishCfbCipher) {
+			((ThreefishCfbCipher) mode).processBlocks(words, 0, words, 0, blockCount);
+		} else {
+			((ThreefishOfbCipher) mode).processBlocks(words, 0, words, 0, blockCount);
+		}
+	}
+
+	private void testCtr(int keyLength) {
+		final int blockSize = keyLength / 8;
+		byte[] iv = new byte[blockSize];
+		random.nextBytes(iv);
+		final byte[] expected = sic(keyLength, iv, plain);
+
+		ThreefishCtrCipher ctr = new ThreefishCtrCipher(new ThreefishEncryptEngine(keyLength));
+		ctr.init(true, new ParametersWithIV(params, iv));
+		byte[] buf = new byte[LENGTH];
+		ctr.processBytes(plain, 0, LENGTH, buf, 0);
+		if (!areEqual(expected, buf)) {
+			fail("CTR encryption failed for " + keyLength);
+		}
+
+		// random chunks, in place, with single bytes
+		ctr.reset();
+		System.arraycopy(expected, 0, buf, 0, LENGTH);
+		for (int off = 0; off < LENGTH;) {
+			final int len = Math.min(LENGTH - off, random.nextInt(3 * blockSize));
+			if (len == 1) {
+				buf[off] = ctr.returnByte(buf[off]);
+			} else {
+				ctr.processBytes(buf, off, len, buf, off);
+			}
+			off += len;
+		}
+		if (!areEqual(plain, buf)) {
+			fail("CTR decryption in chunks failed for " + keyLength);
+		}
+		if (ctr.getPosition() != LENGTH) {
+			fail("CTR position not advanced for " + keyLength);
+		}
+
+		for (int i = 0; i < 20; i++) {
+			final int from = random.nextInt(LENGTH);
+			final int len = random.nextInt(LENGTH - from + 1);
+			ctr.seekTo(from);
+			byte[] part = new byte[len];
+			ctr.processBytes(expected, from, len, part, 0);
+			for (int j = 0; j < len; j++) {
+				if (part[j] != plain[from + j]) {
+					fail("CTR seek to " + from + " failed for " + keyLength);
+				}
+			}
+		}
+
+		// carry of counter from lower words
+		for (int i = blockSize - 17; i < blockSize; i++) {
+			iv[i] = (byte) 0xFF;
+		}
+		ctr.init(true, new ParametersWithIV(null, iv));
+		ctr.seekTo(blockSize * 2 + 3);
+		byte[] carried = new byte[LENGTH - blockSize * 2 - 3];
+		ctr.processBytes(plain, blockSize * 2 + 3, carried.length, carried, 0);
+		final byte[] sicCarried = sic(keyLength, iv, plain);
+		for (int j = 0; j < carried.length; j++) {
+			if (carried[j] != sicCarried[blockSize * 2 + 3 + j]) {
+				fail("CTR counter carry failed for " + keyLength);
+			}
+		}
+
+		try {
+			ctr.processBytes(plain, LENGTH - 1, 2, buf, 0);
+			fail("short input not detected");
+		} catch (DataLengthException e) {
+			// expected
+		}
+
+		try {
+			new ThreefishCtrCipher(new ThreefishEncryptEngine(keyLength)).returnByte((byte) 0);
+			fail("uninitialised CTR not detected");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+
+		try {
+			ctr.init(true, new ParametersWithIV(params, new byte[blockSize - 1]));
+			fail("short IV not detected");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+}